@@ -0,0 +1,417 @@
+/*
+bench_jcrypt.java
+
+Microbenchmarks for the hashing engines and the rule engine.
+
+Measures crypt() throughput per salt and per engine, key setup cost,
+every OpCode (through a one-rule CandidateCursor, the path the cracking
+loops use) and representative RULE_CHAINS entries, both through the
+cursor and through applyRuleChain, whole chain sets per chain and
+through a ChainTree, and a few rule-file lines through the RuleProgram
+interpreter.
+
+Each benchmark is warmed up and then timed over several fixed-length
+iterations in one JVM. This is a plain timer loop, not JMH: there is
+no forking, no Blackhole and no guard against on-stack replacement, so
+the numbers are only comparable with other runs of this harness on the
+same machine and JVM. (JMH also refuses benchmark classes in the
+default package, where every class of this project lives.) Every op
+folds each of its results (every hash, schedule word and candidate)
+into its return value, and the return values go to a volatile sink,
+so the JIT cannot remove the work.
+
+For each benchmark it reports ops/s (mean and standard deviation
+across iterations) and the bytes allocated per op, read from the
+benchmarking thread's allocation counter. Results are also written as
+CSV, one row per benchmark with the ops/s of every iteration, so runs
+can be diffed across releases.
+
+Usage:
+  java bench_jcrypt [--warmup N] [--iterations N] [--time MS]
+                    [--filter REGEX] [--csv FILE] [--words FILE]
+*/
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+
+public class bench_jcrypt {
+
+    /* Results are folded into this so the JIT cannot drop the work */
+    static volatile long sink;
+
+    static final String WARNING = "Not JMH: plain timer loop in one JVM, numbers are only comparable between runs of bench_jcrypt";
+
+    /* Runs `ops` operations and returns something derived from every result of them */
+    interface Op {
+        long run(long ops);
+    }
+
+    static class Benchmark {
+        final String name;
+        final Op op;
+
+        /* Smallest meaningful batch, e.g. one bitsliced pass */
+        final long granularity;
+
+        Benchmark(String name, Op op) {
+            this(name, op, 1);
+        }
+
+        Benchmark(String name, Op op, long granularity) {
+            this.name = name;
+            this.op = op;
+            this.granularity = granularity;
+        }
+    }
+
+    static class Result {
+        String name;
+        double[] opsPerSecond;
+        double mean;
+        double stddev;
+        double bytesPerOp;
+    }
+
+
+    /* Salts with different E-box swap patterns: none, some, most */
+    static final String[] SALTS = { "..", "ab", "Qx", "zz" };
+
+    /* RULE_CHAINS entries from cheap to expensive */
+    static final int[] CHAINS = { 0, 6, 9, 19, 36, 56, 68, 72 };
+
+    /* Rule-file lines for the interpreter benchmarks */
+    static final String[] RULE_LINES = { ":", "c $1 $2", "sa@ so0 se3", "r", "d", "i3!", "E", "<8 >6 u" };
+
+    /* Used when no wordlist is found */
+    static final String[] DEFAULT_WORDS = {
+        "love", "dragon", "monkey", "sunshine", "password", "princess",
+        "football", "baseball", "whatever", "starwars", "basketball", "summertime"
+    };
+
+
+    /*
+    Every benchmark, over `words`.
+    */
+    static List<Benchmark> benchmarks(String[] words) {
+        List<Benchmark> list = new ArrayList<>();
+
+        for (String salt : SALTS) {
+            jcrypt.SaltTables tables = jcrypt.saltTables(jcrypt.saltBits(salt));
+            jcrypt.KeySchedule key = new jcrypt.KeySchedule();
+
+            list.add(new Benchmark("crypt.scalar.salt=" + salt, n -> {
+                long x = 0;
+                for (long i = 0; i < n; i++) {
+                    key.set(words[(int) (i % words.length)]);
+                    x ^= jcrypt.crypt(tables, key);
+                }
+                return x;
+            }));
+        }
+
+        list.add(new Benchmark("crypt.string", n -> {
+            long x = 0;
+            for (long i = 0; i < n; i++) x += jcrypt.crypt("ab", words[(int) (i % words.length)]).hashCode();
+            return x;
+        }));
+
+        bs_jcrypt bitslice = new bs_jcrypt("ab");
+        byte[][] keys = new byte[bitslice.lanes()][8];
+        for (int lane = 0; lane < keys.length; lane++) jcrypt.keyBytes(words[lane % words.length], keys[lane]);
+
+        list.add(new Benchmark("crypt.bitslice", n -> {
+            long x = 0;
+            for (long i = 0; i < n; i += keys.length) {
+                keys[0][7] = (byte) (i << 1);
+                bitslice.setKeys(keys, keys.length);
+                bitslice.crypt();
+                for (int lane = 0; lane < keys.length; lane++) x = x * 31 + bitslice.result(lane);
+            }
+            return x;
+        }, keys.length));
+
+        byte[] keyBytes = new byte[8];
+        int[] schedule = new int[32];
+        jcrypt.keyBytes(words[0], keyBytes);
+
+        list.add(new Benchmark("keysetup.des_set_key", n -> {
+            long x = 0;
+            for (long i = 0; i < n; i++) {
+                keyBytes[7] = (byte) (i << 1);
+                jcrypt.des_set_key(keyBytes, schedule);
+                for (int k : schedule) x = x * 31 + k;
+            }
+            return x;
+        }));
+
+        list.add(new Benchmark("keysetup.table", n -> {
+            long x = 0;
+            for (long i = 0; i < n; i++) {
+                keyBytes[7] = (byte) (i << 1);
+                jcrypt.des_set_key_table(keyBytes, schedule);
+                for (int k : schedule) x = x * 31 + k;
+            }
+            return x;
+        }));
+
+        jcrypt.KeySchedule incremental = new jcrypt.KeySchedule();
+        incremental.set(words[0]);
+
+        list.add(new Benchmark("keysetup.incremental", n -> {
+            long x = 0;
+            for (long i = 0; i < n; i++) {
+                incremental.set(7, (char) ('0' + i % 10));
+                for (int k : incremental.schedule()) x = x * 31 + k;
+            }
+            return x;
+        }));
+
+        /* One rule per OpCode, the first that uses it */
+        for (bf_jcrypt.OpCode code : bf_jcrypt.OpCode.values()) {
+            for (bf_jcrypt.Rule rule : bf_jcrypt.Rule.values()) {
+                if (rule.operations.get(0).code != code) continue;
+
+                list.add(new Benchmark("op." + code + "(" + rule + ")", cursorOp(words, rule)));
+                break;
+            }
+        }
+
+        for (int index : CHAINS) {
+            bf_jcrypt.Rule[] chain = bf_jcrypt.RULE_CHAINS[index];
+
+            list.add(new Benchmark("chain." + index + ".cursor", cursorOp(words, chain)));
+            list.add(new Benchmark("chain." + index + ".applyRuleChain", n -> {
+                long x = 0;
+                for (long i = 0; i < n; i++) {
+                    for (String v : bf_jcrypt.applyRuleChain(words[(int) (i % words.length)], chain)) x += v.hashCode();
+                }
+                return x;
+            }));
+        }
+
+        /* One op is one word through every chain of the set, per chain or through a ChainTree */
+        chainSet(list, words, "loopback", bf_jcrypt.LOOPBACK_CHAINS);
+        chainSet(list, words, "all", bf_jcrypt.RULE_CHAINS);
+
+        /* One op is one word copied into the buffer and run through the program */
+        for (String text : RULE_LINES) {
+            rules_jcrypt.RuleProgram program = rules_jcrypt.RuleProgram.compile(text);
+            char[] buffer = new char[rules_jcrypt.RuleProgram.CAPACITY];
+
+            list.add(new Benchmark("rulefile." + text, n -> {
+                long x = 0;
+                for (long i = 0; i < n; i++) {
+                    String w = words[(int) (i % words.length)];
+                    int length = Math.min(w.length(), buffer.length);
+                    w.getChars(0, length, buffer, 0);
+                    int out = program.run(buffer, length);
+                    x += out;
+                    for (int j = 0; j < out; j++) x = x * 31 + buffer[j];
+                }
+                return x;
+            }));
+        }
+        return list;
+    }
+
+
+    static void chainSet(List<Benchmark> list, String[] words, String name, bf_jcrypt.Rule[][] chains) {
+        bf_jcrypt.CandidateCursor[] cursors = new bf_jcrypt.CandidateCursor[chains.length];
+        for (int c = 0; c < chains.length; c++) cursors[c] = new bf_jcrypt.CandidateCursor(chains[c]);
+
+        list.add(new Benchmark("chains." + name + ".cursors", n -> {
+            long x = 0;
+            for (long i = 0; i < n; i++) {
+                String w = words[(int) (i % words.length)];
+                for (bf_jcrypt.CandidateCursor cursor : cursors) {
+                    cursor.reset(w);
+                    for (String v; (v = cursor.next()) != null; ) x += v.hashCode();
+                }
+            }
+            return x;
+        }));
+
+        bf_jcrypt.ChainTree tree = new bf_jcrypt.ChainTree(chains);
+        long[] total = new long[1];
+        bf_jcrypt.ChainTree.Sink sink = (chain, v) -> {
+            total[0] += v.hashCode();
+            return true;
+        };
+        list.add(new Benchmark("chains." + name + ".tree", n -> {
+            for (long i = 0; i < n; i++) tree.expand(words[(int) (i % words.length)], sink);
+            return total[0];
+        }));
+    }
+
+
+    /*
+    One op is one word pulled through a cursor to the end.
+    */
+    static Op cursorOp(String[] words, bf_jcrypt.Rule... chain) {
+        bf_jcrypt.CandidateCursor cursor = new bf_jcrypt.CandidateCursor(chain);
+
+        return n -> {
+            long x = 0;
+            for (long i = 0; i < n; i++) {
+                cursor.reset(words[(int) (i % words.length)]);
+                for (String v; (v = cursor.next()) != null; ) x += v.hashCode();
+            }
+            return x;
+        };
+    }
+
+
+    /*
+    Warms up, then times `iterations` iterations of `millis` each.
+    Each iteration runs the op in batches of about a millisecond, so
+    timer reads stay out of the measurement. The batch size is sized
+    again after warmup, once the code is compiled.
+    */
+    static Result measure(Benchmark b, int warmup, int iterations, long millis) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long batch = calibrate(b);
+        for (int i = 0; i < warmup; i++) iteration(b, batch, millis);
+        batch = calibrate(b);
+
+        Result r = new Result();
+        r.name = b.name;
+        r.opsPerSecond = new double[iterations];
+
+        long totalOps = 0;
+        long allocated = threads.getThreadAllocatedBytes(thread);
+
+        for (int i = 0; i < iterations; i++) {
+            long t = System.nanoTime();
+            long ops = iteration(b, batch, millis);
+            long nanos = System.nanoTime() - t;
+
+            r.opsPerSecond[i] = ops / (nanos / 1e9);
+            totalOps += ops;
+        }
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        for (double v : r.opsPerSecond) r.mean += v / iterations;
+        for (double v : r.opsPerSecond) r.stddev += (v - r.mean) * (v - r.mean);
+        r.stddev = iterations > 1 ? Math.sqrt(r.stddev / (iterations - 1)) : 0;
+        r.bytesPerOp = (double) allocated / totalOps;
+        return r;
+    }
+
+    /* Smallest multiple of the granularity that takes a millisecond */
+    static long calibrate(Benchmark b) {
+        long batch = b.granularity;
+
+        for (;;) {
+            long t = System.nanoTime();
+            sink ^= b.op.run(batch);
+            if (System.nanoTime() - t >= 1_000_000 || batch >= 1L << 40) return batch;
+            batch *= 2;
+        }
+    }
+
+    /* Runs batches for at least `millis`; returns the number of ops */
+    static long iteration(Benchmark b, long batch, long millis) {
+        long end = System.nanoTime() + millis * 1_000_000;
+        long ops = 0;
+
+        do {
+            sink ^= b.op.run(batch);
+            ops += batch;
+        } while (System.nanoTime() < end);
+
+        return ops;
+    }
+
+
+    /*
+    Writes one CSV row per benchmark: name, mean and standard deviation
+    of ops/s, bytes per op, then the ops/s of each iteration.
+    */
+    static void writeCsv(String filename, List<Result> results, int iterations) throws Exception {
+        File file = new File(filename);
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
+            w.write("benchmark,ops_per_second,stddev,bytes_per_op");
+            for (int i = 1; i <= iterations; i++) w.write(",iteration_" + i);
+            w.newLine();
+
+            for (Result r : results) {
+                w.write(quote(r.name) + "," + r.mean + "," + r.stddev + "," + r.bytesPerOp);
+                for (double v : r.opsPerSecond) w.write("," + v);
+                w.newLine();
+            }
+        }
+    }
+
+    /* Benchmark names contain rule text, which may hold commas and quotes */
+    static String quote(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0) return s;
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+
+    static String[] loadWords(String filename) throws Exception {
+        if (!new File(filename).exists()) return DEFAULT_WORDS;
+
+        List<String> words = new ArrayList<>();
+        bf_jcrypt.WordReader reader = bf_jcrypt.loadDictionary(filename).words();
+        for (String w; (w = reader.next()) != null; ) words.add(w);
+
+        return words.isEmpty() ? DEFAULT_WORDS : words.toArray(new String[0]);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int warmup = 2;
+        int iterations = 5;
+        long millis = 500;
+        Pattern filter = null;
+        String csv = "Results/bench_jcrypt.csv";
+        String wordsFile = "wordlist.txt";
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--warmup":     warmup = Integer.parseInt(args[++i]); break;
+                    case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                    case "--time":       millis = Long.parseLong(args[++i]); break;
+                    case "--filter":     filter = Pattern.compile(args[++i]); break;
+                    case "--csv":        csv = args[++i]; break;
+                    case "--words":      wordsFile = args[++i]; break;
+                    default:             throw new IllegalArgumentException(args[i]);
+                }
+            }
+            if (warmup < 0 || iterations < 1 || millis < 1) throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            System.err.println("Usage: java bench_jcrypt [--warmup N] [--iterations N] [--time MS] [--filter REGEX] [--csv FILE] [--words FILE]");
+            System.exit(1);
+        }
+
+        String[] words = loadWords(wordsFile);
+        List<Result> results = new ArrayList<>();
+
+        System.out.println(WARNING);
+        System.out.println(String.format("%-40s %16s %12s %12s", "Benchmark", "ops/s", "stddev", "B/op"));
+
+        for (Benchmark b : benchmarks(words)) {
+            if (filter != null && !filter.matcher(b.name).find()) continue;
+
+            Result r = measure(b, warmup, iterations, millis);
+            results.add(r);
+            System.out.println(String.format("%-40s %16.1f %12.1f %12.1f", r.name, r.mean, r.stddev, r.bytesPerOp));
+        }
+
+        writeCsv(csv, results, iterations);
+        System.out.println("Results written to " + csv);
+    }
+}
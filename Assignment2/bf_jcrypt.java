@@ -12,10 +12,60 @@ CS340 - Password Cracking Assignment
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 
 public class bf_jcrypt {
@@ -32,6 +82,443 @@ public class bf_jcrypt {
         String lastname;
         String salt;
         String hash;
+
+        /* Salt and hash decoded once for jcrypt's raw crypt() */
+        int saltBits;
+        long hashBits;
+        boolean hashValid;
+
+        /* Filled in once the user has been processed */
+        String password;
+        double seconds;
+
+        /* What found the password: a rule chain's key, or loopback, potfile, pcfg, mask, rules */
+        String crackedBy;
+
+        /* True if a raw crypt() result is this user's stored hash */
+        boolean matches(long raw) {
+            return hashValid && raw == hashBits;
+        }
+
+        /* Detached copy of the fields used for matching */
+        UserEntry copy() {
+            UserEntry u = new UserEntry();
+            u.username = username;
+            u.salt = salt;
+            u.hash = hash;
+            u.saltBits = saltBits;
+            u.hashBits = hashBits;
+            u.hashValid = hashValid;
+            return u;
+        }
+    }
+
+
+    /*
+    Group of users that share the same salt.
+    A candidate only has to be hashed once per group, and the
+    result is compared against every user still left in the group.
+    */
+    static class SaltGroup {
+        String salt;
+        int saltBits;
+        jcrypt.SaltTables tables;
+        List<UserEntry> remaining = new ArrayList<>();
+
+        /* Keys already hashed for these users, or null (see SeenFilter) */
+        SeenFilter seen;
+
+        SaltGroup(String salt) {
+            this.salt = salt;
+            this.saltBits = jcrypt.saltBits(salt);
+            this.tables = jcrypt.saltTables(saltBits);
+        }
+    }
+
+
+    /*
+    Caller-owned key schedule for jcrypt's allocation-free crypt().
+    Hashing a candidate through this produces no garbage, and the result
+    is compared to UserEntry.hashBits as a single long. The schedule is
+    updated incrementally, so consecutive candidates that share a prefix
+    (as cursors produce them) only pay for the characters that changed.
+    One instance per thread.
+    */
+    static class CandidateHasher {
+        final jcrypt.KeySchedule key = new jcrypt.KeySchedule();
+
+        long hash(jcrypt.SaltTables salt, String candidate) {
+            key.set(candidate);
+            return jcrypt.crypt(salt, key);
+        }
+
+        /* The first `length` characters of a reused buffer, without a String */
+        long hash(jcrypt.SaltTables salt, char[] candidate, int length) {
+            for (int i = 0; i < KEY_LENGTH; i++) key.set(i, i < length ? candidate[i] : 0);
+            return jcrypt.crypt(salt, key);
+        }
+    }
+
+
+    /* Names accepted by --engine */
+    static final String ENGINE_SCALAR = "scalar";
+    static final String ENGINE_BITSLICE = "bitslice";
+    static final String ENGINE_VECTOR = "vector";
+
+
+    /*
+    True if the Vector API engine can be used: the JVM was started with
+    --add-modules jdk.incubator.vector and vec_jcrypt was compiled.
+    */
+    static boolean vectorEngineAvailable() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) return false;
+        try {
+            Class.forName("vec_jcrypt");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+
+    /*
+    Creates a multi-key crypt engine for one salt.
+    vec_jcrypt is loaded by name so this file builds without the
+    incubator module; callers check vectorEngineAvailable() first.
+    */
+    static jcrypt.BatchEngine createBatchEngine(String engine, String salt) {
+        if (ENGINE_VECTOR.equals(engine)) {
+            try {
+                return (jcrypt.BatchEngine) Class.forName("vec_jcrypt")
+                    .getConstructor(String.class)
+                    .newInstance(salt);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("vec_jcrypt could not be created", e);
+            }
+        }
+        return new bs_jcrypt(salt);
+    }
+
+
+    /*
+    Off-heap blocked Bloom filter of the DES keys already hashed for one
+    set of users (one user, or one salt group in candidate-major mode),
+    so a candidate an earlier chain produced is not hashed again.
+    IDENTITY, LOWERCASE_ALL and CAPITALIZE_FIRST mostly agree on a
+    lowercase wordlist, and short suffix chains come back inside longer
+    ones once cut to KEY_LENGTH; the cursors' own dedupe only sees one
+    word under one chain.
+
+    A key is the 56 bits crypt(3) uses, 7 per character (see
+    jcrypt.keyBytes). It sets k bits inside one 512-bit block, a single
+    cache line, with atomic ORs, so the ShardTasks of one user can share
+    a filter. Once about `capacity` keys are in, the filter stops adding
+    and only answers, which holds the false-positive rate near `fpr`.
+    A false positive skips a candidate that was never hashed, so `fpr`
+    is also the chance of missing a password only that candidate had.
+    */
+    static class SeenFilter {
+        static final int BLOCK_BYTES = 64;
+        static final long MAX_BYTES = 1 << 30;
+
+        /* Blocking costs a few bits per key over the textbook ln(1/p) / ln(2)^2 */
+        static final double BLOCK_OVERHEAD = 1.2;
+
+        /* Keys added are counted on a 1-in-SAMPLE sample of their hashes */
+        static final int SAMPLE = 1024;
+
+        static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+        final ByteBuffer bits;
+        final long blockMask;
+        final int k;
+        final long capacity;
+        final AtomicLong added = new AtomicLong();
+        volatile boolean full;
+
+        SeenFilter(long bytes, double fpr) {
+            long blocks = Long.highestOneBit(Math.max(1, Math.min(bytes, MAX_BYTES) / BLOCK_BYTES));
+            bits = ByteBuffer.allocateDirect((int) (blocks * BLOCK_BYTES) + BLOCK_BYTES).alignedSlice(BLOCK_BYTES);
+            blockMask = blocks - 1;
+
+            double log2 = Math.log(2);
+            k = (int) Math.max(1, Math.min(16, Math.round(-Math.log(fpr) / log2)));
+            capacity = (long) (blocks * BLOCK_BYTES * 8 / (-Math.log(fpr) / (log2 * log2) * BLOCK_OVERHEAD));
+        }
+
+        static long key(String candidate) {
+            long key = 0;
+            for (int i = 0; i < KEY_LENGTH; i++) key = key << 7 | (i < candidate.length() ? candidate.charAt(i) & 0x7f : 0);
+            return key;
+        }
+
+        static long key(char[] candidate, int length) {
+            long key = 0;
+            for (int i = 0; i < KEY_LENGTH; i++) key = key << 7 | (i < length ? candidate[i] & 0x7f : 0);
+            return key;
+        }
+
+        /* MurmurHash3's 64-bit finalizer */
+        static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            return h ^ h >>> 33;
+        }
+
+        /* False if the key is (probably) in the filter; otherwise adds it while there is room */
+        boolean add(long key) {
+            long h1 = mix(key);
+            long h2 = mix(key ^ 0x9e3779b97f4a7c15L);
+            int block = (int) (h1 & blockMask) * BLOCK_BYTES;
+            int x = (int) h2;
+            int y = (int) (h2 >>> 32) | 1;
+
+            boolean present = true;
+            for (int i = 0; i < k && present; i++) {
+                int bit = (x + i * y) & 511;
+                present = ((long) LONGS.get(bits, block + (bit >>> 6 << 3)) & 1L << (bit & 63)) != 0;
+            }
+            if (present) return false;
+
+            if (!full) {
+                for (int i = 0; i < k; i++) {
+                    int bit = (x + i * y) & 511;
+                    LONGS.getAndBitwiseOr(bits, block + (bit >>> 6 << 3), 1L << (bit & 63));
+                }
+                if ((h1 >>> 48 & SAMPLE - 1) == 0 && added.addAndGet(SAMPLE) >= capacity) full = true;
+            }
+            return true;
+        }
+
+        void clear() {
+            for (int i = 0; i < bits.capacity(); i += 8) LONGS.set(bits, i, 0L);
+            added.set(0);
+            full = false;
+        }
+    }
+
+
+    /*
+    The SeenFilters of a run: up to `slots` filters of budget / slots
+    bytes, allocated on first use and handed back cleared for the next
+    user. take() returns null while all are out, and that user runs
+    without one. Until configure() there are no filters at all.
+    */
+    static class SeenFilters {
+        final ArrayDeque<SeenFilter> free = new ArrayDeque<>();
+        long budget;
+        double fpr;
+        int slots;
+        int allocated;
+
+        synchronized void configure(long budget, double fpr, int slots) {
+            this.budget = budget;
+            this.fpr = fpr;
+            this.slots = Math.max(1, slots);
+        }
+
+        synchronized SeenFilter take() {
+            if (!free.isEmpty()) return free.pop();
+            if (allocated >= slots || budget / slots < SeenFilter.BLOCK_BYTES) return null;
+
+            allocated++;
+            return new SeenFilter(budget / slots, fpr);
+        }
+
+        void release(SeenFilter filter) {
+            if (filter == null) return;
+
+            filter.clear();
+            synchronized (this) {
+                free.push(filter);
+            }
+        }
+    }
+
+
+    /*
+    Hashes candidates for one salt group and checks them against the
+    users still left in it. A matched user gets `password` set, is removed
+    from the group, and is then passed to `onCrack`.
+
+    The scalar matcher hashes each candidate as it is offered. The
+    batch matcher queues candidates and hashes them a full engine width
+    at a time, so callers must flush() before giving up on a group.
+    One instance per thread.
+
+    Candidates the SeenFilter skips are counted in `skipped` and only
+    added to METRICS at a flush() or once the group is cracked, so the
+    hot path never writes a shared counter.
+    */
+    static abstract class SaltMatcher {
+        final SaltGroup group;
+        final BiConsumer<UserEntry, String> onCrack;
+
+        /* Skipped by the SeenFilter since the last reportSkipped() */
+        long skipped;
+
+        SaltMatcher(SaltGroup group, BiConsumer<UserEntry, String> onCrack) {
+            this.group = group;
+            this.onCrack = onCrack;
+        }
+
+        static SaltMatcher create(String engine, SaltGroup group, BiConsumer<UserEntry, String> onCrack) {
+            if (ENGINE_SCALAR.equals(engine)) return new ScalarMatcher(group, onCrack);
+            return new BatchMatcher(createBatchEngine(engine, group.salt), group, onCrack);
+        }
+
+        /* Hashes a candidate, unless the group's SeenFilter has had its key */
+        final void offer(String candidate) {
+            if (group.seen != null && !group.seen.add(SeenFilter.key(candidate))) {
+                skipped++;
+                return;
+            }
+            submit(candidate);
+        }
+
+        /*
+        Offers the first `length` characters of a buffer the caller keeps
+        reusing; a String is only made for a crack.
+        */
+        final void offer(char[] candidate, int length) {
+            if (group.seen != null && !group.seen.add(SeenFilter.key(candidate, length))) {
+                skipped++;
+                return;
+            }
+            submit(candidate, length);
+        }
+
+        abstract void submit(String candidate);
+
+        void submit(char[] candidate, int length) {
+            submit(new String(candidate, 0, length));
+        }
+
+        /* Hashes whatever is queued */
+        abstract void hashQueued();
+
+        final void flush() {
+            hashQueued();
+            reportSkipped();
+        }
+
+        void reportSkipped() {
+            if (skipped != 0) {
+                METRICS.seenSkipped.add(skipped);
+                skipped = 0;
+            }
+        }
+
+        boolean done() {
+            return group.remaining.isEmpty();
+        }
+
+        void found(int index, String candidate) {
+            UserEntry user = group.remaining.remove(index);
+            user.password = candidate;
+            onCrack.accept(user, candidate);
+            /* Callers drop a done matcher without a flush */
+            if (done()) reportSkipped();
+        }
+    }
+
+
+    static class ScalarMatcher extends SaltMatcher {
+        final CandidateHasher hasher = new CandidateHasher();
+
+        ScalarMatcher(SaltGroup group, BiConsumer<UserEntry, String> onCrack) {
+            super(group, onCrack);
+        }
+
+        @Override
+        void submit(String candidate) {
+            long hashedCandidate = hasher.hash(group.tables, candidate);
+
+            for (int i = 0; i < group.remaining.size(); i++) {
+                if (group.remaining.get(i).matches(hashedCandidate)) found(i--, candidate);
+            }
+        }
+
+        @Override
+        void submit(char[] candidate, int length) {
+            long hashedCandidate = hasher.hash(group.tables, candidate, length);
+
+            for (int i = 0; i < group.remaining.size(); i++) {
+                if (group.remaining.get(i).matches(hashedCandidate)) found(i--, new String(candidate, 0, length));
+            }
+        }
+
+        @Override
+        void hashQueued() {
+        }
+    }
+
+
+    /*
+    Batches candidates through a multi-key engine (bitsliced or vector),
+    one full engine width per pass.
+    */
+    static class BatchMatcher extends SaltMatcher {
+        final jcrypt.BatchEngine engine;
+        final byte[][] keys;
+        final String[] batch;
+        int count;
+
+        /* Candidates offered as buffers, turned into Strings only on a crack */
+        final char[][] chars;
+        final int[] lengths;
+
+        BatchMatcher(jcrypt.BatchEngine engine, SaltGroup group, BiConsumer<UserEntry, String> onCrack) {
+            super(group, onCrack);
+            this.engine = engine;
+            this.keys = new byte[engine.lanes()][8];
+            this.batch = new String[engine.lanes()];
+            this.chars = new char[engine.lanes()][KEY_LENGTH];
+            this.lengths = new int[engine.lanes()];
+        }
+
+        @Override
+        void submit(String candidate) {
+            jcrypt.keyBytes(candidate, keys[count]);
+            batch[count++] = candidate;
+
+            if (count == batch.length) hashQueued();
+        }
+
+        @Override
+        void submit(char[] candidate, int length) {
+            jcrypt.keyBytes(candidate, length, keys[count]);
+            length = Math.min(length, KEY_LENGTH);
+            System.arraycopy(candidate, 0, chars[count], 0, length);
+            lengths[count] = length;
+            batch[count++] = null;
+
+            if (count == batch.length) hashQueued();
+        }
+
+        String candidate(int lane) {
+            return batch[lane] != null ? batch[lane] : new String(chars[lane], 0, lengths[lane]);
+        }
+
+        @Override
+        void hashQueued() {
+            if (count == 0) return;
+
+            engine.setKeys(keys, count);
+            engine.crypt();
+
+            long lanes = count == 64 ? -1L : (1L << count) - 1;
+
+            for (int i = 0; i < group.remaining.size(); i++) {
+                UserEntry user = group.remaining.get(i);
+                long mask = user.hashValid ? engine.match(user.hashBits) & lanes : 0;
+
+                if (mask != 0) found(i--, candidate(Long.numberOfTrailingZeros(mask)));
+            }
+            count = 0;
+        }
     }
 
 
@@ -64,7 +551,48 @@ public class bf_jcrypt {
         INSERT_CHARSET,
 
         /* Character replacement */
-        REPLACE
+        REPLACE,
+
+        /* Rule-file only (see rules_jcrypt.RuleProgram); a and b are the arguments */
+        TOGGLE_ALL,
+        TOGGLE_AT,
+        TITLE_CASE,
+        REPEAT,
+        ROTATE_LEFT,
+        ROTATE_RIGHT,
+        DELETE_AT,
+        EXTRACT,
+        OMIT,
+        INSERT_AT,
+        OVERWRITE_AT,
+        TRUNCATE_AT,
+        REPLACE_ALL,
+        PURGE,
+        DUPLICATE_FIRST,
+        DUPLICATE_LAST,
+        DUPLICATE_CHARS,
+        DUPLICATE_PREFIX,
+        DUPLICATE_SUFFIX,
+        SWAP_FRONT,
+        SWAP_BACK,
+        SWAP_AT,
+        SHIFT_LEFT_AT,
+        SHIFT_RIGHT_AT,
+        INCREMENT_AT,
+        DECREMENT_AT,
+        REPLACE_NEXT,
+        REPLACE_PRIOR,
+
+        /* Rule-file rejections: drop the word unless the test passes */
+        REJECT_LONGER,
+        REJECT_SHORTER,
+        REJECT_UNLESS_LENGTH,
+        REJECT_CONTAINS,
+        REJECT_UNLESS_CONTAINS,
+        REJECT_UNLESS_FIRST,
+        REJECT_UNLESS_LAST,
+        REJECT_UNLESS_AT,
+        REJECT_UNLESS_COUNT
     }
 
 
@@ -104,6 +632,18 @@ public class bf_jcrypt {
     static final String UPPERCASE_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
 
 
+    /*
+    DES crypt only uses the first KEY_LENGTH characters of a password.
+    The rule engine tracks how many leading characters of each stage's
+    output can still reach that window (see outputWindows) and never
+    generates variants that differ only past it.
+    */
+    static final int KEY_LENGTH = 8;
+
+    /* Window of a stage whose whole output matters (e.g. before a REVERSE) */
+    static final int WHOLE_WORD = Integer.MAX_VALUE;
+
+
     /*
     Rule represents a sequence of operations.
     Multiple rules are combined into rule chains.
@@ -269,6 +809,44 @@ public class bf_jcrypt {
     };
 
 
+    /* Largest per-word expansion of a chain used for loopback */
+    static final long LOOPBACK_EXPANSION = 10;
+
+    /*
+    The cheap chains (case changes, single digits and symbols, leet),
+    used to run cracked passwords back against the remaining users.
+    */
+    static final Rule[][] LOOPBACK_CHAINS = cheapChains(LOOPBACK_EXPANSION);
+
+    static Rule[][] cheapChains(long maxExpansion) {
+        List<Rule[]> chains = new ArrayList<>();
+        for (Rule[] chain : RULE_CHAINS) {
+            if (estimateExpansion(chain, KEY_LENGTH) <= maxExpansion) chains.add(chain);
+        }
+        return chains.toArray(new Rule[0][]);
+    }
+
+
+    /* Run-wide counters (see metrics_jcrypt) */
+    static final metrics_jcrypt.Metrics METRICS = new metrics_jcrypt.Metrics();
+
+    /* Chain order and its history (see ChainScheduler) */
+    static final ChainScheduler SCHEDULER = new ChainScheduler();
+
+    /* Filters of already hashed keys, set up by main (see SeenFilter) */
+    static final SeenFilters SEEN = new SeenFilters();
+
+    /* Stream of results as they come in, started by main (see ResultSink) */
+    static final ResultSink RESULTS = new ResultSink();
+
+
+    /* A user is settled, cracked or not: counts it and streams its result */
+    static void userFinished(UserEntry user) {
+        METRICS.userFinished(user);
+        RESULTS.add(user);
+    }
+
+
     /*
     Loads password entries from a Unix-style password file.
     Extracts salt and name components.
@@ -282,268 +860,3699 @@ public class bf_jcrypt {
                 String[] parts = line.split(":");
                 if (parts.length < 2) continue;
 
-                UserEntry u = new UserEntry();
-                u.username = parts[0];
-                u.hash = parts[1];
-                u.salt = (u.hash != null && u.hash.length() >= 2) ? u.hash.substring(0, 2) : "";
-
+                String firstname = "";
+                String lastname = "";
                 if (parts.length > 4 && parts[4] != null && !parts[4].isBlank()) {
                     String[] nameParts = parts[4].split(" ");
-                    u.firstname = nameParts.length > 0 ? nameParts[0] : "";
-                    u.lastname = nameParts.length > 1 ? nameParts[1] : "";
-                } else {
-                    u.firstname = "";
-                    u.lastname = "";
+                    firstname = nameParts.length > 0 ? nameParts[0] : "";
+                    lastname = nameParts.length > 1 ? nameParts[1] : "";
                 }
 
-                users.add(u);
+                users.add(newUser(parts[0], parts[1], firstname, lastname));
             }
         }
         return users;
     }
 
-
-    /*
-    Loads dictionary words into memory.
-    */
-    static List<String> loadDictionary(String filename) throws Exception {
-        List<String> words = new ArrayList<>();
-
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (!line.isBlank()) {
-                    words.add(line.trim());
-                }
-            }
+    static UserEntry newUser(String username, String hash, String firstname, String lastname) {
+        UserEntry u = new UserEntry();
+        u.username = username;
+        u.hash = hash;
+        u.salt = (u.hash != null && u.hash.length() >= 2) ? u.hash.substring(0, 2) : "";
+        u.saltBits = jcrypt.saltBits(u.salt);
+        try {
+            u.hashBits = jcrypt.decode(u.hash);
+            u.hashValid = true;
+        } catch (IllegalArgumentException e) {
+            u.hashValid = false;
         }
-        return words;
+        u.firstname = firstname;
+        u.lastname = lastname;
+        return u;
     }
 
 
     /*
-    Extends dictionary with user-specific name variants.
+    Dictionary backed by a memory-mapped wordlist file.
+
+    The file is mapped read-only in pieces of 2^CHUNK_BITS bytes (one
+    MappedByteBuffer cannot pass 2 GB) and words are read straight out of
+    the mapping, so nothing proportional to the file is kept on the heap
+    and opening a wordlist costs the same whatever its size. Lines are
+    trimmed and blank ones skipped, as before. Words are decoded byte for
+    byte (ISO-8859-1), which is what crypt(3) sees: only the low 7 bits
+    of each character reach the DES key.
+
+    Words are addressed by position instead of by index, so there is no
+    line index to build: a word in the file is named by the byte offset
+    its line starts at, and the in-heap `extra` words (name variants)
+    follow at positions size .. size + extra.size() - 1. words(from, to)
+    returns the words that start inside [from, to), so a range can be
+    cut anywhere and every word still lands in exactly one half.
     */
-    static List<String> addNameDatatoDictionary(UserEntry user, List<String> dictionary) {
-        List<String> extended = new ArrayList<>(dictionary);
+    static class Wordlist {
+        static final int CHUNK_BITS = 30;
+        static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
 
-        extended.add(user.firstname);
-        extended.add(user.lastname);
-        extended.add(user.firstname + user.lastname);
-        extended.add(user.lastname + user.firstname);
-        extended.add(user.firstname.charAt(0) + user.lastname);
-        extended.add(user.firstname + user.lastname.charAt(0));
-        extended.add(user.lastname.charAt(0) + user.firstname);
-        extended.add(user.lastname + user.firstname.charAt(0));
+        /* Bytes read to estimate the average word length */
+        static final int SAMPLE_BYTES = 1 << 16;
 
-        return extended;
-    }
+        final MappedByteBuffer[] chunks;
+        final long size;
+        final List<String> extra;
 
+        Wordlist(MappedByteBuffer[] chunks, long size, List<String> extra) {
+            this.chunks = chunks;
+            this.size = size;
+            this.extra = extra;
+        }
 
-    /*
-    Applies a single operation to a list of inputs.
-    Some operations generate one result per input,
-    others branch heavily (e.g., charset insertion).
-    */
-    static List<String> applyOperationToList(List<String> inputs, Operation op) {
-        List<String> outputs = new ArrayList<>();
-        switch (op.code) {
-            case IDENTITY:
-                outputs.addAll(inputs);
-                break;
-            
-            case LOWERCASE_ALL:
-                for (String w : inputs) outputs.add(w.toLowerCase());
-                break;
+        static Wordlist map(String filename) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                long size = channel.size();
+                MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
 
-            case CAPITALIZE_FIRST:
-                for (String w : inputs) {
-                    if (w.length() > 0) outputs.add(Character.toUpperCase(w.charAt(0)) + w.substring(1));
-                    else outputs.add(w);
+                for (int i = 0; i < chunks.length; i++) {
+                    long offset = (long) i << CHUNK_BITS;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_MASK + 1, size - offset));
                 }
-                break;
+                return new Wordlist(chunks, size, new ArrayList<>());
+            }
+        }
 
-            case CAPITALIZE_ALL:
-                for (String w : inputs) outputs.add(w.toUpperCase());
-                break;
-            
-            case NCAPITALIZE:
-                for (String w : inputs) {
-                    if (w.length() > 0) {
-                        outputs.add(
-                            Character.toLowerCase(w.charAt(0)) +
-                            w.substring(1).toUpperCase()
-                        );
-                    }
-                }
-                break;
-            
-            case TOGGLE_CASE:
-                for (String w : inputs) {
-                    StringBuilder sb = new StringBuilder();
-                    boolean upper = true;
-
-                    for (char c : w.toCharArray()) {
-                        if (Character.isLetter(c)) {
-                            sb.append(
-                                upper ? Character.toUpperCase(c)
-                                    : Character.toLowerCase(c)
-                            );
-                            upper = !upper;
-                        } else {
-                            sb.append(c);
-                        }
-                    }
-                    outputs.add(sb.toString());
-                }
-                break;
+        /* No file, for modes that run without a dictionary */
+        static Wordlist empty() {
+            return new Wordlist(new MappedByteBuffer[0], 0, new ArrayList<>());
+        }
 
-            case REVERSE:
-                for (String w : inputs) outputs.add(new StringBuilder(w).reverse().toString());
-                break;
-            
-            case DUPLICATE:
-                for (String w : inputs) {
-                    outputs.add(w + w);
-                }
-                break;
-            
-            case REFLECT_FRONT:
-                for (String w : inputs) {
-                    String r = new StringBuilder(w).reverse().toString();
-                    outputs.add(w + r);
-                }
-                break;
-            
-            case REFLECT_BACK:
-                for (String w : inputs) {
-                    String r = new StringBuilder(w).reverse().toString();
-                    outputs.add(r + w);
-                }
-                break;
-            
-            case DELETE_FIRST:
-                for (String w : inputs) {
-                    if (w.length() > 0) {
-                        outputs.add(w.substring(1));
-                    }
-                }
-                break;
+        /* This wordlist followed by `words`, sharing the mapping */
+        Wordlist withWords(List<String> words) {
+            List<String> all = new ArrayList<>(extra);
+            all.addAll(words);
+            return new Wordlist(chunks, size, all);
+        }
 
-            case DELETE_LAST:
-                for (String w : inputs) {
-                    if (w.length() > 0) {
-                        outputs.add(w.substring(0, w.length() - 1));
-                    }
-                }
-                break;
+        /* End of the position range: file bytes plus extra words */
+        long positions() {
+            return size + extra.size();
+        }
 
-            case APPEND_CHARSET:
-                for (String w : inputs) {
-                    for (char c : op.strArg.toCharArray()) outputs.add(w + c);
-                }
-                break;
+        byte at(long pos) {
+            return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+        }
 
-            case PREPEND_CHARSET:
-                for (String w : inputs) {
-                    for (char c : op.strArg.toCharArray()) outputs.add(c + w);
-                }
-                break;
+        /* First line start at or after pos */
+        long lineStart(long pos) {
+            if (pos == 0) return 0;
 
-            case INSERT_CHARSET:
-                for (String w : inputs) {
-                        int len = w.length();
-                        for (int pos = 0; pos <= len; pos++) {
-                            for (char c : op.strArg.toCharArray()) {
-                                outputs.add(w.substring(0, pos) + c + w.substring(pos));
-                            }
-                        }
-                }
-                break;
-            
-            case REPLACE:
-                for (String w : inputs) {
-                    outputs.addAll(generateLeetVariants(w, op.charArg1, op.charArg2));
-                }
-                break;
+            long p = pos - 1;
+            while (p < size && at(p) != '\n') p++;
+            return p < size ? p + 1 : size;
+        }
 
-            default:
-                throw new IllegalStateException("Unknown opcode");
+        WordReader words(long from, long to) {
+            return new WordReader(this, from, to);
         }
-        return outputs;
-    }
 
+        WordReader words() {
+            return words(0, positions());
+        }
 
-    /*
-    Generates all variants of a word where certain characters are replaced by other certain characters.
-    Produces one variant per occurrence of the character to replace.
-    */
-    static List<String> generateLeetVariants(String word, char from, char to) {
-        List<String> variants = new ArrayList<>();
-        variants.add(word);
+        /* Estimated from the head of the file and the extra words */
+        int averageLength() {
+            WordReader sample = words(0, Math.min(size, SAMPLE_BYTES));
+            long total = 0;
+            long count = 0;
 
-        for (int i = 0; i < word.length(); i++) {
-            if (Character.toLowerCase(word.charAt(i)) == Character.toLowerCase(from)) {
-                StringBuilder sb = new StringBuilder(word);
-                sb.setCharAt(i, to);
-                variants.add(sb.toString());
+            for (String w; (w = sample.next()) != null; count++) total += w.length();
+            for (String w : extra) {
+                total += w.length();
+                count++;
             }
+            return count == 0 ? 0 : (int) (total / count);
         }
-
-        return variants;
     }
 
 
     /*
-    Applies a rule (sequence of operations) to a word.
-    Deduplicates results while preserving order.
+    Pull-based reader over the words of a Wordlist that start in one
+    position range; next() returns null at the end. Reuses one byte
+    buffer, so each word costs only its own short-lived String.
     */
-    static List<String> applyRule(String word, Rule rule) {
-        List<String> results = new ArrayList<>();
-        results.add(word);
+    static class WordReader {
+        final Wordlist list;
+        final long to;
+        long pos;
+        byte[] buffer = new byte[64];
 
-        for (Operation op: rule.operations) {
-            results = applyOperationToList(results, op);
+        WordReader(Wordlist list, long from, long to) {
+            this.list = list;
+            this.to = to;
+            this.pos = from < list.size ? list.lineStart(from) : from;
         }
 
-        return new ArrayList<>(new java.util.LinkedHashSet<>(results));
-    }
+        /* Position of the next word; a reader started here resumes exactly */
+        long position() {
+            return pos;
+        }
+
+        String next() {
+            while (pos < to) {
+                if (pos >= list.size) return list.extra.get((int) (pos++ - list.size));
+
+                String word = readLine();
+                if (word != null) return word;
+            }
+            return null;
+        }
+
+        /* Reads the line at `pos` and moves past it; null if it is blank */
+        String readLine() {
+            long end = pos;
+            while (end < list.size && list.at(end) != '\n') end++;
+
+            long start = pos;
+            pos = end < list.size ? end + 1 : list.size;
+
+            while (start < end && (list.at(start) & 0xff) <= ' ') start++;
+            while (end > start && (list.at(end - 1) & 0xff) <= ' ') end--;
+            if (start == end) return null;
+
+            int length = (int) (end - start);
+            if (buffer.length < length) buffer = new byte[Math.max(length, buffer.length * 2)];
+            for (int i = 0; i < length; i++) buffer[i] = list.at(start + i);
+
+            return new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+
+    /*
+    Maps the dictionary file (see Wordlist).
+    */
+    static Wordlist loadDictionary(String filename) throws Exception {
+        return Wordlist.map(filename);
+    }
+
+
+    /*
+    User-specific name variants.
+    */
+    static List<String> nameVariants(UserEntry user) {
+        List<String> extended = new ArrayList<>();
+
+        extended.add(user.firstname);
+        extended.add(user.lastname);
+        extended.add(user.firstname + user.lastname);
+        extended.add(user.lastname + user.firstname);
+        extended.add(user.firstname.charAt(0) + user.lastname);
+        extended.add(user.firstname + user.lastname.charAt(0));
+        extended.add(user.lastname.charAt(0) + user.firstname);
+        extended.add(user.lastname + user.firstname.charAt(0));
+
+        return extended;
+    }
+
+
+    /*
+    Extends dictionary with user-specific name variants.
+    */
+    static Wordlist addNameDatatoDictionary(UserEntry user, Wordlist dictionary) {
+        return dictionary.withWords(nameVariants(user));
+    }
+
+
+    /*
+    Number of leading input characters that can affect the first
+    `window` characters of an operation's output.
+    Never less than 1, so empty and non-empty words stay distinct.
+    */
+    static int inputWindow(Operation op, int window) {
+        if (window == WHOLE_WORD) return WHOLE_WORD;
+
+        switch (op.code) {
+            case REVERSE:
+            case REFLECT_BACK:
+                return WHOLE_WORD;
+            case PREPEND_CHARSET:
+                return Math.max(1, window - 1);
+            case DELETE_FIRST:
+            case DELETE_LAST:
+                return window + 1;
+            default:
+                return window;
+        }
+    }
+
+
+    /*
+    Flattens a chain into its operations and computes, for each one, the
+    window of its output that can still reach the final KEY_LENGTH
+    characters. Filled back to front: the last operation's window is
+    KEY_LENGTH, and each earlier one is the input window of the next.
+    */
+    static List<Operation> chainOperations(Rule... rules) {
+        List<Operation> ops = new ArrayList<>();
+        for (Rule rule : rules) ops.addAll(rule.operations);
+        return ops;
+    }
+
+    static int[] outputWindows(List<Operation> ops) {
+        int[] windows = new int[ops.size()];
+        int window = KEY_LENGTH;
+
+        for (int i = ops.size() - 1; i >= 0; i--) {
+            windows[i] = window;
+            window = inputWindow(ops.get(i), window);
+        }
+        return windows;
+    }
+
+
+    /*
+    Cuts a word down to the characters that can still matter.
+    */
+    static String truncate(String w, int window) {
+        return w.length() > window ? w.substring(0, window) : w;
+    }
+
+
+    /*
+    True for operations that turn one word into at most one word.
+    Runs of these are fused into a single MapStage.
+    */
+    static boolean isMapOperation(Operation op) {
+        switch (op.code) {
+            case APPEND_CHARSET:
+            case PREPEND_CHARSET:
+            case INSERT_CHARSET:
+            case REPLACE:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+
+    /*
+    Applies one single-output operation to a word, honouring its window.
+    Returns null when the operation drops the word (e.g. deleting from
+    an empty word).
+    */
+    static String applyMapOperation(Operation op, String w, int window) {
+        switch (op.code) {
+            case IDENTITY:
+                return w;
+
+            case LOWERCASE_ALL:
+                return w.toLowerCase();
+
+            case CAPITALIZE_FIRST:
+                return w.length() > 0 ? Character.toUpperCase(w.charAt(0)) + w.substring(1) : w;
+
+            case CAPITALIZE_ALL:
+                return w.toUpperCase();
+
+            case NCAPITALIZE:
+                if (w.length() == 0) return null;
+                return Character.toLowerCase(w.charAt(0)) + w.substring(1).toUpperCase();
+
+            case TOGGLE_CASE: {
+                StringBuilder sb = new StringBuilder();
+                boolean upper = true;
+
+                for (char c : w.toCharArray()) {
+                    if (Character.isLetter(c)) {
+                        sb.append(
+                            upper ? Character.toUpperCase(c)
+                                : Character.toLowerCase(c)
+                        );
+                        upper = !upper;
+                    } else {
+                        sb.append(c);
+                    }
+                }
+                return sb.toString();
+            }
+
+            case REVERSE:
+                return new StringBuilder(w).reverse().toString();
+
+            case DUPLICATE:
+                return w.length() >= window ? w : w + w;
+
+            case REFLECT_FRONT:
+                return w.length() >= window ? w : w + new StringBuilder(w).reverse();
+
+            case REFLECT_BACK:
+                return new StringBuilder(w).reverse() + w;
+
+            case DELETE_FIRST:
+                return w.length() > 0 ? w.substring(1) : null;
+
+            case DELETE_LAST:
+                return w.length() > 0 ? w.substring(0, w.length() - 1) : null;
+
+            default:
+                throw new IllegalStateException("Not a single-output opcode: " + op.code);
+        }
+    }
+
+
+    /*
+    One compiled step of a rule chain.
+
+    A chain is compiled once into a short list of stages: each run of
+    single-output operations is folded into the stage that follows it
+    (`pre`), consecutive appends or prepends become one enumerator over
+    all their charsets, and only what is left is a stage of its own.
+    For example {LOWERCASE_ALL, APPEND_DIGIT, APPEND_DIGIT} is a single
+    SuffixStage that lowercases once per word and then counts 00..99
+    into a reused buffer.
+
+    load() takes one input word and returns how many variants it has;
+    variant(i) builds the i-th one, or null if it repeats an earlier one.
+    Outputs are cut to the stage's window. Stages keep per-word state,
+    so every cursor compiles its own.
+    */
+    static abstract class Stage {
+        /* Fused single-output operations applied before this stage */
+        Operation[] pre = new Operation[0];
+        int[] preWindows = new int[0];
+
+        /* Output window of the stage */
+        int window;
+
+        /* Runs `pre` on a word; null if the word was dropped */
+        String prepare(String w) {
+            for (int i = 0; i < pre.length; i++) {
+                w = applyMapOperation(pre[i], w, preWindows[i]);
+                if (w == null) return null;
+                w = truncate(w, preWindows[i]);
+            }
+            return w;
+        }
+
+        abstract int load(String w);
+
+        abstract String variant(int i);
+    }
+
+
+    /*
+    A run of single-output operations with nothing after it.
+    */
+    static class MapStage extends Stage {
+        String current;
+
+        @Override
+        int load(String w) {
+            current = prepare(w);
+            return current == null ? 0 : 1;
+        }
+
+        @Override
+        String variant(int i) {
+            return truncate(current, window);
+        }
+    }
+
+
+    /*
+    Enumerates every combination of a list of charsets written into
+    fixed slots of a reused buffer, like an odometer: the slot listed
+    last varies fastest, and stepping to the next index only rewrites
+    the slots that change. Used for runs of appends and prepends.
+    */
+    static abstract class CharsetStage extends Stage {
+        char[][] charsets;
+        char[] buffer = new char[0];
+
+        /* Buffer slot of each visible charset, and that charset */
+        int[] slots = new int[0];
+        char[][] visible = new char[0][];
+        int[] digits = new int[0];
+        int count;
+        int used;
+        int next;
+
+        /* Sets up `count`, `used`, `slots`, `visible` and the fixed part of `buffer` */
+        abstract void layout(String w);
+
+        @Override
+        int load(String w) {
+            w = prepare(w);
+            if (w == null) return 0;
+
+            if (slots.length < charsets.length) {
+                slots = new int[charsets.length];
+                visible = new char[charsets.length][];
+                digits = new int[charsets.length];
+            }
+            layout(w);
+
+            int variants = 1;
+            for (int k = 0; k < count; k++) {
+                variants *= visible[k].length;
+                digits[k] = 0;
+                buffer[slots[k]] = visible[k][0];
+            }
+            next = 0;
+            return variants;
+        }
+
+        @Override
+        String variant(int i) {
+            int n = count;
+
+            if (i != next) {
+                for (int k = n - 1; k >= 0; k--) {
+                    digits[k] = i % visible[k].length;
+                    buffer[slots[k]] = visible[k][digits[k]];
+                    i /= visible[k].length;
+                }
+            } else if (i > 0) {
+                for (int k = n - 1; k >= 0; k--) {
+                    if (++digits[k] < visible[k].length) {
+                        buffer[slots[k]] = visible[k][digits[k]];
+                        break;
+                    }
+                    digits[k] = 0;
+                    buffer[slots[k]] = visible[k][0];
+                }
+            }
+            next = i + 1;
+            return new String(buffer, 0, used);
+        }
+    }
+
+
+    /*
+    One or more consecutive APPEND_CHARSET operations.
+    Only the appends that land inside the window are enumerated,
+    the last charset varying fastest.
+    */
+    static class SuffixStage extends CharsetStage {
+
+        @Override
+        void layout(String w) {
+            int length = w.length();
+            count = Math.max(0, Math.min(charsets.length, window - length));
+            used = length + count;
+            if (buffer.length < used) buffer = new char[used];
+            w.getChars(0, length, buffer, 0);
+
+            for (int k = 0; k < count; k++) {
+                slots[k] = length + k;
+                visible[k] = charsets[k];
+            }
+        }
+    }
+
+
+    /*
+    One or more consecutive PREPEND_CHARSET operations.
+    The last prepend ends up first and varies slowest; prepends that
+    are pushed out of the window entirely are not enumerated.
+    */
+    static class PrefixStage extends CharsetStage {
+
+        @Override
+        void layout(String w) {
+            count = Math.min(charsets.length, window);
+            int length = Math.min(w.length(), window - count);
+            used = count + length;
+            if (buffer.length < used) buffer = new char[used];
+            w.getChars(0, length, buffer, count);
+
+            /* buffer[0] holds the last prepend, buffer[count - 1] the earliest visible one */
+            for (int k = 0; k < count; k++) {
+                slots[k] = k;
+                visible[k] = charsets[charsets.length - 1 - k];
+            }
+        }
+    }
+
+
+    /*
+    INSERT_CHARSET: every position inside the window, then every
+    character; ends with the word itself when it already fills the window.
+    */
+    static class InsertStage extends Stage {
+        char[] charset;
+        String current;
+        int slots;
+
+        @Override
+        int load(String w) {
+            current = prepare(w);
+            if (current == null) return 0;
+
+            slots = Math.min(current.length(), window - 1) + 1;
+            return slots * charset.length + (current.length() >= window ? 1 : 0);
+        }
+
+        @Override
+        String variant(int i) {
+            int pos = i / charset.length;
+            if (pos >= slots) return truncate(current, window);
+
+            char c = charset[i % charset.length];
+            if (pos > 0 && current.charAt(pos - 1) == c) return null;
+
+            return truncate(current.substring(0, pos) + c + current.substring(pos), window);
+        }
+    }
+
+
+    /*
+    REPLACE (leetspeak): the word itself, then one variant per
+    occurrence of the character inside the window.
+    */
+    static class ReplaceStage extends Stage {
+        char from;
+        char to;
+        String current;
+        int[] positions = new int[KEY_LENGTH];
+        int found;
+
+        @Override
+        int load(String w) {
+            current = prepare(w);
+            if (current == null) return 0;
+
+            int end = Math.min(current.length(), window);
+            if (positions.length < end) positions = new int[end];
+
+            found = 0;
+            char lower = Character.toLowerCase(from);
+            for (int i = 0; i < end; i++) {
+                if (Character.toLowerCase(current.charAt(i)) == lower) positions[found++] = i;
+            }
+            return 1 + found;
+        }
+
+        @Override
+        String variant(int i) {
+            if (i == 0) return truncate(current, window);
+
+            char[] chars = current.toCharArray();
+            chars[positions[i - 1]] = to;
+            return truncate(new String(chars), window);
+        }
+    }
+
+
+    /*
+    Compiles a chain into stages (see Stage).
+    */
+    static Stage[] compileChain(Rule... chain) {
+        List<Operation> ops = chainOperations(chain);
+        int[] windows = outputWindows(ops);
+        List<Stage> stages = new ArrayList<>();
+
+        int i = 0;
+        while (i < ops.size()) {
+            int preStart = i;
+            while (i < ops.size() && isMapOperation(ops.get(i))) i++;
+
+            Stage stage;
+            int end;
+
+            if (i == ops.size()) {
+                stage = new MapStage();
+                end = i;
+                stage.window = windows[i - 1];
+            } else {
+                Operation op = ops.get(i);
+                end = i + 1;
+                if (op.code == OpCode.APPEND_CHARSET || op.code == OpCode.PREPEND_CHARSET) {
+                    while (end < ops.size() && ops.get(end).code == op.code) end++;
+                }
+                stage = expansionStage(ops.subList(i, end));
+                stage.window = windows[end - 1];
+            }
+
+            int preCount = (stage instanceof MapStage ? end : i) - preStart;
+            stage.pre = ops.subList(preStart, preStart + preCount).toArray(new Operation[0]);
+            stage.preWindows = java.util.Arrays.copyOfRange(windows, preStart, preStart + preCount);
+
+            stages.add(stage);
+            i = end;
+        }
+        return stages.toArray(new Stage[0]);
+    }
+
+
+    /*
+    The stage for a run of expansion operations: consecutive appends or
+    prepends, or a single insert or replace. The caller sets the window.
+    */
+    static Stage expansionStage(List<Operation> run) {
+        Operation op = run.get(0);
+
+        switch (op.code) {
+            case APPEND_CHARSET:
+            case PREPEND_CHARSET: {
+                char[][] charsets = new char[run.size()][];
+                for (int k = 0; k < run.size(); k++) charsets[k] = run.get(k).strArg.toCharArray();
+
+                if (op.code == OpCode.APPEND_CHARSET) {
+                    SuffixStage suffix = new SuffixStage();
+                    suffix.charsets = charsets;
+                    return suffix;
+                }
+                PrefixStage prefix = new PrefixStage();
+                prefix.charsets = charsets;
+                return prefix;
+            }
+            case INSERT_CHARSET: {
+                InsertStage insert = new InsertStage();
+                insert.charset = op.strArg.toCharArray();
+                return insert;
+            }
+            case REPLACE: {
+                ReplaceStage replace = new ReplaceStage();
+                replace.from = op.charArg1;
+                replace.to = op.charArg2;
+                return replace;
+            }
+            default:
+                throw new IllegalStateException("Unknown opcode");
+        }
+    }
+
+
+    /*
+    Several rule chains merged into a prefix tree, for running them all
+    over the same words (see loopback, applyRuleChains). Chains that
+    start with the same operations share those nodes: under
+    {LOWERCASE_ALL, APPEND_DIGIT} and {LOWERCASE_ALL, APPEND_DIGIT,
+    APPEND_DIGIT} a word is lowercased once and gets each first digit
+    once. Every output of a node goes to the chains that end there and
+    then on to its children.
+
+    A node is one operation compiled as a stage of its own, at the window
+    it has in its chains (see outputWindows). Nodes are only shared when
+    the windows agree too, so each chain yields the same candidates as
+    its CandidateCursor, interleaved with the other chains and, for
+    prepend runs, in another order.
+    Operations are compared by identity, which works because chains take
+    them from the Rule constants. Expansion is depth first, so a node's
+    output is kept only while its subtree runs. Stages keep per-word
+    state, so every thread builds its own tree.
+    */
+    static class ChainTree {
+        static class Node {
+            final Operation op;
+            final int window;
+            final Stage stage;
+            final List<Node> children = new ArrayList<>();
+
+            /* Indexes of the chains that end here */
+            int[] chains = new int[0];
+
+            Node(Operation op, int window) {
+                this.op = op;
+                this.window = window;
+                if (isMapOperation(op)) {
+                    stage = new MapStage();
+                    stage.pre = new Operation[] { op };
+                    stage.preWindows = new int[] { window };
+                } else {
+                    stage = expansionStage(List.of(op));
+                }
+                stage.window = window;
+            }
+        }
+
+        /* Takes each candidate with its chain's index; false stops the expansion */
+        interface Sink {
+            boolean accept(int chain, String candidate);
+        }
+
+        final List<Node> roots = new ArrayList<>();
+
+        /* Chains without operations, which yield the word itself */
+        int[] empty = new int[0];
+
+        int nodes;
+
+        ChainTree(Rule[]... chains) {
+            for (int c = 0; c < chains.length; c++) {
+                List<Operation> ops = chainOperations(chains[c]);
+                int[] windows = outputWindows(ops);
+
+                if (ops.isEmpty()) {
+                    empty = append(empty, c);
+                    continue;
+                }
+                List<Node> level = roots;
+                Node node = null;
+                for (int i = 0; i < ops.size(); i++) {
+                    node = child(level, ops.get(i), windows[i]);
+                    level = node.children;
+                }
+                node.chains = append(node.chains, c);
+            }
+        }
+
+        Node child(List<Node> level, Operation op, int window) {
+            for (Node node : level) {
+                if (node.op == op && node.window == window) return node;
+            }
+            Node node = new Node(op, window);
+            level.add(node);
+            nodes++;
+            return node;
+        }
+
+        static int[] append(int[] a, int x) {
+            int[] b = Arrays.copyOf(a, a.length + 1);
+            b[a.length] = x;
+            return b;
+        }
+
+        /* Runs every chain over one word; false if the sink stopped it */
+        boolean expand(String word, Sink sink) {
+            for (int c : empty) {
+                if (!sink.accept(c, truncate(word, KEY_LENGTH))) return false;
+            }
+            for (Node root : roots) {
+                if (!expand(root, truncate(word, inputWindow(root.op, root.window)), sink)) return false;
+            }
+            return true;
+        }
+
+        boolean expand(Node node, String input, Sink sink) {
+            int count = node.stage.load(input);
+
+            for (int i = 0; i < count; i++) {
+                String v = node.stage.variant(i);
+                if (v == null) continue;
+
+                for (int c : node.chains) {
+                    if (!sink.accept(c, v)) return false;
+                }
+                for (Node child : node.children) {
+                    if (!expand(child, v, sink)) return false;
+                }
+            }
+            return true;
+        }
+    }
+
+
+    /*
+    Pull-based generator for one rule chain.
+
+    reset() loads a dictionary word and next() returns its candidates one
+    at a time, depth first through the chain's compiled stages, until it
+    returns null. Only one word per stage is held, so memory stays bounded
+    however much a chain expands, and a consumer that finds a match simply
+    stops pulling. One cursor per chain per thread; reusable across words.
+
+    Candidates are canonical DES keys (see KEY_LENGTH). Unlike the list
+    form, there is no set-based dedupe between stages; the only repeats
+    that remain are rare coincidences (e.g. a case change undoing a
+    leet replacement), which cost one extra hash each.
+    */
+    static class CandidateCursor {
+        final Stage[] stages;
+        final int inputWindow;
+
+        final int[] index;
+        final int[] count;
+        int depth;
+        String single;
+
+        /* Candidates returned and repeats skipped, drained by Metrics.record */
+        long generated;
+        long skipped;
+
+        CandidateCursor(Rule... chain) {
+            List<Operation> ops = chainOperations(chain);
+            this.stages = compileChain(chain);
+            this.inputWindow = ops.isEmpty() ? KEY_LENGTH : inputWindow(ops.get(0), outputWindows(ops)[0]);
+            this.index = new int[stages.length];
+            this.count = new int[stages.length];
+        }
+
+        void reset(String word) {
+            word = truncate(word, inputWindow);
+
+            if (stages.length == 0) {
+                single = word;
+                depth = -1;
+                return;
+            }
+            depth = 0;
+            index[0] = 0;
+            count[0] = stages[0].load(word);
+        }
+
+        String next() {
+            if (single != null) {
+                String w = single;
+                single = null;
+                generated++;
+                return w;
+            }
+
+            int last = stages.length - 1;
+
+            while (depth >= 0) {
+                if (index[depth] >= count[depth]) {
+                    depth--;
+                    continue;
+                }
+
+                String v = stages[depth].variant(index[depth]++);
+                if (v == null) {
+                    skipped++;
+                    continue;
+                }
+
+                if (depth == last) {
+                    generated++;
+                    return v;
+                }
+
+                depth++;
+                index[depth] = 0;
+                count[depth] = stages[depth].load(v);
+            }
+            return null;
+        }
+    }
+
+
+    /*
+    Applies a rule (sequence of operations) to a word.
+    Deduplicates results while preserving order.
+    */
+    static List<String> applyRule(String word, Rule rule) {
+        return applyRuleChain(word, rule);
+    }
+
+
+    /*
+    Applies an ordered chain of rules to a base word and collects every
+    candidate, deduplicated in generation order. The cracking loops pull
+    from a CandidateCursor directly; this is for callers that want the
+    whole list.
+    */
+    static List<String> applyRuleChain(String word, Rule... rules) {
+        CandidateCursor cursor = new CandidateCursor(rules);
+        LinkedHashSet<String> results = new LinkedHashSet<>();
+
+        cursor.reset(word);
+        for (String v; (v = cursor.next()) != null; ) {
+            results.add(v);
+        }
+        return new ArrayList<>(results);
+    }
+
+
+    /*
+    applyRuleChain for several chains at once, through a ChainTree, so
+    the operations they start with in common run once. Returns one list
+    per chain, in the order given.
+    */
+    static List<List<String>> applyRuleChains(String word, Rule[]... chains) {
+        List<LinkedHashSet<String>> sets = new ArrayList<>();
+        for (int c = 0; c < chains.length; c++) sets.add(new LinkedHashSet<>());
+
+        new ChainTree(chains).expand(word, (chain, v) -> sets.get(chain).add(v) || true);
+
+        List<List<String>> results = new ArrayList<>();
+        for (LinkedHashSet<String> set : sets) results.add(new ArrayList<>(set));
+        return results;
+    }
+
+
+    /*
+    Writes a single user's result line and prints a concise console message.
+
+    Format written to results file:
+      username:password_or_<not found>:time_seconds
+    */
+    private static void writeUserResult(BufferedWriter resultWriter, String username, String foundPassword, double userSeconds) throws Exception {
+        if (foundPassword != null) {
+            resultWriter.write(username + ":" + foundPassword + ":" + String.format("%.3f", userSeconds));
+            resultWriter.newLine();
+            System.out.println("Cracked " + username + " in " + String.format("%.3f", userSeconds) + "s: " + foundPassword);
+        } else {
+            resultWriter.write(username + ":<not found>:" + String.format("%.3f", userSeconds));
+            resultWriter.newLine();
+            System.out.println("Password not found for user: " + username + " (elapsed " + String.format("%.3f", userSeconds) + "s)");
+        }
+    }
+
+
+    /*
+    Extends dictionary with the name variants of every user.
+    Used by the candidate-major mode, where one shared word list
+    is run against all users at once. Duplicate variants are dropped;
+    the mapped words themselves are not deduplicated, since that would
+    need the whole wordlist on the heap.
+    */
+    static Wordlist addNameDatatoDictionary(List<UserEntry> users, Wordlist dictionary) {
+        LinkedHashSet<String> variants = new LinkedHashSet<>();
+
+        for (UserEntry user : users) {
+            variants.addAll(nameVariants(user));
+        }
+        return dictionary.withWords(new ArrayList<>(variants));
+    }
+
+
+    /*
+    Loopback: runs known plaintexts through LOOPBACK_CHAINS against the
+    users that are still uncracked, hashing each candidate once per salt.
+    Users reuse and lightly vary passwords, so this finds repeats long
+    before the dictionary would. Matches go to onCrack, which is expected
+    to add them to the pot; their plaintexts are then looped back in turn
+    until nothing new turns up. A match's `seconds` is the time of the
+    loopback call so far, which onCrack may replace with its mode's own
+    measure.
+    */
+    static void loopback(Potfile pot, Collection<String> words, List<UserEntry> users, String engine,
+                         BiConsumer<UserEntry, String> onCrack) {
+        long start = System.nanoTime();
+
+        while (!words.isEmpty()) {
+            List<UserEntry> uncracked = new ArrayList<>();
+            for (UserEntry user : users) {
+                if (user.password == null) uncracked.add(user);
+            }
+
+            List<SaltMatcher> active = new ArrayList<>();
+            for (SaltGroup group : groupBySalt(uncracked).values()) {
+                active.add(SaltMatcher.create(engine, group, (user, password) -> {
+                    user.seconds = (System.nanoTime() - start) / 1e9;
+                    user.crackedBy = "loopback";
+                    onCrack.accept(user, password);
+                }));
+            }
+
+            /* Word-major: each word runs through every cheap chain in one pass over the tree */
+            ChainTree tree = new ChainTree(LOOPBACK_CHAINS);
+            for (String word : words) {
+                if (active.isEmpty()) break;
+
+                tree.expand(word, (chain, candidate) -> {
+                    METRICS.loopbackHashed.add(active.size());
+                    for (int g = 0; g < active.size(); g++) {
+                        active.get(g).offer(candidate);
+                        if (active.get(g).done()) active.remove(g--);
+                    }
+                    return !active.isEmpty();
+                });
+            }
+            for (SaltMatcher matcher : active) matcher.flush();
+
+            words = pot.takeFresh();
+        }
+    }
+
+
+    /*
+    Candidates laid out over units [0, size()), so any slice of the range
+    can be enumerated on its own, by any thread (see SourceCracker). A
+    unit is one candidate of a Mask, and one dictionary position of a
+    RuleSource (rules_jcrypt) or ChainSource.
+    */
+    interface CandidateSource {
+        long size();
+
+        /* Average candidates per unit, for sizing leaf tasks */
+        double candidatesPerUnit();
+
+        /* Enumerates the candidates of units [from, to) */
+        Enumerator open(long from, long to);
+
+        /*
+        Writes each candidate into `key`, which it keeps reusing, and
+        returns its length, or -1 after the last one.
+        */
+        abstract class Enumerator {
+            char[] key;
+
+            abstract int next();
+        }
+    }
+
+
+    /*
+    A brute-force mask: one charset per password position, for example
+    "?u?l?l?l?d?d" for a capitalised 4-letter word and two digits.
+
+      ?l ?u ?d ?s   LOWERCASE_CHARS, UPPERCASE_CHARS, DIGITS, SPECIALS
+      ?a            all four
+      ?1 .. ?4      custom charsets (--charset1 .. --charset4), which may
+                    use the placeholders above
+      ??            a literal '?'; any other character stands for itself
+
+    Candidates are numbered 0 .. keyspace()-1 like an odometer with the
+    last position varying fastest, so an index range is a slice of the
+    keyspace that can be handed to any thread, and neighbouring
+    candidates share all but their last few characters, which is the
+    part of the key schedule KeySchedule has to redo.
+    */
+    static class Mask implements CandidateSource {
+        final String text;
+        final char[][] charsets;
+
+        Mask(String text, char[][] charsets) {
+            this.text = text;
+            this.charsets = charsets;
+        }
+
+        static Mask parse(String text, String[] custom) {
+            List<char[]> positions = new ArrayList<>();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c != '?') {
+                    positions.add(new char[] { c });
+                    continue;
+                }
+                if (++i >= text.length()) throw new IllegalArgumentException("mask ends in '?'");
+
+                char p = text.charAt(i);
+                if (p >= '1' && p <= '4') {
+                    String charset = custom[p - '1'];
+                    if (charset == null) throw new IllegalArgumentException("?" + p + " used without --charset" + p);
+                    positions.add(expand(charset));
+                } else {
+                    positions.add(expand("?" + p));
+                }
+            }
+            if (positions.isEmpty()) throw new IllegalArgumentException("empty mask");
+            if (positions.size() > KEY_LENGTH) {
+                throw new IllegalArgumentException("mask is longer than the " + KEY_LENGTH + " characters DES uses");
+            }
+            return new Mask(text, positions.toArray(new char[0][]));
+        }
+
+        /* Charset text with its placeholders expanded, each character once */
+        static char[] expand(String charset) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < charset.length(); i++) {
+                String chars;
+                char c = charset.charAt(i);
+                if (c != '?' || i + 1 >= charset.length()) {
+                    chars = String.valueOf(c);
+                } else {
+                    char p = charset.charAt(++i);
+                    switch (p) {
+                        case 'l': chars = LOWERCASE_CHARS; break;
+                        case 'u': chars = UPPERCASE_CHARS; break;
+                        case 'd': chars = DIGITS; break;
+                        case 's': chars = SPECIALS; break;
+                        case 'a': chars = LOWERCASE_CHARS + UPPERCASE_CHARS + DIGITS + SPECIALS; break;
+                        case '?': chars = "?"; break;
+                        default: throw new IllegalArgumentException("unknown placeholder ?" + p);
+                    }
+                }
+                for (char x : chars.toCharArray()) {
+                    if (sb.indexOf(String.valueOf(x)) < 0) sb.append(x);
+                }
+            }
+            return sb.toString().toCharArray();
+        }
+
+        int length() {
+            return charsets.length;
+        }
+
+        long keyspace() {
+            long n = 1;
+            for (char[] charset : charsets) n = Math.multiplyExact(n, charset.length);
+            return n;
+        }
+
+        /* Candidate `index` into key, with its odometer digits */
+        void decode(long index, int[] digits, char[] key) {
+            for (int k = charsets.length - 1; k >= 0; k--) {
+                digits[k] = (int) (index % charsets[k].length);
+                key[k] = charsets[k][digits[k]];
+                index /= charsets[k].length;
+            }
+        }
+
+        /* Steps key to the next candidate; false after the last one */
+        boolean increment(int[] digits, char[] key) {
+            for (int k = charsets.length - 1; k >= 0; k--) {
+                if (++digits[k] < charsets[k].length) {
+                    key[k] = charsets[k][digits[k]];
+                    return true;
+                }
+                digits[k] = 0;
+                key[k] = charsets[k][0];
+            }
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return keyspace();
+        }
+
+        @Override
+        public double candidatesPerUnit() {
+            return 1;
+        }
+
+        @Override
+        public Enumerator open(long from, long to) {
+            int[] digits = new int[charsets.length];
+            char[] start = new char[charsets.length];
+            decode(from, digits, start);
+
+            return new Enumerator() {
+                long index = from;
+
+                {
+                    key = start;
+                }
+
+                @Override
+                int next() {
+                    if (index >= to) return -1;
+                    if (index++ > from) increment(digits, key);
+                    return key.length;
+                }
+            };
+        }
+    }
+
+
+    /*
+    The built-in RULE_CHAINS as a CandidateSource, for distributed runs
+    (see dist_jcrypt). With P = dictionary.positions(), unit c * P + p is
+    dictionary position p under chain c, so a unit range is a (chain,
+    dictionary range) slice that may run over into the next chain.
+    Chains go in RULE_CHAINS order: the ChainScheduler's history belongs
+    to one process and is not consulted here.
+    */
+    static class ChainSource implements CandidateSource {
+        final Wordlist dictionary;
+
+        ChainSource(Wordlist dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public long size() {
+            return RULE_CHAINS.length * dictionary.positions();
+        }
+
+        @Override
+        public double candidatesPerUnit() {
+            int wordLength = dictionary.averageLength();
+            double total = 0;
+
+            for (Rule[] chain : RULE_CHAINS) total += estimateExpansion(chain, wordLength);
+            return total / RULE_CHAINS.length / (wordLength + 1);
+        }
+
+        @Override
+        public Enumerator open(long from, long to) {
+            long positions = dictionary.positions();
+
+            return new Enumerator() {
+                int chain = positions == 0 ? RULE_CHAINS.length : (int) (from / positions);
+                WordReader reader;
+                CandidateCursor cursor;
+                boolean loaded;
+
+                {
+                    key = new char[KEY_LENGTH];
+                }
+
+                @Override
+                int next() {
+                    while (true) {
+                        if (loaded) {
+                            String v = cursor.next();
+                            if (v != null) {
+                                int length = Math.min(v.length(), KEY_LENGTH);
+                                v.getChars(0, length, key, 0);
+                                return length;
+                            }
+                            loaded = false;
+                        }
+
+                        if (reader == null) {
+                            long base = chain * positions;
+                            if (chain >= RULE_CHAINS.length || base >= to) return -1;
+
+                            reader = dictionary.words(Math.max(from, base) - base, Math.min(to, base + positions) - base);
+                            cursor = new CandidateCursor(RULE_CHAINS[chain]);
+                        }
+
+                        String w = reader.next();
+                        if (w == null) {
+                            reader = null;
+                            chain++;
+                            continue;
+                        }
+                        cursor.reset(w);
+                        loaded = true;
+                    }
+                }
+            };
+        }
+    }
+
+
+    /*
+    Runs a CandidateSource (--mask, --rules) against every uncracked
+    user, each candidate hashed once per salt as in candidate-major mode,
+    on a fork-join pool.
+
+    The source's range is split the way ShardTask splits the dictionary,
+    in halves down to about TASK_HASHES hashes per leaf. A leaf builds its
+    own matchers over detached copies of the users still uncracked when
+    it starts and hands cracks back through crack(), so leaves share
+    nothing while they hash. For checkpoints the finished leaf ranges are
+    kept in Intervals, and a restored run skips every subtree they cover.
+    */
+    static class SourceCracker {
+        /* Target number of crypt() calls per leaf task, a fraction of a second */
+        static final long TASK_HASHES = 1 << 16;
+
+        final CandidateSource source;
+        final List<UserEntry> users;
+        final String engine;
+        final Potfile pot;
+        final ForkJoinPool pool;
+
+        /* Leaf size in units, set by run() */
+        long grain;
+
+        /* crackedBy of the users this cracks */
+        String method = "source";
+
+        /* Checkpoint state, guarded by this */
+        Intervals completed = new Intervals();
+        double restoredSeconds;
+        long start;
+        int remaining;
+
+        SourceCracker(CandidateSource source, List<UserEntry> users, String engine, Potfile pot, int threads) {
+            this.source = source;
+            this.users = users;
+            this.engine = engine;
+            this.pot = pot;
+            this.pool = new ForkJoinPool(threads);
+        }
+
+        synchronized boolean done() {
+            return remaining == 0;
+        }
+
+        synchronized boolean covered(long from, long to) {
+            return completed.covers(from, to);
+        }
+
+        synchronized void complete(long from, long to) {
+            completed.add(from, to);
+        }
+
+        synchronized double elapsed() {
+            return restoredSeconds + (System.nanoTime() - start) / 1e9;
+        }
+
+        /* False if the user was already cracked */
+        synchronized boolean crack(UserEntry user, String password) {
+            if (user.password != null) return false;
+
+            user.password = password;
+            user.seconds = elapsed();
+            user.crackedBy = method;
+            remaining--;
+            pot.add(user, password);
+            userFinished(user);
+            System.out.println("Cracked " + user.username + ": " + password);
+            return true;
+        }
+
+        /* Finished users and the covered ranges (see Session) */
+        synchronized Properties save() {
+            Properties state = new Properties();
+            for (int i = 0; i < users.size(); i++) {
+                if (users.get(i).password != null) Session.putUser(state, i, users.get(i));
+            }
+            state.setProperty("ranges", completed.toString());
+            state.setProperty("elapsed", String.valueOf(elapsed()));
+            return state;
+        }
+
+        void restore(Properties state) {
+            for (int i = 0; i < users.size(); i++) Session.getUser(state, i, users.get(i));
+            completed = Intervals.parse(state.getProperty("ranges", ""));
+            restoredSeconds = Double.parseDouble(state.getProperty("elapsed", "0"));
+        }
+
+        /* Runs the whole source; uncracked users get the total time */
+        void run() {
+            prepare();
+            run(0, source.size());
+            pool.shutdown();
+            finish();
+        }
+
+        void prepare() {
+            int uncracked = 0;
+            for (UserEntry user : users) {
+                if (user.password == null) uncracked++;
+            }
+            /* From all users, not `uncracked`: a restore has to rebuild the same tree */
+            double perUnit = Math.max(1e-9, source.candidatesPerUnit()) * Math.max(1, groupBySalt(users).size());
+            grain = Math.max(1, (long) (TASK_HASHES / perUnit));
+
+            synchronized (this) {
+                start = System.nanoTime();
+                remaining = uncracked;
+            }
+        }
+
+        void run(long from, long to) {
+            pool.invoke(new SourceTask(this, from, to));
+        }
+
+        void finish() {
+            double total = elapsed();
+            for (UserEntry user : users) {
+                if (user.password == null) {
+                    user.seconds = total;
+                    userFinished(user);
+                }
+            }
+        }
+
+        static class SourceTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            final SourceCracker cracker;
+            final long from;
+            final long to;
+
+            SourceTask(SourceCracker cracker, long from, long to) {
+                this.cracker = cracker;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (cracker.done() || cracker.covered(from, to)) return;
+
+                if (to - from > cracker.grain) {
+                    long mid = (from + to) >>> 1;
+                    invokeAll(new SourceTask(cracker, from, mid), new SourceTask(cracker, mid, to));
+                    return;
+                }
+
+                Map<UserEntry, UserEntry> owners = new HashMap<>();
+                List<UserEntry> targets = new ArrayList<>();
+                synchronized (cracker) {
+                    for (UserEntry user : cracker.users) {
+                        if (user.password != null) continue;
+                        UserEntry copy = user.copy();
+                        owners.put(copy, user);
+                        targets.add(copy);
+                    }
+                }
+
+                List<SaltMatcher> active = new ArrayList<>();
+                for (SaltGroup group : groupBySalt(targets).values()) {
+                    active.add(SaltMatcher.create(cracker.engine, group,
+                        (copy, password) -> cracker.crack(owners.get(copy), password)));
+                }
+
+                CandidateSource.Enumerator candidates = cracker.source.open(from, to);
+                long hashed = 0;
+
+                for (int length; !active.isEmpty() && (length = candidates.next()) >= 0; ) {
+                    hashed += active.size();
+                    for (int g = 0; g < active.size(); g++) {
+                        active.get(g).offer(candidates.key, length);
+                        if (active.get(g).done()) active.remove(g--);
+                    }
+                }
+                for (SaltMatcher matcher : active) matcher.flush();
+                METRICS.sourceHashed.add(hashed);
+
+                cracker.complete(from, to);
+            }
+        }
+    }
+
+
+    /*
+    Groups users by salt, preserving the order of first appearance.
+    */
+    static Map<String, SaltGroup> groupBySalt(List<UserEntry> users) {
+        Map<String, SaltGroup> groups = new LinkedHashMap<>();
+
+        for (UserEntry u : users) {
+            groups.computeIfAbsent(u.salt, SaltGroup::new).remaining.add(u);
+        }
+        return groups;
+    }
+
+
+    /*
+    Runs every rule chain over the user's extended dictionary
+    until the stored hash is matched.
+    Returns the matching candidate, or null if nothing matched.
+    */
+    static String crackUser(UserEntry user, Wordlist dictionary, String engine) {
+        return crackUser(user, dictionary, engine, new SearchPosition(), null);
+    }
+
+
+    /*
+    As above, starting at `at` and checkpointing through `session` (may be
+    null). `at` is kept up to date at every checkpoint.
+    */
+    static String crackUser(UserEntry user, Wordlist dictionary, String engine, SearchPosition at, Session session) {
+        Wordlist extendedDictionary = addNameDatatoDictionary(user, dictionary);
+
+        SaltGroup group = new SaltGroup(user.salt);
+        group.remaining.add(user);
+        group.seen = SEEN.take();
+        SaltMatcher matcher = SaltMatcher.create(engine, group, (u, p) -> {
+            u.crackedBy = ChainScheduler.key(RULE_CHAINS[at.chain]);
+            SCHEDULER.cracked(at.chain);
+        });
+
+        try {
+            searchChains(extendedDictionary, matcher, at, session);
+        } finally {
+            SEEN.release(group.seen);
+        }
+        return user.password;
+    }
+
+    /* crackUser's loop over the chains, from `at` until the matcher is done */
+    static void searchChains(Wordlist extendedDictionary, SaltMatcher matcher, SearchPosition at, Session session) {
+        int averageLength = extendedDictionary.averageLength();
+        long wordCount = extendedDictionary.positions() / (averageLength + 1);
+        if (at.chain < 0) at.chain = SCHEDULER.next(at.searched, averageLength, wordCount, 1);
+
+        while (at.chain >= 0) {
+            int c = at.chain;
+            CandidateCursor cursor = new CandidateCursor(RULE_CHAINS[c]);
+            WordReader words = extendedDictionary.words(at.position, extendedDictionary.positions());
+            METRICS.currentChain = c;
+            long cpu = ChainScheduler.cpuTime();
+
+            for (String candidate; (candidate = words.next()) != null; ) {
+
+                cursor.reset(candidate);
+
+                for (String modifiedCandidate; (modifiedCandidate = cursor.next()) != null; ) {
+
+                    matcher.offer(modifiedCandidate);
+                    if (matcher.done()) break;
+                }
+                METRICS.record(c, cursor, 1);
+                if (matcher.done()) break;
+
+                if (session != null && session.due()) {
+                    matcher.flush();
+                    if (matcher.done()) break;
+
+                    at.position = words.position();
+                    session.checkpoint();
+                }
+            }
+            /* Flushed per chain so a batched crack is credited to the chain that found it */
+            matcher.flush();
+            SCHEDULER.spent(c, cpu);
+            if (matcher.done()) break;
+
+            at.searched.set(c);
+            at.position = 0;
+            at.chain = SCHEDULER.next(at.searched, averageLength, wordCount, 1);
+        }
+    }
+
+
+    /*
+    Candidate-major cracking loop.
+
+    Every candidate is generated once from the shared dictionary,
+    hashed once per salt group that still has uncracked users, and
+    compared against all of them. Cracked users drop out of their
+    group, and empty groups drop out of the run, so the cost grows
+    with the number of distinct salts instead of the number of users.
+
+    Each user's `password` and `seconds` (time since the run started)
+    are filled in; users that are never matched get the total time.
+    */
+    static void crackByCandidate(List<UserEntry> users, Wordlist dictionary, String engine) {
+        crackByCandidate(users, dictionary, engine, new SearchPosition(), null, new Potfile(null));
+    }
+
+
+    /*
+    As above, starting at `at` and checkpointing through `session` (may be
+    null). Users that already have a password are skipped, and `at.started`
+    carries the run's elapsed time over from a restored session. Cracked
+    passwords go to `pot` and are looped back at the next word boundary.
+    */
+    static void crackByCandidate(List<UserEntry> users, Wordlist dictionary, String engine,
+                                 SearchPosition at, Session session, Potfile pot) {
+        Wordlist extendedDictionary = addNameDatatoDictionary(users, dictionary);
+        List<SaltMatcher> active = new ArrayList<>();
+        List<UserEntry> uncracked = new ArrayList<>();
+
+        long start = at.started;
+
+        BiConsumer<UserEntry, String> onCrack = (user, password) -> {
+            user.seconds = (System.nanoTime() - start) / 1e9;
+            pot.add(user, password);
+            userFinished(user);
+            System.out.println("Cracked " + user.username + ": " + password);
+        };
+        for (UserEntry user : users) {
+            if (user.password == null) uncracked.add(user);
+        }
+        /* Cracks by the search proper, as opposed to loopback, count for the chain */
+        BiConsumer<UserEntry, String> onSearchCrack = (user, password) -> {
+            user.crackedBy = ChainScheduler.key(RULE_CHAINS[at.chain]);
+            SCHEDULER.cracked(at.chain);
+            onCrack.accept(user, password);
+        };
+        for (SaltGroup group : groupBySalt(uncracked).values()) {
+            group.seen = SEEN.take();
+            active.add(SaltMatcher.create(engine, group, onSearchCrack));
+        }
+        List<SaltMatcher> matchers = new ArrayList<>(active);
+
+        int averageLength = extendedDictionary.averageLength();
+        long wordCount = extendedDictionary.positions() / (averageLength + 1);
+        if (at.chain < 0) at.chain = SCHEDULER.next(at.searched, averageLength, wordCount, active.size());
+
+        while (at.chain >= 0 && !active.isEmpty()) {
+            int c = at.chain;
+            CandidateCursor cursor = new CandidateCursor(RULE_CHAINS[c]);
+            WordReader words = extendedDictionary.words(at.position, extendedDictionary.positions());
+            METRICS.currentChain = c;
+            long cpu = ChainScheduler.cpuTime();
+
+            for (String candidate; (candidate = words.next()) != null; ) {
+                if (active.isEmpty()) break;
+
+                cursor.reset(candidate);
+                int groups = active.size();
+
+                for (String modifiedCandidate; (modifiedCandidate = cursor.next()) != null; ) {
+
+                    for (int g = 0; g < active.size(); g++) {
+                        SaltMatcher matcher = active.get(g);
+
+                        matcher.offer(modifiedCandidate);
+                        if (matcher.done()) active.remove(g--);
+                    }
+                    if (active.isEmpty()) break;
+                }
+                METRICS.record(c, cursor, groups);
+
+                if (pot.hasFresh()) {
+                    loopback(pot, pot.takeFresh(), users, engine, onCrack);
+
+                    for (int g = 0; g < active.size(); g++) {
+                        active.get(g).group.remaining.removeIf(user -> user.password != null);
+                        if (active.get(g).done()) active.remove(g--).reportSkipped();
+                    }
+                }
+
+                if (session != null && session.due()) {
+                    for (int g = 0; g < active.size(); g++) {
+                        active.get(g).flush();
+                        if (active.get(g).done()) active.remove(g--);
+                    }
+                    at.position = words.position();
+                    session.checkpoint();
+                }
+            }
+            for (int g = 0; g < active.size(); g++) {
+                active.get(g).flush();
+                if (active.get(g).done()) active.remove(g--);
+            }
+            SCHEDULER.spent(c, cpu);
+            if (active.isEmpty()) break;
+
+            at.searched.set(c);
+            at.position = 0;
+            at.chain = SCHEDULER.next(at.searched, averageLength, wordCount, active.size());
+        }
+
+        double totalSeconds = (System.nanoTime() - start) / 1e9;
+        for (SaltMatcher matcher : active) {
+            for (UserEntry user : matcher.group.remaining) {
+                user.seconds = totalSeconds;
+                userFinished(user);
+            }
+        }
+        for (SaltMatcher matcher : matchers) SEEN.release(matcher.group.seen);
+    }
+
+
+    /*
+    Single-threaded driver that takes turns between users (--interleave)
+    instead of searching each one to the end before starting the next, so
+    one uncrackable account cannot hold back the easy ones after it.
+
+    The rule chains are split into tiers by how many candidates they make
+    of a word of average length (TIER_EXPANSION): single edits first, then
+    two-character suffixes and the like, then the 1000-way chains, then the
+    rest. Every user gets through a tier before any user starts the next.
+    Within a tier users take SLICE_NANOS turns round robin, each resuming
+    its own chain and word position, and the scheduler orders the chains
+    inside the tier as usual (see ChainScheduler). Cracks are looped back
+    to the users still waiting.
+
+    A user drops out once cracked, once every tier is searched, or once
+    over a budget: `userNanos` of turns or `userCandidates` candidates
+    offered (0 is no limit). `deadline` (a nanoTime, 0 for none) ends the
+    whole run. A user's seconds are counted from the start of the run to
+    the moment it drops out.
+
+    Every user keeps its matcher and SeenFilter between turns, so filter
+    slots are needed per user rather than per thread.
+    */
+    static class InterleavedCracker {
+        /* Upper bound on the candidates per word of each tier's chains */
+        static final long[] TIER_EXPANSION = { 10, 100, 1_000, Long.MAX_VALUE };
+
+        /* Length of a turn */
+        static final long SLICE_NANOS = 250_000_000L;
+
+        static class Turns {
+            final UserEntry user;
+            final Wordlist dictionary;
+            final SearchPosition at = new SearchPosition();
+            SaltMatcher matcher;
+
+            /* First tier this user still has chains in */
+            int tier;
+
+            /* Spent so far, for the budgets */
+            long nanos;
+            long candidates;
+
+            boolean finished;
+
+            Turns(UserEntry user, Wordlist dictionary) {
+                this.user = user;
+                this.dictionary = dictionary;
+            }
+        }
+
+        final List<UserEntry> users;
+        final List<Turns> turns = new ArrayList<>();
+        final String engine;
+        final Potfile pot;
+        final BiConsumer<UserEntry, String> onLoopback;
+
+        long userNanos;
+        long userCandidates;
+        long deadline;
+
+        /* Chains outside each tier, to mask out of ChainScheduler.next() */
+        final BitSet[] outside = new BitSet[TIER_EXPANSION.length];
+
+        double restoredSeconds;
+        long start = System.nanoTime();
+
+        InterleavedCracker(List<UserEntry> users, Wordlist dictionary, String engine, Potfile pot,
+                           BiConsumer<UserEntry, String> onLoopback) {
+            this.users = users;
+            this.engine = engine;
+            this.pot = pot;
+            this.onLoopback = onLoopback;
+
+            for (UserEntry user : users) turns.add(new Turns(user, addNameDatatoDictionary(user, dictionary)));
+
+            int averageLength = dictionary.averageLength();
+            for (int t = 0; t < outside.length; t++) outside[t] = new BitSet();
+            for (int c = 0; c < RULE_CHAINS.length; c++) {
+                int tier = tier(estimateExpansion(RULE_CHAINS[c], averageLength));
+                for (int t = 0; t < outside.length; t++) {
+                    if (t != tier) outside[t].set(c);
+                }
+            }
+        }
+
+        static int tier(long expansion) {
+            int t = 0;
+            while (expansion > TIER_EXPANSION[t]) t++;
+            return t;
+        }
+
+        double elapsed() {
+            return restoredSeconds + (System.nanoTime() - start) / 1e9;
+        }
+
+        /* Finished users and the position of every other one (see Session) */
+        Properties save() {
+            Properties state = new Properties();
+            for (int i = 0; i < turns.size(); i++) {
+                Turns u = turns.get(i);
+                if (u.finished) {
+                    Session.putUser(state, i, u.user);
+                    continue;
+                }
+                String prefix = "user." + i + ".";
+                state.setProperty(prefix + "tier", String.valueOf(u.tier));
+                state.setProperty(prefix + "chain", String.valueOf(u.at.chain));
+                state.setProperty(prefix + "searched", Session.chains(u.at.searched));
+                state.setProperty(prefix + "position", String.valueOf(u.at.position));
+                state.setProperty(prefix + "nanos", String.valueOf(u.nanos));
+                state.setProperty(prefix + "candidates", String.valueOf(u.candidates));
+            }
+            state.setProperty("elapsed", String.valueOf(elapsed()));
+            return state;
+        }
+
+        void restore(Properties state) {
+            for (int i = 0; i < turns.size(); i++) {
+                Turns u = turns.get(i);
+                if (Session.getUser(state, i, u.user)) {
+                    u.finished = true;
+                    continue;
+                }
+                String prefix = "user." + i + ".";
+                u.tier = Integer.parseInt(state.getProperty(prefix + "tier", "0"));
+                u.at.chain = Integer.parseInt(state.getProperty(prefix + "chain", "-1"));
+                u.at.searched = Session.parseChains(state.getProperty(prefix + "searched", ""));
+                u.at.position = Long.parseLong(state.getProperty(prefix + "position", "0"));
+                u.nanos = Long.parseLong(state.getProperty(prefix + "nanos", "0"));
+                u.candidates = Long.parseLong(state.getProperty(prefix + "candidates", "0"));
+            }
+            restoredSeconds = Double.parseDouble(state.getProperty("elapsed", "0"));
+        }
+
+        void run(Session session) {
+            for (int t = 0; t < TIER_EXPANSION.length; t++) {
+                int chains = RULE_CHAINS.length - outside[t].cardinality();
+                if (chains == 0) continue;
+                System.out.println("Tier " + (t + 1) + ": " + chains + " chains");
+
+                for (boolean any = true; any; ) {
+                    any = false;
+
+                    for (Turns u : turns) {
+                        if (u.finished || u.tier > t) continue;
+                        if (u.user.password != null) {
+                            finish(u, null);
+                            continue;
+                        }
+                        if (userNanos > 0 && u.nanos >= userNanos) {
+                            finish(u, "time");
+                            continue;
+                        }
+                        if (userCandidates > 0 && u.candidates >= userCandidates) {
+                            finish(u, "candidate");
+                            continue;
+                        }
+                        if (deadline != 0 && System.nanoTime() >= deadline) {
+                            System.out.println("Deadline reached");
+                            finishAll();
+                            return;
+                        }
+
+                        long before = System.nanoTime();
+                        long end = before + SLICE_NANOS;
+                        if (userNanos > 0) end = Math.min(end, before + userNanos - u.nanos);
+                        if (deadline != 0) end = Math.min(end, deadline);
+                        boolean more = turn(u, t, end);
+                        u.nanos += System.nanoTime() - before;
+                        any = true;
+
+                        if (u.user.password != null || (!more && ++u.tier == TIER_EXPANSION.length)) finish(u, null);
+
+                        if (pot.hasFresh()) loopback(pot, pot.takeFresh(), users, engine, onLoopback);
+                        if (session.due()) session.checkpoint();
+                    }
+                }
+            }
+            finishAll();
+        }
+
+        /*
+        Searches tier t for one turn, until `end` (a nanoTime). Returns
+        false once the user has no chain left in the tier or is cracked.
+        */
+        boolean turn(Turns u, int t, long end) {
+            SearchPosition at = u.at;
+            int averageLength = u.dictionary.averageLength();
+            long wordCount = u.dictionary.positions() / (averageLength + 1);
+
+            if (u.matcher == null) {
+                SaltGroup group = new SaltGroup(u.user.salt);
+                group.remaining.add(u.user);
+                group.seen = SEEN.take();
+                u.matcher = SaltMatcher.create(engine, group, (user, password) -> {
+                    user.seconds = elapsed();
+                    user.crackedBy = ChainScheduler.key(RULE_CHAINS[at.chain]);
+                    SCHEDULER.cracked(at.chain);
+                    pot.add(user, password);
+                    userFinished(user);
+                    System.out.println("Cracked " + user.username + ": " + password);
+                });
+            }
+            SaltMatcher matcher = u.matcher;
+
+            while (true) {
+                if (at.chain < 0) {
+                    BitSet skip = (BitSet) at.searched.clone();
+                    skip.or(outside[t]);
+                    at.chain = SCHEDULER.next(skip, averageLength, wordCount, 1);
+                    if (at.chain < 0) return false;
+                }
+                int c = at.chain;
+                CandidateCursor cursor = new CandidateCursor(RULE_CHAINS[c]);
+                WordReader words = u.dictionary.words(at.position, u.dictionary.positions());
+                METRICS.currentChain = c;
+                long cpu = ChainScheduler.cpuTime();
+                boolean paused = false;
+
+                for (String candidate; (candidate = words.next()) != null; ) {
+
+                    cursor.reset(candidate);
+
+                    for (String modifiedCandidate; (modifiedCandidate = cursor.next()) != null; ) {
+
+                        matcher.offer(modifiedCandidate);
+                        u.candidates++;
+                        if (matcher.done()) break;
+                    }
+                    METRICS.record(c, cursor, 1);
+                    if (matcher.done()) break;
+
+                    if (System.nanoTime() >= end || (userCandidates > 0 && u.candidates >= userCandidates)) {
+                        at.position = words.position();
+                        paused = true;
+                        break;
+                    }
+                }
+                /* Flushed per turn as well, so nothing is left queued while other users run */
+                matcher.flush();
+                SCHEDULER.spent(c, cpu);
+                if (matcher.done()) return false;
+                if (paused) return true;
+
+                at.searched.set(c);
+                at.position = 0;
+                at.chain = -1;
+            }
+        }
+
+        /* Drops a user from the run; `budget` names the budget it ran out of, if any */
+        void finish(Turns u, String budget) {
+            u.finished = true;
+            if (u.matcher != null) SEEN.release(u.matcher.group.seen);
+            u.matcher = null;
+            if (u.user.password != null) return;
+
+            u.user.seconds = elapsed();
+            userFinished(u.user);
+            if (budget != null) System.out.println("Out of " + budget + " budget for user: " + u.user.username);
+        }
+
+        void finishAll() {
+            for (Turns u : turns) {
+                if (!u.finished) finish(u, null);
+            }
+        }
+    }
+
+
+    /*
+    Bounded ring of preallocated candidate batches between the generator
+    and hasher threads of PipelineCracker: a multi-producer,
+    multi-consumer array queue (Vyukov's), with the batches filled and
+    drained in place instead of copied in and out.
+
+    Every slot has a sequence number that says whose turn it is. At
+    `pos` it is pos while free for a producer, pos + 1 once published,
+    and pos + capacity once a consumer hands it back for the next lap.
+    claim() and take() compete for positions with a CAS on `head` and
+    `tail`, then fill or drain the slot without a lock, and publish()
+    and release() pass it on by setting its sequence. A thread facing a
+    full or empty ring backs off (see idle()), so a generator that is far
+    ahead of the hashers costs next to nothing while it waits.
+    */
+    static class BatchRing {
+        /* Candidates per batch, a multiple of every batch engine's width */
+        static final int BATCH = 1024;
+
+        static class Batch {
+            final char[][] keys = new char[BATCH][KEY_LENGTH];
+            final int[] lengths = new int[BATCH];
+            int count;
+
+            /* Rule chain the candidates came from */
+            int chain;
+        }
+
+        final Batch[] slots;
+        final AtomicLongArray sequence;
+        final int mask;
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+
+        /* Set once no more batches will be published */
+        volatile boolean closed;
+
+        BatchRing(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            slots = new Batch[size];
+            sequence = new AtomicLongArray(size);
+            mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                slots[i] = new Batch();
+                sequence.set(i, i);
+            }
+        }
+
+        /* Position of a free slot to fill, waiting while the ring is full; fails once it is closed */
+        long claim() {
+            for (int spins = 0; ; spins++) {
+                long pos = head.get();
+                long dif = sequence.get((int) pos & mask) - pos;
+
+                if (dif == 0) {
+                    if (head.compareAndSet(pos, pos + 1)) return pos;
+                } else if (dif < 0) {
+                    /* Nothing will drain it any more */
+                    if (closed) throw new IllegalStateException("batch ring closed");
+                    idle(spins);
+                }
+            }
+        }
+
+        void publish(long pos) {
+            sequence.set((int) pos & mask, pos + 1);
+        }
+
+        /* Position of a published slot to drain, or -1 once closed and empty, or interrupted */
+        long take() {
+            for (int spins = 0; ; spins++) {
+                long pos = tail.get();
+                long dif = sequence.get((int) pos & mask) - (pos + 1);
+
+                if (dif == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) return pos;
+                } else if (dif < 0) {
+                    /* Checked before the next look, so a batch published before close() is still taken */
+                    if (closed && pos == tail.get() && sequence.get((int) pos & mask) - (pos + 1) < 0) return -1;
+                    if (Thread.currentThread().isInterrupted()) return -1;
+                    idle(spins);
+                }
+            }
+        }
+
+        void release(long pos) {
+            sequence.set((int) pos & mask, pos + slots.length);
+        }
+
+        Batch slot(long pos) {
+            return slots[(int) pos & mask];
+        }
+
+        /* Spins, then yields, then parks for longer and longer, up to a millisecond */
+        static void idle(int spins) {
+            if (spins < 64) Thread.onSpinWait();
+            else if (spins < 80) Thread.yield();
+            else LockSupport.parkNanos(Math.min(1_000_000L, 10_000L << Math.min(7, (spins - 80) / 4)));
+        }
+    }
+
+
+    /*
+    Candidate-major cracking as a pipeline (--pipeline N): generator
+    threads run the rule chains and hasher threads hash, connected by a
+    BatchRing, so each side scales on its own threads and the hashers
+    keep busy through a chain that is slow to expand.
+
+    Chains are taken one at a time in scheduler order. Each of the
+    `producers` generator threads runs the chain over its share of the
+    extended dictionary's positions and packs the candidates into ring
+    batches of BatchRing.BATCH. Each of the N hasher threads takes a
+    batch, offers every candidate to its own matcher per salt group,
+    flushes them and hands the slot back. Matching stays in the hasher:
+    it is one comparison per user, cheaper than another hand-off.
+
+    Hashers match over detached copies of the users (as SourceTask does)
+    and report cracks to crack(). A crack bumps `generation`, and every
+    hasher rebuilds its matchers at the next batch, so cracked users and
+    finished salts drop out everywhere. Every salt group has one
+    SeenFilter, shared by all hashers, which is safe because the filter
+    is thread-safe.
+
+    Checkpoints record finished chains and cracked users, so a restored
+    run redoes at most the chains that were in flight. A chain counts as
+    finished only once every batch of it has been hashed. If a generator
+    or hasher fails, the ring is closed, the remaining hashers are
+    interrupted and the failure is rethrown from run().
+    */
+    static class PipelineCracker {
+        /* Ring slots per hasher, enough to keep it fed between producer wake-ups */
+        static final int SLOTS_PER_HASHER = 4;
+
+        final List<UserEntry> users;
+        final Wordlist dictionary;
+        final String engine;
+        final Potfile pot;
+        final int hashers;
+        final int producers;
+        final BatchRing ring;
+
+        /* Filter of each salt, shared by the hashers */
+        final Map<String, SeenFilter> filters = new HashMap<>();
+
+        /* Guarded by this; `remaining` is volatile for the generators' per-word check */
+        BitSet searched = new BitSet();
+
+        /* Chains fully generated, but with batches still to hash; guarded by this */
+        final BitSet generated = new BitSet();
+
+        /* Published batches of each chain not yet hashed */
+        final AtomicIntegerArray unhashed = new AtomicIntegerArray(RULE_CHAINS.length);
+        volatile int remaining;
+        double restoredSeconds;
+        long start = System.nanoTime();
+
+        /* Cracks so far; hashers rebuild their matchers when it moves */
+        volatile int generation;
+
+        /* Salt groups with users left, for the metrics */
+        volatile int groups;
+
+        /* First error of a hasher thread, which closes the ring */
+        volatile Throwable failure;
+
+        PipelineCracker(List<UserEntry> users, Wordlist dictionary, String engine, Potfile pot, int hashers, int producers) {
+            this.users = users;
+            this.dictionary = addNameDatatoDictionary(users, dictionary);
+            this.engine = engine;
+            this.pot = pot;
+            this.hashers = hashers;
+            this.producers = producers;
+            this.ring = new BatchRing(hashers * SLOTS_PER_HASHER);
+        }
+
+        synchronized double elapsed() {
+            return restoredSeconds + (System.nanoTime() - start) / 1e9;
+        }
+
+        boolean done() {
+            return remaining == 0;
+        }
+
+        /* After cracks made outside the pipeline (loopback) */
+        synchronized void recount() {
+            int uncracked = 0;
+            for (UserEntry user : users) {
+                if (user.password == null) uncracked++;
+            }
+            remaining = uncracked;
+            groups = uncrackedSalts();
+            generation++;
+        }
+
+        synchronized void crack(UserEntry user, String password, int chain) {
+            if (user.password != null) return;
+
+            user.password = password;
+            user.seconds = elapsed();
+            user.crackedBy = ChainScheduler.key(RULE_CHAINS[chain]);
+            remaining--;
+            SCHEDULER.cracked(chain);
+            pot.add(user, password);
+            userFinished(user);
+            System.out.println("Cracked " + user.username + ": " + password);
+            groups = uncrackedSalts();
+            generation++;
+        }
+
+        int uncrackedSalts() {
+            Set<String> salts = new HashSet<>();
+            for (UserEntry user : users) {
+                if (user.password == null) salts.add(user.salt);
+            }
+            return salts.size();
+        }
+
+        /* Moves generated chains whose every batch is hashed to `searched` */
+        synchronized void promote() {
+            for (int c = generated.nextSetBit(0); c >= 0; c = generated.nextSetBit(c + 1)) {
+                if (unhashed.get(c) == 0) {
+                    searched.set(c);
+                    generated.clear(c);
+                }
+            }
+        }
+
+        /* Finished chains and cracked users (see Session) */
+        synchronized Properties save() {
+            promote();
+            Properties state = new Properties();
+            for (int i = 0; i < users.size(); i++) {
+                if (users.get(i).password != null) Session.putUser(state, i, users.get(i));
+            }
+            state.setProperty("searched", Session.chains(searched));
+            state.setProperty("elapsed", String.valueOf(elapsed()));
+            return state;
+        }
+
+        void restore(Properties state) {
+            for (int i = 0; i < users.size(); i++) Session.getUser(state, i, users.get(i));
+            searched = Session.parseChains(state.getProperty("searched", ""));
+            restoredSeconds = Double.parseDouble(state.getProperty("elapsed", "0"));
+        }
+
+        /* Runs every chain not yet searched; uncracked users get the total time */
+        void run(BiConsumer<UserEntry, String> onLoopback) throws InterruptedException {
+            synchronized (this) {
+                start = System.nanoTime();
+            }
+            recount();
+            for (UserEntry user : users) {
+                if (user.password == null) filters.computeIfAbsent(user.salt, salt -> SEEN.take());
+            }
+
+            List<Thread> hashing = new ArrayList<>();
+            for (int i = 0; i < hashers; i++) {
+                Thread t = new Thread(this::hash, "hasher-" + i);
+                t.start();
+                hashing.add(t);
+            }
+            ExecutorService generating = Executors.newFixedThreadPool(producers, r -> {
+                Thread t = new Thread(r, "generator");
+                t.setDaemon(true);
+                return t;
+            });
+
+            int averageLength = dictionary.averageLength();
+            long wordCount = dictionary.positions() / (averageLength + 1);
+            boolean completed = false;
+            try {
+                while (!done()) {
+                    int c;
+                    synchronized (this) {
+                        BitSet started = (BitSet) searched.clone();
+                        started.or(generated);
+                        c = SCHEDULER.next(started, averageLength, wordCount, groups);
+                    }
+                    if (c < 0) break;
+                    METRICS.currentChain = c;
+
+                    List<Callable<Void>> shares = new ArrayList<>();
+                    long positions = dictionary.positions();
+                    for (int p = 0; p < producers; p++) {
+                        long from = positions * p / producers;
+                        long to = positions * (p + 1) / producers;
+                        shares.add(() -> {
+                            generate(c, from, to);
+                            return null;
+                        });
+                    }
+                    /* A chain is only generated once every share of it finished, and searched once hashed too */
+                    for (Future<Void> share : generating.invokeAll(shares)) {
+                        try {
+                            share.get();
+                        } catch (ExecutionException e) {
+                            /* A hasher's error closes the ring, and the generators then fail on it */
+                            throw rethrow(failure != null ? failure : e.getCause());
+                        }
+                    }
+
+                    synchronized (this) {
+                        generated.set(c);
+                    }
+                    promote();
+                    /* Between chains, so loopback never races the generators for the users */
+                    if (pot.hasFresh()) {
+                        loopback(pot, pot.takeFresh(), users, engine, onLoopback);
+                        recount();
+                    }
+                }
+                completed = true;
+            } finally {
+                generating.shutdownNow();
+                ring.closed = true;
+                /* After a failure the hashers stop at once instead of draining the ring */
+                if (!completed) {
+                    for (Thread t : hashing) t.interrupt();
+                }
+                for (Thread t : hashing) t.join();
+                for (SeenFilter filter : filters.values()) SEEN.release(filter);
+                promote();
+            }
+            if (failure != null) throw rethrow(failure);
+
+            double total = elapsed();
+            for (UserEntry user : users) {
+                if (user.password == null) {
+                    user.seconds = total;
+                    userFinished(user);
+                }
+            }
+        }
+
+        static RuntimeException rethrow(Throwable cause) {
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException("pipeline stage failed", cause);
+        }
+
+        /* Generator: packs chain c over positions [from, to) into batches */
+        void generate(int c, long from, long to) {
+            CandidateCursor cursor = new CandidateCursor(RULE_CHAINS[c]);
+            WordReader words = dictionary.words(from, to);
+
+            long pos = ring.claim();
+            BatchRing.Batch batch = ring.slot(pos);
+            batch.count = 0;
+            batch.chain = c;
+
+            /* The claimed slot is published even on a failure, so no hasher waits on it */
+            try {
+                for (String word; (word = words.next()) != null && !done(); ) {
+                    cursor.reset(word);
+
+                    for (String candidate; (candidate = cursor.next()) != null; ) {
+                        int length = Math.min(candidate.length(), KEY_LENGTH);
+                        candidate.getChars(0, length, batch.keys[batch.count], 0);
+                        batch.lengths[batch.count++] = length;
+
+                        if (batch.count == BatchRing.BATCH) {
+                            unhashed.incrementAndGet(c);
+                            ring.publish(pos);
+                            pos = -1;
+                            pos = ring.claim();
+                            batch = ring.slot(pos);
+                            batch.count = 0;
+                            batch.chain = c;
+                        }
+                    }
+                    METRICS.record(c, cursor, groups);
+                }
+            } finally {
+                if (pos >= 0) {
+                    unhashed.incrementAndGet(c);
+                    ring.publish(pos);
+                }
+            }
+        }
+
+        /* Hasher: drains batches until the ring is closed and empty, or it is interrupted.
+           A failure is left for run() to rethrow. */
+        void hash() {
+            try {
+                drain();
+            } catch (RuntimeException | Error e) {
+                synchronized (this) {
+                    if (failure == null) failure = e;
+                }
+                ring.closed = true;
+            }
+        }
+
+        void drain() {
+            List<SaltMatcher> active = new ArrayList<>();
+            int built = -1;
+            int[] chain = new int[1];
+
+            for (long pos; !Thread.currentThread().isInterrupted() && (pos = ring.take()) >= 0; ) {
+                BatchRing.Batch batch = ring.slot(pos);
+                chain[0] = batch.chain;
+
+                int g = generation;
+                if (g != built) {
+                    active = matchers(chain);
+                    built = g;
+                }
+                long cpu = ChainScheduler.cpuTime();
+
+                for (int i = 0; i < batch.count && !active.isEmpty(); i++) {
+                    for (int m = 0; m < active.size(); m++) {
+                        active.get(m).offer(batch.keys[i], batch.lengths[i]);
+                        if (active.get(m).done()) active.remove(m--);
+                    }
+                }
+                for (SaltMatcher matcher : active) matcher.flush();
+                unhashed.decrementAndGet(batch.chain);
+                ring.release(pos);
+                SCHEDULER.spent(batch.chain, cpu);
+            }
+        }
+
+        /* Matchers over copies of the users still uncracked; cracks are credited to chain[0] */
+        List<SaltMatcher> matchers(int[] chain) {
+            Map<UserEntry, UserEntry> owners = new HashMap<>();
+            List<UserEntry> targets = new ArrayList<>();
+            synchronized (this) {
+                for (UserEntry user : users) {
+                    if (user.password != null) continue;
+                    UserEntry copy = user.copy();
+                    owners.put(copy, user);
+                    targets.add(copy);
+                }
+            }
+
+            List<SaltMatcher> active = new ArrayList<>();
+            for (SaltGroup group : groupBySalt(targets).values()) {
+                group.seen = filters.get(group.salt);
+                active.add(SaltMatcher.create(engine, group, (copy, password) -> crack(owners.get(copy), password, chain[0])));
+            }
+            return active;
+        }
+    }
+
+
+    /*
+    Rough number of candidates one dictionary word expands to under a chain.
+    Used to size parallel work units so that expensive chains
+    (e.g. insertions, multi-digit suffixes) are split into smaller shards.
+    */
+    static long estimateExpansion(Rule[] chain, int wordLength) {
+        long count = 1;
+        long len = wordLength;
+
+        for (Rule rule : chain) {
+            for (Operation op : rule.operations) {
+                switch (op.code) {
+                    case APPEND_CHARSET:
+                    case PREPEND_CHARSET:
+                        count *= op.strArg.length();
+                        len++;
+                        break;
+                    case INSERT_CHARSET:
+                        count *= op.strArg.length() * (len + 1);
+                        len++;
+                        break;
+                    case REPLACE:
+                        count *= 2;
+                        break;
+                    case DUPLICATE:
+                    case REFLECT_FRONT:
+                    case REFLECT_BACK:
+                        len *= 2;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return count;
+    }
+
+
+    /*
+    Multi-threaded cracking engine built on a fork-join pool.
+
+    Work is split as user x chain x dictionary shard. Every user gets a
+    root task that walks the rule chains in order; each chain is run as a
+    tree of shard tasks over the position range of the user's extended
+    dictionary (see Wordlist), split down to roughly TASK_CANDIDATES
+    hashes per leaf so idle workers can steal the remainder of long
+    chains. All users are submitted at once, so workers never wait on a
+    single hard account.
+
+    Once any task cracks a user, the user's shared `found` reference is set
+    and every other in-flight task for that user stops at its next candidate.
+
+    For checkpoints, each user job records the position ranges of its
+    current chain whose leaf tasks have finished. The tree of ranges is
+    the same on every run, so a restored job skips every subtree that is
+    already covered and redoes at most the leaves that were in flight.
+    */
+    static class ParallelCracker {
+
+        /* Target number of crypt() calls per leaf task */
+        static final int TASK_CANDIDATES = 4096;
+
+        final ForkJoinPool pool;
+        final String engine;
+        final Potfile pot;
+        List<UserJob> jobs = new ArrayList<>();
+
+        ParallelCracker(int threads, String engine) {
+            this(threads, engine, new Potfile(null));
+        }
+
+        ParallelCracker(int threads, String engine, Potfile pot) {
+            this.pool = new ForkJoinPool(threads);
+            this.engine = engine;
+            this.pot = pot;
+        }
+
+        /*
+        Loops freshly cracked passwords back against every user whose job
+        has not finished. Matching runs on detached copies, and a match is
+        handed to the job through `found`, which stops its tasks like any
+        other crack.
+        */
+        void loopback() {
+            List<String> words = pot.takeFresh();
+            if (words.isEmpty()) return;
+
+            Map<UserEntry, UserJob> owners = new HashMap<>();
+            List<UserEntry> targets = new ArrayList<>();
+            for (UserJob job : jobs) {
+                if (job.done() || job.isFinished()) continue;
+                UserEntry copy = job.user.copy();
+                owners.put(copy, job);
+                targets.add(copy);
+            }
+
+            bf_jcrypt.loopback(pot, words, targets, engine, (copy, password) -> {
+                UserJob job = owners.get(copy);
+                if (job.found.compareAndSet(null, password)) {
+                    job.user.crackedBy = copy.crackedBy;
+                    pot.add(job.user, password);
+                    System.out.println("Cracked " + job.user.username + " by loopback: " + password);
+                }
+            });
+        }
+
+        /*
+        Root task for one user. Fills in `user.password` and `user.seconds`.
+        */
+        static class UserJob extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            final UserEntry user;
+            final Wordlist dictionary;
+            final String engine;
+            final AtomicReference<String> found = new AtomicReference<>();
+
+            /* Checkpoint state, guarded by this: chain being searched, chains done, ranges done of `chain` */
+            int chain = -1;
+            BitSet searched = new BitSet();
+            Intervals completed = new Intervals();
+            double restoredSeconds;
+            long start;
+            boolean finished;
+
+            /* Set by submitAll, for loopback */
+            ParallelCracker cracker;
+
+            /* Shared by this job's shards while it runs, or null */
+            SeenFilter seen;
+
+            UserJob(UserEntry user, Wordlist dictionary, String engine) {
+                this.user = user;
+                this.dictionary = dictionary;
+                this.engine = engine;
+            }
+
+            boolean done() {
+                return found.get() != null;
+            }
+
+            synchronized boolean isFinished() {
+                return finished;
+            }
+
+            synchronized boolean covered(long from, long to) {
+                return completed.covers(from, to);
+            }
+
+            synchronized void complete(long from, long to) {
+                completed.add(from, to);
+            }
+
+            /* This job's part of a checkpoint (see Session) */
+            synchronized void save(Properties state, int index) {
+                if (finished) {
+                    Session.putUser(state, index, user);
+                } else {
+                    double elapsed = restoredSeconds + (start == 0 ? 0 : (System.nanoTime() - start) / 1e9);
+                    state.setProperty("user." + index + ".chain", String.valueOf(chain));
+                    state.setProperty("user." + index + ".searched", Session.chains(searched));
+                    state.setProperty("user." + index + ".ranges", completed.toString());
+                    state.setProperty("user." + index + ".elapsed", String.valueOf(elapsed));
+                }
+            }
+
+            /* Picks up a checkpoint written by save() */
+            void restore(Properties state, int index) {
+                if (Session.getUser(state, index, user)) {
+                    finished = true;
+                    return;
+                }
+                chain = Integer.parseInt(state.getProperty("user." + index + ".chain", "-1"));
+                searched = Session.parseChains(state.getProperty("user." + index + ".searched", ""));
+                completed = Intervals.parse(state.getProperty("user." + index + ".ranges", ""));
+                restoredSeconds = Double.parseDouble(state.getProperty("user." + index + ".elapsed", "0"));
+            }
+
+            @Override
+            protected void compute() {
+                synchronized (this) {
+                    if (finished) return;
+                    start = System.nanoTime();
+                }
+                Wordlist extendedDictionary = addNameDatatoDictionary(user, dictionary);
+                int averageLength = extendedDictionary.averageLength();
+                long wordCount = extendedDictionary.positions() / (averageLength + 1);
+
+                int c;
+                synchronized (this) {
+                    if (chain < 0) chain = SCHEDULER.next(searched, averageLength, wordCount, 1);
+                    c = chain;
+                }
+
+                seen = SEEN.take();
+                try {
+                    search(extendedDictionary, c, averageLength, wordCount);
+                } finally {
+                    SEEN.release(seen);
+                    seen = null;
+                }
+
+                synchronized (this) {
+                    user.password = found.get();
+                    user.seconds = restoredSeconds + (System.nanoTime() - start) / 1e9;
+                    finished = true;
+                }
+                userFinished(user);
+
+                if (user.password != null && cracker != null) {
+                    cracker.pot.add(user, user.password);
+                    cracker.loopback();
+                }
+            }
+
+            /* Runs chain `c` and the ones after it until the user is cracked */
+            void search(Wordlist extendedDictionary, int c, int averageLength, long wordCount) {
+                while (c >= 0 && !done()) {
+                    Rule[] rules = RULE_CHAINS[c];
+
+                    METRICS.currentChain = c;
+
+                    /* Grain in positions: words per leaf times bytes per line */
+                    long perWord = Math.max(1, estimateExpansion(rules, averageLength));
+                    long grain = Math.max(1, TASK_CANDIDATES / perWord) * (averageLength + 1);
+
+                    new ShardTask(this, extendedDictionary, c, 0, extendedDictionary.positions(), grain).invoke();
+
+                    if (done()) break;
+
+                    synchronized (this) {
+                        searched.set(c);
+                        completed = new Intervals();
+                        chain = c = SCHEDULER.next(searched, averageLength, wordCount, 1);
+                    }
+                }
+            }
+        }
+
+        /*
+        One position range of the extended dictionary under one chain for
+        one user. Splits in half until the range is at most `grain` positions.
+        */
+        static class ShardTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            final UserJob job;
+            final Wordlist words;
+            final Rule[] chain;
+            final int chainIndex;
+            final long from;
+            final long to;
+            final long grain;
+
+            ShardTask(UserJob job, Wordlist words, int chainIndex, long from, long to, long grain) {
+                this.job = job;
+                this.words = words;
+                this.chain = RULE_CHAINS[chainIndex];
+                this.chainIndex = chainIndex;
+                this.from = from;
+                this.to = to;
+                this.grain = grain;
+            }
+
+            @Override
+            protected void compute() {
+                if (job.done() || job.covered(from, to)) return;
+
+                if (to - from > grain) {
+                    long mid = (from + to) >>> 1;
+                    invokeAll(
+                        new ShardTask(job, words, chainIndex, from, mid, grain),
+                        new ShardTask(job, words, chainIndex, mid, to, grain)
+                    );
+                    return;
+                }
+
+                SaltGroup group = new SaltGroup(job.user.salt);
+                group.remaining.add(job.user);
+                group.seen = job.seen;
+                SaltMatcher matcher = SaltMatcher.create(job.engine, group, (user, password) -> {
+                    if (job.found.compareAndSet(null, password)) {
+                        user.crackedBy = ChainScheduler.key(chain);
+                        SCHEDULER.cracked(chainIndex);
+                    }
+                });
+
+                CandidateCursor cursor = new CandidateCursor(chain);
+                WordReader reader = words.words(from, to);
+                long cpu = ChainScheduler.cpuTime();
+
+                for (String word; (word = reader.next()) != null; ) {
+                    cursor.reset(word);
+
+                    for (String modifiedCandidate; (modifiedCandidate = cursor.next()) != null; ) {
+                        if (job.done()) break;
+
+                        matcher.offer(modifiedCandidate);
+                    }
+                    METRICS.record(chainIndex, cursor, 1);
+                    if (job.done()) break;
+                }
+                if (!job.done()) matcher.flush();
+                else matcher.reportSkipped();
+                SCHEDULER.spent(chainIndex, cpu);
+                if (!job.done()) job.complete(from, to);
+            }
+        }
+
+        /*
+        Submits every user at once and returns the jobs in input order.
+        Callers join them in that order to keep output ordering stable.
+        */
+        List<UserJob> submitAll(List<UserEntry> users, Wordlist dictionary) {
+            return submitAll(users, dictionary, null);
+        }
+
+        /*
+        As above, resuming every job from `restored` (may be null).
+        */
+        List<UserJob> submitAll(List<UserEntry> users, Wordlist dictionary, Properties restored) {
+            List<UserJob> jobs = new ArrayList<>();
+            for (int i = 0; i < users.size(); i++) {
+                UserJob job = new UserJob(users.get(i), dictionary, engine);
+                job.cracker = this;
+                if (restored != null) job.restore(restored, i);
+                if (job.user.password != null) job.finished = true;
+                jobs.add(job);
+            }
+            this.jobs = jobs;
+            for (UserJob job : jobs) pool.execute(job);
+            return jobs;
+        }
+
+        /* Checkpoint of every job */
+        static Properties save(List<UserJob> jobs) {
+            Properties state = new Properties();
+            for (int i = 0; i < jobs.size(); i++) jobs.get(i).save(state, i);
+            return state;
+        }
+
+        void shutdown() {
+            pool.shutdown();
+        }
+    }
+
+
+    /*
+    Where a single-threaded cracking loop is: the index of the user being
+    cracked (user-major mode), the rule chain being searched (-1 before
+    the first is picked), the chains already searched in full, and the
+    dictionary position (see Wordlist) of the next word under the current
+    chain. Chains are not searched in array order (see ChainScheduler),
+    hence the set. `started` is the nanoTime the run or user started at,
+    moved back by the time already spent before a restore.
+    */
+    static class SearchPosition {
+        int user;
+        int chain = -1;
+        BitSet searched = new BitSet();
+        long position;
+        long started = System.nanoTime();
+    }
+
+
+    /*
+    Set of disjoint [from, to) position ranges, merged as they are added.
+    Leaf tasks of one chain finish roughly in order, so it stays small.
+    Written as "from-to,from-to" in a checkpoint.
+    */
+    static class Intervals {
+        final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+        void add(long from, long to) {
+            Map.Entry<Long, Long> e = ranges.floorEntry(from);
+            if (e != null && e.getValue() >= from) {
+                from = e.getKey();
+                to = Math.max(to, e.getValue());
+            }
+            while ((e = ranges.ceilingEntry(from)) != null && e.getKey() <= to) {
+                to = Math.max(to, e.getValue());
+                ranges.remove(e.getKey());
+            }
+            ranges.put(from, to);
+        }
+
+        boolean covers(long from, long to) {
+            Map.Entry<Long, Long> e = ranges.floorEntry(from);
+            return e != null && e.getValue() >= to;
+        }
+
+        static Intervals parse(String text) {
+            Intervals intervals = new Intervals();
+            for (String range : text.split(",")) {
+                if (range.isEmpty()) continue;
+                int dash = range.indexOf('-');
+                intervals.add(Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1)));
+            }
+            return intervals;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Long, Long> e : ranges.entrySet()) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(e.getKey()).append('-').append(e.getValue());
+            }
+            return sb.toString();
+        }
+    }
+
+
+    /*
+    Checkpoint file of a run, for --restore.
+
+    A Properties file next to the results holding the search position and
+    every finished user's result, plus a header (mode, password file,
+    dictionary and its size) that a restore has to match and the run's
+    elapsed time, which a restore carries over into `started`. A timer
+    thread fires every `interval` seconds, and the snapshot is taken one
+    of two ways:
+
+      startPolled   the single-threaded loops poll due() at word
+                    boundaries, flush their matchers so no candidate is
+                    left half-hashed, and call checkpoint()
+      startSampled  the timer takes the snapshot itself from state the
+                    workers keep thread-safe (parallel mode)
+
+    Either way the file is written on the timer thread, to a temporary
+    file that is then renamed over the old one, so hashing threads never
+    wait on the disk and a crash mid-write still leaves the previous
+    checkpoint. The file is deleted once the run completes.
+    */
+    static class Session {
+        final File file;
+        final int interval;
+        final Properties header = new Properties();
+
+        /* Checkpoint loaded by restore(), or null */
+        Properties restored;
+
+        /* nanoTime the run started at, moved back by the time of a restored run */
+        long started = System.nanoTime();
+
+        Supplier<Properties> snapshot;
+        ScheduledExecutorService timer;
+        volatile boolean due;
+
+        Session(File file, int interval) {
+            this.file = file;
+            this.interval = interval;
+        }
+
+        /* Loads the checkpoint, failing if it was written for a different run */
+        void restore() throws IOException {
+            Properties state = new Properties();
+            try (Reader reader = new FileReader(file)) {
+                state.load(reader);
+            }
+            for (String key : header.stringPropertyNames()) {
+                if (!header.getProperty(key).equals(state.getProperty(key))) {
+                    throw new IOException(file + " was written for a different run (" + key + " differs)");
+                }
+            }
+            restored = state;
+            started -= (long) (Double.parseDouble(state.getProperty("run.elapsed", "0")) * 1e9);
+        }
+
+        /* Fills `at` from the restored checkpoint */
+        void restore(SearchPosition at) {
+            at.user = Integer.parseInt(restored.getProperty("user", "0"));
+            at.chain = Integer.parseInt(restored.getProperty("chain", "-1"));
+            at.searched = parseChains(restored.getProperty("searched", ""));
+            at.position = Long.parseLong(restored.getProperty("position", "0"));
+            at.started -= (long) (Double.parseDouble(restored.getProperty("elapsed", "0")) * 1e9);
+        }
+
+        /* Single-threaded state of `at` for a checkpoint */
+        static Properties position(SearchPosition at) {
+            Properties state = new Properties();
+            state.setProperty("user", String.valueOf(at.user));
+            state.setProperty("chain", String.valueOf(at.chain));
+            state.setProperty("searched", chains(at.searched));
+            state.setProperty("position", String.valueOf(at.position));
+            state.setProperty("elapsed", String.valueOf((System.nanoTime() - at.started) / 1e9));
+            return state;
+        }
+
+        /* Chain set as "0,3,7" */
+        static String chains(BitSet searched) {
+            StringBuilder sb = new StringBuilder();
+            for (int c = searched.nextSetBit(0); c >= 0; c = searched.nextSetBit(c + 1)) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        static BitSet parseChains(String s) {
+            BitSet searched = new BitSet();
+            for (String c : s.split(",")) {
+                if (!c.isEmpty()) searched.set(Integer.parseInt(c));
+            }
+            return searched;
+        }
+
+        /* Records a finished user's result under `index` */
+        static void putUser(Properties state, int index, UserEntry user) {
+            state.setProperty("user." + index + ".done", "true");
+            state.setProperty("user." + index + ".seconds", String.valueOf(user.seconds));
+            if (user.password != null) state.setProperty("user." + index + ".password", user.password);
+        }
+
+        /* Reads a result written by putUser; false if the user was not finished */
+        static boolean getUser(Properties state, int index, UserEntry user) {
+            if (state == null || state.getProperty("user." + index + ".done") == null) return false;
+
+            user.password = state.getProperty("user." + index + ".password");
+            user.seconds = Double.parseDouble(state.getProperty("user." + index + ".seconds", "0"));
+            return true;
+        }
+
+        void startPolled(Supplier<Properties> snapshot) {
+            this.snapshot = snapshot;
+            start(() -> due = true);
+        }
+
+        void startSampled(Supplier<Properties> snapshot) {
+            this.snapshot = snapshot;
+            start(() -> write(snapshot.get()));
+        }
+
+        private void start(Runnable tick) {
+            if (interval <= 0) return;
+
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleAtFixedRate(tick, interval, interval, TimeUnit.SECONDS);
+        }
+
+        boolean due() {
+            return due;
+        }
+
+        /* Takes the snapshot on the calling thread and queues the write */
+        void checkpoint() {
+            due = false;
+            Properties state = snapshot.get();
+            timer.execute(() -> write(state));
+        }
+
+        private void write(Properties state) {
+            state.putAll(header);
+            state.setProperty("run.elapsed", String.valueOf((System.nanoTime() - started) / 1e9));
+            File tmp = new File(file.getPath() + ".tmp");
+
+            try {
+                try (Writer writer = new FileWriter(tmp)) {
+                    state.store(writer, "bf_jcrypt session");
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Checkpoint failed: " + e.getMessage());
+            }
+        }
+
+        /* Waits for queued writes, then removes the checkpoint */
+        void finish() throws InterruptedException {
+            if (timer != null) {
+                timer.shutdown();
+                timer.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            file.delete();
+        }
+    }
 
 
     /*
-    Applies an ordered chain of rules to a base word.
-    Deduplicates between stages to control explosion.
+    Potfile: every hash cracked so far with its plaintext, one
+    "hash:plaintext" line each (a crypt(3) hash never contains ':').
+
+    Opt-in (--potfile), since users resolved from it are reported with 0
+    seconds. Shared across runs and password files. It is consulted
+    before any search so known hashes are resolved at once, appended to
+    (and flushed) as soon as a password is cracked, and its plaintexts
+    are the loopback words. Passwords added during the run are also
+    queued for takeFresh(). With a null file, the default, it only keeps
+    the run's cracks in memory, so loopback still works without one.
     */
-    static List<String> applyRuleChain(String word, Rule... rules) {
-        List<String> results = new ArrayList<>();
-        results.add(word);
+    static class Potfile {
+        final File file;
+        final Map<String, String> known = new LinkedHashMap<>();
+        final LinkedHashSet<String> fresh = new LinkedHashSet<>();
+        BufferedWriter writer;
 
-        for (Rule rule : rules) {
-            List<String> next = new ArrayList<>();
-            for (String r : results) {
-                next.addAll(applyRule(r, rule));
+        Potfile(File file) {
+            this.file = file;
+        }
+
+        static Potfile load(File file) throws IOException {
+            Potfile pot = new Potfile(file);
+
+            if (file.exists()) {
+                try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        int colon = line.indexOf(':');
+                        if (colon > 0) pot.known.put(line.substring(0, colon), line.substring(colon + 1));
+                    }
+                }
             }
-            results = new ArrayList<>(new java.util.LinkedHashSet<>(next));
+            pot.writer = new BufferedWriter(new FileWriter(file, true));
+            return pot;
         }
 
-        return results;
+        synchronized String lookup(String hash) {
+            return known.get(hash);
+        }
+
+        /* Distinct known plaintexts */
+        synchronized List<String> plaintexts() {
+            return new ArrayList<>(new LinkedHashSet<>(known.values()));
+        }
+
+        synchronized void add(UserEntry user, String password) {
+            if (known.containsKey(user.hash)) return;
+
+            known.put(user.hash, password);
+            fresh.add(password);
+
+            if (writer == null) return;
+            try {
+                writer.write(user.hash + ":" + password);
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Cannot write potfile: " + e.getMessage());
+            }
+        }
+
+        synchronized boolean hasFresh() {
+            return !fresh.isEmpty();
+        }
+
+        /* Passwords added since the last call */
+        synchronized List<String> takeFresh() {
+            List<String> words = new ArrayList<>(fresh);
+            fresh.clear();
+            return words;
+        }
+
+        synchronized void close() throws IOException {
+            if (writer != null) writer.close();
+        }
     }
 
+
     /*
-    Writes a single user's result line and prints a concise console message.
+    Stream of results as users are settled (--result-stream), for
+    following a long run with tail -f or feeding it to other tools while
+    it goes. The results file only appears in file order at the end.
 
-    Format written to results file:
-      username:password_or_<not found>:time_seconds
+    One record per user: wall-clock time, username, password (empty if
+    not found), what cracked it (UserEntry.crackedBy), the candidates the
+    run had hashed by then, and the user's seconds. JSON Lines, or CSV
+    with a header line when the file name ends in .csv.
+
+    add() takes a snapshot onto a lock-free queue and unparks the writer
+    thread, so cracking threads never wait on the disk. The writer drains
+    everything queued, writes it, then flushes and syncs the file once per
+    batch, so a record is on disk soon after the crack even if the machine
+    goes down. Before start() records are dropped (workers never start it).
     */
-    private static void writeUserResult(BufferedWriter resultWriter, String username, String foundPassword, double userSeconds) throws Exception {
-        if (foundPassword != null) {
-            resultWriter.write(username + ":" + foundPassword + ":" + String.format("%.3f", userSeconds));
-            resultWriter.newLine();
-            System.out.println("Cracked " + username + " in " + String.format("%.3f", userSeconds) + "s: " + foundPassword);
-        } else {
-            resultWriter.write(username + ":<not found>:" + String.format("%.3f", userSeconds));
-            resultWriter.newLine();
-            System.out.println("Password not found for user: " + username + " (elapsed " + String.format("%.3f", userSeconds) + "s)");
+    static class ResultSink {
+        static class Record {
+            final long time = System.currentTimeMillis();
+            final String username;
+            final String password;
+            final String crackedBy;
+            final long candidates;
+            final double seconds;
+
+            Record(UserEntry user, long candidates) {
+                this.username = user.username;
+                this.password = user.password;
+                this.crackedBy = user.password == null ? null : user.crackedBy;
+                this.candidates = candidates;
+                this.seconds = user.seconds;
+            }
+        }
+
+        final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+        volatile Thread thread;
+        volatile boolean closing;
+        FileOutputStream file;
+        Writer out;
+        boolean csv;
+
+        /* Opens the file, appending on a restored run, and starts the writer */
+        void start(File f, boolean append) throws IOException {
+            csv = f.getName().endsWith(".csv");
+            boolean header = csv && !(append && f.length() > 0);
+
+            file = new FileOutputStream(f, append);
+            out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+            if (header) out.write("time,username,password,cracked_by,candidates,seconds\n");
+
+            Thread t = new Thread(this::drain, "result-sink");
+            t.setDaemon(true);
+            thread = t;
+            t.start();
+        }
+
+        void add(UserEntry user) {
+            Thread t = thread;
+            if (t == null) return;
+
+            queue.add(new Record(user, METRICS.getCandidatesHashed()));
+            LockSupport.unpark(t);
+        }
+
+        private void drain() {
+            boolean failed = false;
+
+            while (true) {
+                /* Read before draining, so a record queued before close() is still written */
+                boolean last = closing;
+                boolean wrote = false;
+
+                for (Record r; (r = queue.poll()) != null; ) {
+                    if (failed) continue;
+                    try {
+                        out.write(csv ? csv(r) : json(r));
+                        out.write('\n');
+                        wrote = true;
+                    } catch (IOException e) {
+                        System.err.println("Cannot write result stream: " + e.getMessage());
+                        failed = true;
+                    }
+                }
+                if (wrote && !failed) {
+                    try {
+                        out.flush();
+                        file.getFD().sync();
+                    } catch (IOException e) {
+                        System.err.println("Cannot write result stream: " + e.getMessage());
+                        failed = true;
+                    }
+                }
+                if (last) break;
+                LockSupport.park(this);
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (!failed) System.err.println("Cannot write result stream: " + e.getMessage());
+            }
+        }
+
+        /* Writes what is queued and stops the writer */
+        void close() throws InterruptedException {
+            Thread t = thread;
+            if (t == null) return;
+
+            closing = true;
+            LockSupport.unpark(t);
+            t.join();
+        }
+
+        static String json(Record r) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"time\":\"").append(Instant.ofEpochMilli(r.time)).append('"');
+            sb.append(",\"username\":");
+            quote(sb, r.username);
+            sb.append(",\"password\":");
+            if (r.password == null) sb.append("null");
+            else quote(sb, r.password);
+            sb.append(",\"cracked_by\":");
+            if (r.crackedBy == null) sb.append("null");
+            else quote(sb, r.crackedBy);
+            sb.append(",\"candidates\":").append(r.candidates);
+            sb.append(",\"seconds\":").append(String.format("%.3f", r.seconds));
+            return sb.append('}').toString();
+        }
+
+        static void quote(StringBuilder sb, String s) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+
+        static String csv(Record r) {
+            return Instant.ofEpochMilli(r.time) + "," + field(r.username) + "," + field(r.password) + ","
+                + field(r.crackedBy) + "," + r.candidates + "," + String.format("%.3f", r.seconds);
+        }
+
+        /* RFC 4180: quoted, with quotes doubled, when it has a comma, quote or line break */
+        static String field(String s) {
+            if (s == null) return "";
+            if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) return s;
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+    }
+
+
+    /*
+    Picks the order in which rule chains are searched.
+
+    RULE_CHAINS is ordered by hand, and many of its later chains rarely
+    crack anything. For every chain this keeps the hashes tested, the
+    cracks it produced and the CPU time spent on it, over this run and
+    every earlier run sharing the stats file, and next() hands out the
+    unsearched chain with the most expected cracks per second:
+
+        score = (cracks + 1) / (seconds + pass)
+
+    where `pass` is the estimated time of one pass of the chain over the
+    current dictionary (estimateExpansion at the observed hash rate). The
+    +1 is a prior of one crack per pass, so a chain with no history is
+    ranked by cost alone, cheapest first, and a chain that keeps missing
+    sinks as its seconds grow. Scores are recomputed on every call, so
+    the order follows the cracks as they come in during a run.
+
+    Chains are keyed by their rule names in the stats file, so editing
+    RULE_CHAINS does not shift history onto the wrong chain. Hashes per
+    chain come from METRICS; cracks and CPU time are recorded here.
+    */
+    static class ChainScheduler {
+        /* Hash rate assumed before any has been measured */
+        static final double DEFAULT_RATE = 250_000;
+
+        final long[] pastHashes = new long[RULE_CHAINS.length];
+        final long[] pastCracks = new long[RULE_CHAINS.length];
+        final long[] pastNanos = new long[RULE_CHAINS.length];
+        final LongAdder[] cracks = metrics_jcrypt.Metrics.adders(RULE_CHAINS.length);
+        final LongAdder[] nanos = metrics_jcrypt.Metrics.adders(RULE_CHAINS.length);
+
+        /* Array order instead of scores (--static-order) */
+        volatile boolean fixed;
+
+        static String key(Rule[] chain) {
+            StringBuilder sb = new StringBuilder();
+            for (Rule rule : chain) {
+                if (sb.length() > 0) sb.append('+');
+                sb.append(rule.name());
+            }
+            return sb.toString();
+        }
+
+        /* CPU time of the calling thread, or wall time if the JVM cannot measure it */
+        static long cpuTime() {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+        }
+
+        void cracked(int chain) {
+            cracks[chain].increment();
+        }
+
+        /* Adds the time since `since` (a cpuTime() reading) to the chain */
+        void spent(int chain, long since) {
+            nanos[chain].add(cpuTime() - since);
+        }
+
+        long hashes(int chain) {
+            return pastHashes[chain] + METRICS.hashed[chain].sum();
+        }
+
+        long crackCount(int chain) {
+            return pastCracks[chain] + cracks[chain].sum();
+        }
+
+        long nanos(int chain) {
+            return pastNanos[chain] + nanos[chain].sum();
+        }
+
+        /* Hashes per second over every chain with history */
+        double rate() {
+            long h = 0, t = 0;
+            for (int c = 0; c < RULE_CHAINS.length; c++) {
+                h += hashes(c);
+                t += nanos(c);
+            }
+            return h == 0 || t == 0 ? DEFAULT_RATE : h / (t / 1e9);
+        }
+
+        /*
+        Expected cracks per second of chain c over `words` words of about
+        `wordLength` characters, each candidate hashed under `salts` salts.
+        */
+        double score(int c, int wordLength, long words, int salts, double rate) {
+            double pass = estimateExpansion(RULE_CHAINS[c], wordLength) * (double) words * salts / rate;
+            return (crackCount(c) + 1) / (nanos(c) / 1e9 + pass);
+        }
+
+        /* Best chain not in `searched`, or -1 once every chain is */
+        int next(BitSet searched, int wordLength, long words, int salts) {
+            if (fixed) {
+                int c = searched.nextClearBit(0);
+                return c < RULE_CHAINS.length ? c : -1;
+            }
+
+            double rate = rate();
+            int best = -1;
+            double bestScore = 0;
+            for (int c = searched.nextClearBit(0); c < RULE_CHAINS.length; c = searched.nextClearBit(c + 1)) {
+                double s = score(c, wordLength, Math.max(1, words), Math.max(1, salts), rate);
+                if (best < 0 || s > bestScore) {
+                    best = c;
+                    bestScore = s;
+                }
+            }
+            return best;
+        }
+
+        /* Adds the totals of an earlier run; a missing file is an empty history */
+        void load(File file) throws IOException {
+            if (!file.exists()) return;
+
+            Properties stats = new Properties();
+            try (Reader in = new FileReader(file)) {
+                stats.load(in);
+            }
+            for (int c = 0; c < RULE_CHAINS.length; c++) {
+                String key = key(RULE_CHAINS[c]);
+                try {
+                    pastHashes[c] = Long.parseLong(stats.getProperty(key + ".hashes", "0"));
+                    pastCracks[c] = Long.parseLong(stats.getProperty(key + ".cracks", "0"));
+                    pastNanos[c] = Long.parseLong(stats.getProperty(key + ".nanos", "0"));
+                } catch (NumberFormatException e) {
+                    pastHashes[c] = pastCracks[c] = pastNanos[c] = 0;
+                }
+            }
+        }
+
+        /*
+        Writes the totals including this run, through a temporary file
+        like Session, keeping entries of chains no longer in RULE_CHAINS.
+        */
+        void save(File file) throws IOException {
+            Properties stats = new Properties();
+            if (file.exists()) {
+                try (Reader in = new FileReader(file)) {
+                    stats.load(in);
+                }
+            }
+            for (int c = 0; c < RULE_CHAINS.length; c++) {
+                String key = key(RULE_CHAINS[c]);
+                stats.setProperty(key + ".hashes", String.valueOf(hashes(c)));
+                stats.setProperty(key + ".cracks", String.valueOf(crackCount(c)));
+                stats.setProperty(key + ".nanos", String.valueOf(nanos(c)));
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try (Writer writer = new FileWriter(tmp)) {
+                stats.store(writer, "bf_jcrypt rule chain statistics");
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+
+    /*
+    Command line options.
+
+      --by-candidate   hash each candidate once per salt against all users
+                       (candidate-major) instead of cracking users one by one
+      --threads N      crack users on N worker threads (fork-join engine)
+      --pipeline N     candidate-major on N hasher threads, fed through a
+                       ring buffer by generator threads (see PipelineCracker)
+      --producers P    with --pipeline, generate on P threads (default 1)
+      --interleave     take turns between users, cheapest chains first,
+                       instead of cracking them one by one
+                       (see InterleavedCracker)
+      --user-time S    with --interleave, give up on a user after S
+                       seconds of search (default 0, no limit)
+      --user-candidates N
+                       with --interleave, give up on a user after N
+                       candidates (default 0, no limit)
+      --deadline S     with --interleave, stop the run after S seconds
+                       (default 0, no limit)
+      --engine NAME    hash with `scalar` (jcrypt, default), `bitslice`
+                       (bs_jcrypt, 64 candidates per pass) or `vector`
+                       (vec_jcrypt, one candidate per SIMD lane)
+      --checkpoint S   write a session checkpoint every S seconds
+                       (default 60, 0 disables)
+      --restore        continue the interrupted run of the same command
+                       from its session checkpoint
+      --potfile FILE   read and append to a potfile of cracked hashes
+                       (default none; users found in it get 0 seconds)
+      --no-potfile     neither read nor write a potfile (the default)
+      --result-stream FILE
+                       stream each user's result to FILE as it is settled,
+                       JSON Lines or CSV by extension (default
+                       Results/<passwd_file>_results.jsonl; see ResultSink)
+      --no-result-stream
+                       write only the results file at the end
+      --metrics-interval S
+                       print a metrics line every S seconds (default 10,
+                       0 disables; see metrics_jcrypt)
+      --metrics-port P serve Prometheus metrics on 127.0.0.1:P/metrics
+                       (default 0, off)
+      --chain-stats FILE
+                       per-chain history for the scheduler (default
+                       Results/bf_jcrypt.stats; see ChainScheduler)
+      --no-chain-stats neither read nor write chain history
+      --static-order   search chains in RULE_CHAINS order
+      --seen-filter MB off-heap memory for filters of keys already hashed,
+                       so later chains skip them (default 0, off; see
+                       SeenFilter). A false positive skips a key never
+                       hashed, so a run may miss a password it would
+                       otherwise find
+      --seen-filter-fpr P
+                       false-positive rate the filters are held to
+                       (default 1e-6); each false positive skips a
+                       candidate unhashed
+      --mask MASK      brute-force MASK (e.g. ?u?l?l?l?d?d) instead of
+                       the rule chains; the dictionary is optional
+                       (see Mask, SourceCracker)
+      --charset1 .. --charset4 CHARSET
+                       custom charsets for ?1 .. ?4 in the mask
+      --rules FILE     apply the hashcat/John rules in FILE to the
+                       dictionary instead of the rule chains
+                       (see rules_jcrypt)
+      --coordinator P  hand the mask, rules or rule chains out to workers
+                       connecting on TCP port P (see dist_jcrypt)
+      --worker HOST:PORT
+                       work for the coordinator at HOST:PORT; takes no
+                       files, and --threads sets its pool size
+      --bind ADDR      with --coordinator, listen on ADDR instead of the
+                       loopback interface (0.0.0.0 for all)
+      --secret S       shared secret of coordinator and workers; required
+                       by both, read from BF_JCRYPT_SECRET if not given
+      --pcfg N         before the rule chains, try the N most likely
+                       guesses of a grammar trained on earlier cracks
+                       and the wordlist (default 0, off; see pcfg_jcrypt)
+      --pcfg-words N   train the grammar on the first N wordlist words
+                       only (default 10000)
+    */
+    static class Options {
+        boolean byCandidate;
+        int threads;
+        boolean interleave;
+        int pipeline;
+        int producers = 1;
+        double userSeconds;
+        long userCandidates;
+        double deadlineSeconds;
+        String engine = ENGINE_SCALAR;
+        int checkpointSeconds = 60;
+        boolean restore;
+        String potfile;
+        String resultStream;
+        boolean noResultStream;
+        int metricsInterval = 10;
+        int metricsPort;
+        String chainStats = "Results/bf_jcrypt.stats";
+        boolean staticOrder;
+        long seenFilterMb;
+        double seenFilterFpr = 1e-6;
+        long pcfgGuesses;
+        long pcfgWords = 10_000;
+        String mask;
+        String[] charsets = new String[4];
+        String rules;
+        int coordinatorPort;
+        String workerHost;
+        String bind;
+        String secret;
+        int workerPort;
+        String passwdFile;
+        String dictionaryFile;
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            List<String> positional = new ArrayList<>();
+
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                switch (a) {
+                    case "--by-candidate":
+                        o.byCandidate = true;
+                        break;
+                    case "--threads":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.threads = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.threads < 1) return null;
+                        break;
+                    case "--interleave":
+                        o.interleave = true;
+                        break;
+                    case "--pipeline":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.pipeline = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.pipeline < 1) return null;
+                        break;
+                    case "--producers":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.producers = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.producers < 1) return null;
+                        break;
+                    case "--user-time":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.userSeconds = Double.parseDouble(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (!(o.userSeconds >= 0)) return null;
+                        break;
+                    case "--user-candidates":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.userCandidates = Long.parseLong(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.userCandidates < 0) return null;
+                        break;
+                    case "--deadline":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.deadlineSeconds = Double.parseDouble(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (!(o.deadlineSeconds >= 0)) return null;
+                        break;
+                    case "--engine":
+                        if (i + 1 >= args.length) return null;
+                        o.engine = args[++i];
+                        if (!o.engine.equals(ENGINE_SCALAR) && !o.engine.equals(ENGINE_BITSLICE)
+                            && !o.engine.equals(ENGINE_VECTOR)) return null;
+                        break;
+                    case "--checkpoint":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.checkpointSeconds = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.checkpointSeconds < 0) return null;
+                        break;
+                    case "--restore":
+                        o.restore = true;
+                        break;
+                    case "--potfile":
+                        if (i + 1 >= args.length) return null;
+                        o.potfile = args[++i];
+                        break;
+                    case "--no-potfile":
+                        o.potfile = null;
+                        break;
+                    case "--result-stream":
+                        if (i + 1 >= args.length) return null;
+                        o.resultStream = args[++i];
+                        break;
+                    case "--no-result-stream":
+                        o.noResultStream = true;
+                        break;
+                    case "--metrics-interval":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.metricsInterval = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.metricsInterval < 0) return null;
+                        break;
+                    case "--chain-stats":
+                        if (i + 1 >= args.length) return null;
+                        o.chainStats = args[++i];
+                        break;
+                    case "--no-chain-stats":
+                        o.chainStats = null;
+                        break;
+                    case "--mask":
+                        if (i + 1 >= args.length) return null;
+                        o.mask = args[++i];
+                        break;
+                    case "--rules":
+                        if (i + 1 >= args.length) return null;
+                        o.rules = args[++i];
+                        break;
+                    case "--coordinator":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.coordinatorPort = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.coordinatorPort < 1 || o.coordinatorPort > 65535) return null;
+                        break;
+                    case "--worker": {
+                        if (i + 1 >= args.length) return null;
+                        String address = args[++i];
+                        int colon = address.lastIndexOf(':');
+                        if (colon <= 0) return null;
+                        o.workerHost = address.substring(0, colon);
+                        try {
+                            o.workerPort = Integer.parseInt(address.substring(colon + 1));
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.workerPort < 1 || o.workerPort > 65535) return null;
+                        break;
+                    }
+                    case "--bind":
+                        if (i + 1 >= args.length) return null;
+                        o.bind = args[++i];
+                        break;
+                    case "--secret":
+                        if (i + 1 >= args.length) return null;
+                        o.secret = args[++i];
+                        break;
+                    case "--charset1":
+                    case "--charset2":
+                    case "--charset3":
+                    case "--charset4":
+                        if (i + 1 >= args.length) return null;
+                        o.charsets[a.charAt(a.length() - 1) - '1'] = args[++i];
+                        break;
+                    case "--pcfg":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.pcfgGuesses = Long.parseLong(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.pcfgGuesses < 0) return null;
+                        break;
+                    case "--pcfg-words":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.pcfgWords = Long.parseLong(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.pcfgWords < 0) return null;
+                        break;
+                    case "--static-order":
+                        o.staticOrder = true;
+                        break;
+                    case "--seen-filter":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.seenFilterMb = Long.parseLong(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.seenFilterMb < 0) return null;
+                        break;
+                    case "--seen-filter-fpr":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.seenFilterFpr = Double.parseDouble(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (!(o.seenFilterFpr > 0 && o.seenFilterFpr < 1)) return null;
+                        break;
+                    case "--metrics-port":
+                        if (i + 1 >= args.length) return null;
+                        try {
+                            o.metricsPort = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (o.metricsPort < 0 || o.metricsPort > 65535) return null;
+                        break;
+                    default:
+                        if (a.startsWith("--")) return null;
+                        positional.add(a);
+                }
+            }
+            if (o.workerHost != null) return positional.isEmpty() && o.coordinatorPort == 0 && o.bind == null ? o : null;
+            if (o.coordinatorPort == 0 && (o.bind != null || o.secret != null)) return null;
+            if (o.coordinatorPort > 0 && (o.byCandidate || o.threads > 0)) return null;
+
+            if (positional.size() != 2 && !(o.mask != null && positional.size() == 1)) return null;
+            if (o.byCandidate && o.threads > 0) return null;
+            if (o.byCandidate && (o.mask != null || o.rules != null)) return null;
+            if (o.mask != null && o.rules != null) return null;
+            if (o.interleave && (o.byCandidate || o.threads > 0 || o.mask != null || o.rules != null || o.coordinatorPort > 0)) return null;
+            if (o.pipeline > 0 && (o.byCandidate || o.threads > 0 || o.interleave || o.mask != null || o.rules != null || o.coordinatorPort > 0)) return null;
+            if (o.pipeline == 0 && o.producers != 1) return null;
+            if (!o.interleave && (o.userSeconds > 0 || o.userCandidates > 0 || o.deadlineSeconds > 0)) return null;
+
+            o.passwdFile = positional.get(0);
+            o.dictionaryFile = positional.size() > 1 ? positional.get(1) : null;
+            return o;
         }
     }
 
@@ -553,15 +4562,24 @@ public class bf_jcrypt {
 
         Description:
             - Entry point for the rule-based password cracking program.
-            - Expects two arguments: a Unix-style password file and a dictionary file.
+            - Expects two arguments: a Unix-style password file and a dictionary file,
+              optionally preceded by options (see `Options`).
 
         Flow:
             1. Validate CLI arguments and create output directory `Results`.
-            2. Load password entries and dictionary words into memory.
+            2. Load password entries and map the dictionary file.
             3. For each user: extend the dictionary with user-specific name variants,
                  apply ordered rule chains to generate candidate variants, hash each
                  candidate using `jcrypt.crypt(salt, candidate)`, and compare against
                  the stored hash.
+               With `--by-candidate` the loops are inverted: each candidate is hashed
+                 once per distinct salt and compared against all remaining users.
+               With `--threads N` users, chains and dictionary shards are cracked
+                 concurrently and results are still written in file order.
+               With `--pipeline N` candidate-major generation and hashing run on
+                 separate threads, handing batches over through a ring buffer.
+               With `--interleave` users take turns, a tier of cheap chains at
+                 a time, within optional per-user budgets and a deadline.
             4. Record the found password (or `<not found>`) and the per-user elapsed
                  time to the results file in the format `username:password:time_seconds`.
             5. After processing all users, append a summary line and total runtime.
@@ -572,12 +4590,74 @@ public class bf_jcrypt {
         */
         public static void main(String[] args) throws Exception {
 
-        if (args.length != 2) {
-            System.err.println("Usage: java bf_jcrypt <passwd_file> <dictionary_file>");
+        Options options = Options.parse(args);
+        if (options == null) {
+            System.err.println("Usage: java bf_jcrypt [--by-candidate | --threads N | --pipeline N [--producers P] | --interleave [--user-time SECONDS] [--user-candidates N] [--deadline SECONDS]] [--engine scalar|bitslice|vector] [--checkpoint SECONDS] [--restore] [--potfile FILE | --no-potfile] [--result-stream FILE | --no-result-stream] [--metrics-interval SECONDS] [--metrics-port PORT] [--chain-stats FILE | --no-chain-stats] [--static-order] [--seen-filter MB] [--seen-filter-fpr P] [--pcfg GUESSES [--pcfg-words N]] [--mask MASK [--charsetN CHARSET] | --rules FILE] [--coordinator PORT [--bind ADDR] [--secret S]] <passwd_file> <dictionary_file>");
+            System.err.println("       java bf_jcrypt --worker HOST:PORT [--secret S] [--threads N] [--engine scalar|bitslice|vector] [--metrics-interval SECONDS] [--metrics-port PORT]");
             System.exit(1);
         }
 
-        String input_filename = args[0];
+        Mask mask = null;
+        if (options.mask != null) {
+            try {
+                mask = Mask.parse(options.mask, options.charsets);
+                mask.keyspace();
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                System.err.println("Bad mask " + options.mask + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        List<rules_jcrypt.RuleProgram> rules = null;
+        if (options.rules != null) {
+            try {
+                rules = rules_jcrypt.RuleProgram.load(options.rules);
+            } catch (IOException e) {
+                System.err.println("Cannot read rules: " + e.getMessage());
+                System.exit(1);
+            }
+            if (rules.isEmpty()) {
+                System.err.println("No usable rules in " + options.rules);
+                System.exit(1);
+            }
+        }
+
+        if (options.engine.equals(ENGINE_VECTOR) && !vectorEngineAvailable()) {
+            System.err.println("Vector API not available (run with --add-modules jdk.incubator.vector), using scalar engine");
+            options.engine = ENGINE_SCALAR;
+        }
+
+        if (options.workerHost != null || options.coordinatorPort > 0) {
+            if (options.secret == null) options.secret = System.getenv(dist_jcrypt.Coordinator.SECRET_VARIABLE);
+            if (options.secret == null || options.secret.isEmpty()) {
+                System.err.println("Distributed runs need a shared secret: --secret or " + dist_jcrypt.Coordinator.SECRET_VARIABLE);
+                System.exit(1);
+            }
+        }
+        InetAddress bind = null;
+        if (options.bind != null) {
+            try {
+                bind = InetAddress.getByName(options.bind);
+            } catch (IOException e) {
+                System.err.println("Bad bind address " + options.bind + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (options.workerHost != null) {
+            METRICS.start(options.metricsInterval, options.metricsPort);
+            try {
+                dist_jcrypt.SourceWorker.run(options.workerHost, options.workerPort, options.secret, options.engine, Math.max(1, options.threads));
+            } catch (IOException e) {
+                System.err.println("Worker stopped: " + e.getMessage());
+                System.exit(1);
+            } finally {
+                METRICS.stop();
+            }
+            return;
+        }
+
+        String input_filename = options.passwdFile;
         input_filename = input_filename.substring(0, input_filename.length()-4);
 
         int totalUsers = 0;
@@ -587,48 +4667,248 @@ public class bf_jcrypt {
 
         try (BufferedWriter resultWriter = new BufferedWriter(new FileWriter("Results/" + input_filename + "_results.txt"))) {
 
-            List<UserEntry> users = loadPasswordFile(args[0]);
-            List<String> dictionary = loadDictionary(args[1]);
+            List<UserEntry> users = loadPasswordFile(options.passwdFile);
+            Wordlist dictionary = options.dictionaryFile == null ? Wordlist.empty() : loadDictionary(options.dictionaryFile);
 
-            long totalStart = System.nanoTime();
+            Session session = new Session(new File("Results/" + input_filename + ".session"), options.checkpointSeconds);
+            String mode = mask != null ? "mask" : rules != null ? "rules" : options.byCandidate ? "by-candidate" : options.threads > 0 ? "threads" : options.pipeline > 0 ? "pipeline" : options.interleave ? "interleave" : "sequential";
+            session.header.setProperty("mode", options.coordinatorPort > 0 ? "coordinator " + mode : mode);
+            session.header.setProperty("passwd", options.passwdFile);
+            if (options.dictionaryFile != null) session.header.setProperty("dictionary", options.dictionaryFile);
+            session.header.setProperty("dictionary.size", String.valueOf(dictionary.size));
+            if (mask != null) session.header.setProperty("mask", options.mask + " " + Arrays.toString(options.charsets));
+            if (rules != null) session.header.setProperty("rules", options.rules + " " + rules.size());
+            session.header.setProperty("pcfg", String.valueOf(options.pcfgGuesses));
 
-            for (UserEntry user : users) {
-                System.out.println("Cracking user: " + user.username);
-                boolean cracked = false;
+            if (options.restore) {
+                try {
+                    session.restore();
+                } catch (IOException e) {
+                    System.err.println("Cannot restore session: " + e.getMessage());
+                    System.exit(1);
+                }
+            } else if (options.checkpointSeconds > 0 && session.file.exists()) {
+                System.err.println("Session " + session.file + " exists; use --restore to continue it, or delete it to start over");
+                System.exit(1);
+            }
+
+            if (!options.noResultStream) {
+                File stream = new File(options.resultStream != null ? options.resultStream : "Results/" + input_filename + "_results.jsonl");
+                try {
+                    RESULTS.start(stream, options.restore);
+                } catch (IOException e) {
+                    System.err.println("Cannot open result stream: " + e.getMessage());
+                }
+            }
 
-                totalUsers++;
+            long totalStart = session.started;
 
-                List<String> extendedDictionary = addNameDatatoDictionary(user, dictionary);
+            METRICS.usersTotal = users.size();
+            METRICS.start(options.metricsInterval, options.metricsPort);
+
+            SCHEDULER.fixed = options.staticOrder;
+
+            /* One filter per user in flight, or per salt group when candidate-major */
+            int filterSlots = options.byCandidate || options.pipeline > 0 ? groupBySalt(users).size() : options.interleave ? users.size() : Math.max(1, options.threads);
+            SEEN.configure(options.seenFilterMb << 20, options.seenFilterFpr, filterSlots);
+            if (options.chainStats != null) {
+                File statsFile = new File(options.chainStats);
+                try {
+                    SCHEDULER.load(statsFile);
+                } catch (IOException e) {
+                    System.err.println("Cannot read chain stats: " + e.getMessage());
+                }
+                /* On exit rather than at the end of main, so an interrupted run still counts */
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        SCHEDULER.save(statsFile);
+                    } catch (IOException e) {
+                        System.err.println("Cannot write chain stats: " + e.getMessage());
+                    }
+                }));
+            }
 
-                long userStart = System.nanoTime();
-                String foundPassword = null;
+            Potfile pot = options.potfile == null ? new Potfile(null) : Potfile.load(new File(options.potfile));
+            int known = 0;
+            for (UserEntry user : users) {
+                user.password = pot.lookup(user.hash);
+                if (user.password != null) {
+                    user.crackedBy = "potfile";
+                    userFinished(user);
+                    known++;
+                }
+            }
+            if (known > 0) System.out.println("Found " + known + " users in potfile.");
 
-                for (Rule[] chain : RULE_CHAINS) {
+            /* Sequential and threaded runs time each user on their own, so a loopback crack keeps the time of its pass */
+            boolean perUser = mode.equals("sequential") || mode.equals("threads");
+            BiConsumer<UserEntry, String> onLoopback = (user, password) -> {
+                if (!perUser) user.seconds = (System.nanoTime() - totalStart) / 1e9;
+                pot.add(user, password);
+                userFinished(user);
+                System.out.println("Cracked " + user.username + " by loopback: " + password);
+            };
+            loopback(pot, pot.plaintexts(), users, options.engine, onLoopback);
 
-                    for (String candidate : extendedDictionary) {
+            /* Checkpoints start after this phase, so a restored run has already done it */
+            if (options.pcfgGuesses > 0 && session.restored == null) {
+                Set<String> cracked = new LinkedHashSet<>(pot.plaintexts());
+                cracked.addAll(pcfg_jcrypt.Pcfg.crackedPlaintexts(new File("Results")));
+                pcfg_jcrypt.Pcfg grammar = pcfg_jcrypt.Pcfg.train(cracked, dictionary, options.pcfgWords, users);
 
-                        List<String> variants = applyRuleChain(candidate, chain);
+                pcfg_jcrypt.crackByPcfg(users, grammar, options.pcfgGuesses, options.engine, (user, password) -> {
+                    user.seconds = (System.nanoTime() - totalStart) / 1e9;
+                    user.crackedBy = "pcfg";
+                    pot.add(user, password);
+                    userFinished(user);
+                    System.out.println("Cracked " + user.username + " by PCFG: " + password);
+                });
+                loopback(pot, pot.takeFresh(), users, options.engine, onLoopback);
+            }
 
-                        for (String modifiedCandidate : variants) {
+            if (mask != null || rules != null || options.coordinatorPort > 0) {
+                CandidateSource source = mask != null
+                    ? mask
+                    : rules != null
+                    ? new rules_jcrypt.RuleSource(addNameDatatoDictionary(users, dictionary), rules)
+                    : new ChainSource(addNameDatatoDictionary(users, dictionary));
+                SourceCracker cracker = new SourceCracker(source, users, options.engine, pot, Math.max(1, options.threads));
+                cracker.method = mask != null ? "mask" : rules != null ? "rules" : "chains";
+                if (session.restored != null) cracker.restore(session.restored);
+                session.startSampled(cracker::save);
 
-                            String hashedCandidate = jcrypt.crypt(user.salt, modifiedCandidate);
+                if (mask != null) System.out.println("Mask " + mask.text + ": " + mask.keyspace() + " candidates");
+                else if (rules != null) System.out.println("Rules " + options.rules + ": " + rules.size() + " rules");
 
-                            if (hashedCandidate.equals(user.hash)) {
-                                foundPassword = modifiedCandidate;
-                                cracked = true;
-                                break;
-                            }
+                if (options.coordinatorPort > 0) {
+                    Properties job = new Properties();
+                    job.setProperty("source", mask != null ? "mask" : rules != null ? "rules" : "chains");
+                    if (options.dictionaryFile != null) job.setProperty("dictionary", new File(options.dictionaryFile).getAbsolutePath());
+                    job.setProperty("dictionary.size", String.valueOf(dictionary.size));
+                    if (mask != null) {
+                        job.setProperty("mask", options.mask);
+                        for (int i = 0; i < options.charsets.length; i++) {
+                            if (options.charsets[i] != null) job.setProperty("charset" + (i + 1), options.charsets[i]);
                         }
-                        if (cracked) break;
                     }
-                    if (cracked) break;
+                    if (rules != null) {
+                        job.setProperty("rules", new File(options.rules).getAbsolutePath());
+                        job.setProperty("rules.size", String.valueOf(rules.size()));
+                    }
+                    new dist_jcrypt.Coordinator(cracker, job, bind, options.coordinatorPort, options.secret).run();
+                } else {
+                    cracker.run();
+                }
+                loopback(pot, pot.takeFresh(), users, options.engine, onLoopback);
+
+                for (UserEntry user : users) {
+                    totalUsers++;
+                    writeUserResult(resultWriter, user.username, user.password, user.seconds);
+                    if (user.password != null) crackedUsers++;
+                }
+            } else if (options.pipeline > 0) {
+                PipelineCracker cracker = new PipelineCracker(users, dictionary, options.engine, pot, options.pipeline, options.producers);
+                if (session.restored != null) cracker.restore(session.restored);
+                session.startSampled(cracker::save);
+
+                cracker.run(onLoopback);
+
+                for (UserEntry user : users) {
+                    totalUsers++;
+                    writeUserResult(resultWriter, user.username, user.password, user.seconds);
+                    if (user.password != null) crackedUsers++;
+                }
+            } else if (options.interleave) {
+                InterleavedCracker cracker = new InterleavedCracker(users, dictionary, options.engine, pot, onLoopback);
+                cracker.userNanos = (long) (options.userSeconds * 1e9);
+                cracker.userCandidates = options.userCandidates;
+                if (options.deadlineSeconds > 0) cracker.deadline = System.nanoTime() + (long) (options.deadlineSeconds * 1e9);
+                if (session.restored != null) cracker.restore(session.restored);
+                session.startPolled(cracker::save);
+
+                cracker.run(session);
+
+                for (UserEntry user : users) {
+                    totalUsers++;
+                    writeUserResult(resultWriter, user.username, user.password, user.seconds);
+                    if (user.password != null) crackedUsers++;
+                }
+            } else if (options.byCandidate) {
+                SearchPosition at = new SearchPosition();
+                if (session.restored != null) {
+                    session.restore(at);
+                    for (int i = 0; i < users.size(); i++) Session.getUser(session.restored, i, users.get(i));
+                }
+                session.startPolled(() -> {
+                    Properties state = Session.position(at);
+                    for (int i = 0; i < users.size(); i++) {
+                        if (users.get(i).password != null) Session.putUser(state, i, users.get(i));
+                    }
+                    return state;
+                });
+
+                crackByCandidate(users, dictionary, options.engine, at, session, pot);
+
+                for (UserEntry user : users) {
+                    totalUsers++;
+                    writeUserResult(resultWriter, user.username, user.password, user.seconds);
+                    if (user.password != null) crackedUsers++;
+                }
+            } else if (options.threads > 0) {
+                ParallelCracker cracker = new ParallelCracker(options.threads, options.engine, pot);
+                List<ParallelCracker.UserJob> jobs = cracker.submitAll(users, dictionary, session.restored);
+                session.startSampled(() -> ParallelCracker.save(jobs));
+
+                for (ParallelCracker.UserJob job : jobs) {
+                    job.join();
+                    totalUsers++;
+                    writeUserResult(resultWriter, job.user.username, job.user.password, job.user.seconds);
+                    if (job.user.password != null) crackedUsers++;
                 }
+                cracker.shutdown();
+            } else {
+                SearchPosition at = new SearchPosition();
+                if (session.restored != null) session.restore(at);
+
+                session.startPolled(() -> {
+                    Properties state = Session.position(at);
+                    for (int i = 0; i < at.user; i++) Session.putUser(state, i, users.get(i));
+                    return state;
+                });
 
-                double userSeconds = (System.nanoTime() - userStart) / 1e9;
+                for (int i = 0; i < users.size(); i++) {
+                    UserEntry user = users.get(i);
+                    totalUsers++;
 
-                writeUserResult(resultWriter, user.username, foundPassword, userSeconds);
-                if (foundPassword != null) crackedUsers++;
+                    if (i < at.user) {
+                        Session.getUser(session.restored, i, user);
+                    } else {
+                        if (user.password == null) {
+                            System.out.println("Cracking user: " + user.username);
+
+                            user.password = crackUser(user, dictionary, options.engine, at, session);
+                            user.seconds = (System.nanoTime() - at.started) / 1e9;
+                            userFinished(user);
+
+                            if (user.password != null) {
+                                pot.add(user, user.password);
+                                loopback(pot, pot.takeFresh(), users.subList(i + 1, users.size()), options.engine, onLoopback);
+                            }
+                        }
+
+                        at.user = i + 1;
+                        at.chain = -1;
+                        at.searched.clear();
+                        at.position = 0;
+                        at.started = System.nanoTime();
+                    }
+
+                    writeUserResult(resultWriter, user.username, user.password, user.seconds);
+                    if (user.password != null) crackedUsers++;
+                }
             }
+            session.finish();
+            pot.close();
 
             double totalSeconds = (System.nanoTime() - totalStart) / 1e9;
 
@@ -637,6 +4917,9 @@ public class bf_jcrypt {
             resultWriter.newLine();
             resultWriter.write("Total time: " + String.format("%.3f", totalSeconds) + "s");
 
+        } finally {
+            RESULTS.close();
+            METRICS.stop();
         }
     }
 }
@@ -0,0 +1,620 @@
+/****************************************************************************
+ * bs_jcrypt.java
+ *
+ * Bitsliced implementation of the unix crypt command.
+ *
+ * Each long holds one bit position of 64 independent keys, one key per
+ * bit lane, so one pass through the DES rounds hashes 64 candidates that
+ * share a salt. Permutations (E, P, PC1, PC2, FP) become plain array
+ * indexing, the salt's E-box swap is applied once to the E wiring when
+ * the engine is created, and the S-boxes are evaluated as boolean gate
+ * networks (a sum of minterms with shared terms, derived from the
+ * standard FIPS 46 tables).
+ *
+ * Results are bit for bit identical to jcrypt.crypt(salt, key). Running
+ * the class checks that over random salts and keys:
+ *
+ *    java bs_jcrypt [rounds] [seed]
+ *
+ ****************************************************************************/
+
+public class bs_jcrypt implements jcrypt.BatchEngine
+{
+   /* Number of keys hashed per pass */
+   public static final int LANES = 64;
+
+   private static final int ITERATIONS = 16;
+
+   /* E expansion, 0-based bit numbers of R */
+   private static final int E[] =
+   {
+      31,  0,  1,  2,  3,  4,  3,  4,  5,  6,  7,  8,
+       7,  8,  9, 10, 11, 12, 11, 12, 13, 14, 15, 16,
+      15, 16, 17, 18, 19, 20, 19, 20, 21, 22, 23, 24,
+      23, 24, 25, 26, 27, 28, 27, 28, 29, 30, 31,  0,
+   };
+
+   /* Final permutation, 0-based bit numbers of the R16 L16 preoutput */
+   private static final int FP[] =
+   {
+      39,  7, 47, 15, 55, 23, 63, 31, 38,  6, 46, 14, 54, 22, 62, 30,
+      37,  5, 45, 13, 53, 21, 61, 29, 36,  4, 44, 12, 52, 20, 60, 28,
+      35,  3, 43, 11, 51, 19, 59, 27, 34,  2, 42, 10, 50, 18, 58, 26,
+      33,  1, 41,  9, 49, 17, 57, 25, 32,  0, 40,  8, 48, 16, 56, 24,
+   };
+
+   /* Round key bits as 0-based bit numbers of the 64 bit DES key (PC1, shifts, PC2) */
+   private static final int KS[][] =
+   {
+      {  9, 50, 33, 59, 48, 16, 32, 56,  1,  8, 18, 41,  2, 34, 25, 24, 43, 57, 58,  0, 35, 26, 17, 40, 21, 27, 38, 53, 36,  3, 46, 29,  4, 52, 22, 28, 60, 20, 37, 62, 14, 19, 44, 13, 12, 61, 54, 30 },
+      {  1, 42, 25, 51, 40,  8, 24, 48, 58,  0, 10, 33, 59, 26, 17, 16, 35, 49, 50, 57, 56, 18,  9, 32, 13, 19, 30, 45, 28, 62, 38, 21, 27, 44, 14, 20, 52, 12, 29, 54,  6, 11, 36,  5,  4, 53, 46, 22 },
+      { 50, 26,  9, 35, 24, 57,  8, 32, 42, 49, 59, 17, 43, 10,  1,  0, 48, 33, 34, 41, 40,  2, 58, 16, 60,  3, 14, 29, 12, 46, 22,  5, 11, 28, 61,  4, 36, 27, 13, 38, 53, 62, 20, 52, 19, 37, 30,  6 },
+      { 34, 10, 58, 48,  8, 41, 57, 16, 26, 33, 43,  1, 56, 59, 50, 49, 32, 17, 18, 25, 24, 51, 42,  0, 44, 54, 61, 13, 27, 30,  6, 52, 62, 12, 45, 19, 20, 11, 60, 22, 37, 46,  4, 36,  3, 21, 14, 53 },
+      { 18, 59, 42, 32, 57, 25, 41,  0, 10, 17, 56, 50, 40, 43, 34, 33, 16,  1,  2,  9,  8, 35, 26, 49, 28, 38, 45, 60, 11, 14, 53, 36, 46, 27, 29,  3,  4, 62, 44,  6, 21, 30, 19, 20, 54,  5, 61, 37 },
+      {  2, 43, 26, 16, 41,  9, 25, 49, 59,  1, 40, 34, 24, 56, 18, 17,  0, 50, 51, 58, 57, 48, 10, 33, 12, 22, 29, 44, 62, 61, 37, 20, 30, 11, 13, 54, 19, 46, 28, 53,  5, 14,  3,  4, 38, 52, 45, 21 },
+      { 51, 56, 10,  0, 25, 58,  9, 33, 43, 50, 24, 18,  8, 40,  2,  1, 49, 34, 35, 42, 41, 32, 59, 17, 27,  6, 13, 28, 46, 45, 21,  4, 14, 62, 60, 38,  3, 30, 12, 37, 52, 61, 54, 19, 22, 36, 29,  5 },
+      { 35, 40, 59, 49,  9, 42, 58, 17, 56, 34,  8,  2, 57, 24, 51, 50, 33, 18, 48, 26, 25, 16, 43,  1, 11, 53, 60, 12, 30, 29,  5, 19, 61, 46, 44, 22, 54, 14, 27, 21, 36, 45, 38,  3,  6, 20, 13, 52 },
+      { 56, 32, 51, 41,  1, 34, 50,  9, 48, 26,  0, 59, 49, 16, 43, 42, 25, 10, 40, 18, 17,  8, 35, 58,  3, 45, 52,  4, 22, 21, 60, 11, 53, 38, 36, 14, 46,  6, 19, 13, 28, 37, 30, 62, 61, 12,  5, 44 },
+      { 40, 16, 35, 25, 50, 18, 34, 58, 32, 10, 49, 43, 33,  0, 56, 26,  9, 59, 24,  2,  1, 57, 48, 42, 54, 29, 36, 19,  6,  5, 44, 62, 37, 22, 20, 61, 30, 53,  3, 60, 12, 21, 14, 46, 45, 27, 52, 28 },
+      { 24,  0, 48,  9, 34,  2, 18, 42, 16, 59, 33, 56, 17, 49, 40, 10, 58, 43,  8, 51, 50, 41, 32, 26, 38, 13, 20,  3, 53, 52, 28, 46, 21,  6,  4, 45, 14, 37, 54, 44, 27,  5, 61, 30, 29, 11, 36, 12 },
+      {  8, 49, 32, 58, 18, 51,  2, 26,  0, 43, 17, 40,  1, 33, 24, 59, 42, 56, 57, 35, 34, 25, 16, 10, 22, 60,  4, 54, 37, 36, 12, 30,  5, 53, 19, 29, 61, 21, 38, 28, 11, 52, 45, 14, 13, 62, 20, 27 },
+      { 57, 33, 16, 42,  2, 35, 51, 10, 49, 56,  1, 24, 50, 17,  8, 43, 26, 40, 41, 48, 18,  9,  0, 59,  6, 44, 19, 38, 21, 20, 27, 14, 52, 37,  3, 13, 45,  5, 22, 12, 62, 36, 29, 61, 60, 46,  4, 11 },
+      { 41, 17,  0, 26, 51, 48, 35, 59, 33, 40, 50,  8, 34,  1, 57, 56, 10, 24, 25, 32,  2, 58, 49, 43, 53, 28,  3, 22,  5,  4, 11, 61, 36, 21, 54, 60, 29, 52,  6, 27, 46, 20, 13, 45, 44, 30, 19, 62 },
+      { 25,  1, 49, 10, 35, 32, 48, 43, 17, 24, 34, 57, 18, 50, 41, 40, 59,  8,  9, 16, 51, 42, 33, 56, 37, 12, 54,  6, 52, 19, 62, 45, 20,  5, 38, 44, 13, 36, 53, 11, 30,  4, 60, 29, 28, 14,  3, 46 },
+      { 17, 58, 41,  2, 56, 24, 40, 35,  9, 16, 26, 49, 10, 42, 33, 32, 51,  0,  1,  8, 43, 34, 25, 48, 29,  4, 46, 61, 44, 11, 54, 37, 12, 60, 30, 36,  5, 28, 45,  3, 22, 27, 52, 21, 20,  6, 62, 38 },
+   };
+
+   private final int e[] = new int[48];
+
+   private final long k[] = new long[64];
+   private final long a[] = new long[32];
+   private final long b[] = new long[32];
+   private final long out[] = new long[64];
+
+   /*
+    * Creates an engine for one salt. The salt's swap bits are applied to
+    * the E wiring here, so the rounds themselves are salt independent.
+    */
+   public bs_jcrypt(String salt)
+   {
+      int saltBits = jcrypt.saltBits(salt);
+      int swap = (saltBits & 0x3f) | (((saltBits >>> 16) >>> 4) << 6);
+
+      for(int i = 0; i < 48; i ++)
+         e[i] = E[i];
+
+      for(int i = 0; i < 12; i ++)
+      {
+         if(((swap >>> i) & 1) != 0)
+         {
+            int t    = e[i];
+            e[i]      = e[i + 24];
+            e[i + 24] = t;
+         }
+      }
+   }
+
+   public int lanes()
+   {
+      return(LANES);
+   }
+
+   /*
+    * Loads up to LANES keys (8 byte buffers as filled by jcrypt.keyBytes).
+    * Lanes past count are hashed as the empty key.
+    */
+   public void setKeys(byte keys[][], int count)
+   {
+      for(int i = 0; i < 64; i ++)
+         k[i] = 0;
+
+      for(int lane = 0; lane < count; lane ++)
+      {
+         byte key[] = keys[lane];
+         long bit   = 1L << lane;
+
+         for(int i = 0; i < 8; i ++)
+         {
+            int v = key[i];
+
+            for(int j = 0; j < 7; j ++)
+            {
+               if(((v >>> (7 - j)) & 1) != 0)
+                  k[8 * i + j] |= bit;
+            }
+         }
+      }
+   }
+
+   /*
+    * Runs the 25 DES encryptions of crypt(3) on all lanes.
+    */
+   public void crypt()
+   {
+      long l[] = a;
+      long r[] = b;
+
+      for(int i = 0; i < 32; i ++)
+      {
+         a[i] = 0;
+         b[i] = 0;
+      }
+
+      for(int j = 0; j < 25; j ++)
+      {
+         for(int i = 0; i < ITERATIONS; i ++)
+         {
+            int ks[] = KS[i];
+
+            s1(r[e[ 0]] ^ k[ks[ 0]], r[e[ 1]] ^ k[ks[ 1]], r[e[ 2]] ^ k[ks[ 2]],
+               r[e[ 3]] ^ k[ks[ 3]], r[e[ 4]] ^ k[ks[ 4]], r[e[ 5]] ^ k[ks[ 5]], l);
+            s2(r[e[ 6]] ^ k[ks[ 6]], r[e[ 7]] ^ k[ks[ 7]], r[e[ 8]] ^ k[ks[ 8]],
+               r[e[ 9]] ^ k[ks[ 9]], r[e[10]] ^ k[ks[10]], r[e[11]] ^ k[ks[11]], l);
+            s3(r[e[12]] ^ k[ks[12]], r[e[13]] ^ k[ks[13]], r[e[14]] ^ k[ks[14]],
+               r[e[15]] ^ k[ks[15]], r[e[16]] ^ k[ks[16]], r[e[17]] ^ k[ks[17]], l);
+            s4(r[e[18]] ^ k[ks[18]], r[e[19]] ^ k[ks[19]], r[e[20]] ^ k[ks[20]],
+               r[e[21]] ^ k[ks[21]], r[e[22]] ^ k[ks[22]], r[e[23]] ^ k[ks[23]], l);
+            s5(r[e[24]] ^ k[ks[24]], r[e[25]] ^ k[ks[25]], r[e[26]] ^ k[ks[26]],
+               r[e[27]] ^ k[ks[27]], r[e[28]] ^ k[ks[28]], r[e[29]] ^ k[ks[29]], l);
+            s6(r[e[30]] ^ k[ks[30]], r[e[31]] ^ k[ks[31]], r[e[32]] ^ k[ks[32]],
+               r[e[33]] ^ k[ks[33]], r[e[34]] ^ k[ks[34]], r[e[35]] ^ k[ks[35]], l);
+            s7(r[e[36]] ^ k[ks[36]], r[e[37]] ^ k[ks[37]], r[e[38]] ^ k[ks[38]],
+               r[e[39]] ^ k[ks[39]], r[e[40]] ^ k[ks[40]], r[e[41]] ^ k[ks[41]], l);
+            s8(r[e[42]] ^ k[ks[42]], r[e[43]] ^ k[ks[43]], r[e[44]] ^ k[ks[44]],
+               r[e[45]] ^ k[ks[45]], r[e[46]] ^ k[ks[46]], r[e[47]] ^ k[ks[47]], l);
+
+            long t[] = l;
+            l = r;
+            r = t;
+         }
+         long t[] = l;
+         l = r;
+         r = t;
+      }
+
+      /* l, r now hold R16 and L16 of the last encryption */
+      for(int i = 0; i < 64; i ++)
+      {
+         int p = FP[i];
+
+         out[i] = p < 32 ? l[p] : r[p - 32];
+      }
+   }
+
+   /*
+    * Returns a mask of the lanes whose hash equals raw (the form returned
+    * by jcrypt.decode). Usually settles after a handful of bits.
+    */
+   public long match(long raw)
+   {
+      long mask = -1L;
+
+      for(int i = 0; i < 64 && mask != 0; i ++)
+      {
+         if(((raw >>> (63 - i)) & 1) != 0)
+            mask &= out[i];
+         else
+            mask &= ~out[i];
+      }
+      return(mask);
+   }
+
+   /*
+    * Returns the raw hash of one lane, comparable with jcrypt.decode.
+    */
+   public long result(int lane)
+   {
+      long raw = 0;
+
+      for(int i = 0; i < 64; i ++)
+         raw = (raw << 1) | ((out[i] >>> lane) & 1);
+
+      return(raw);
+   }
+
+   private static void s1(long a1, long a2, long a3, long a4, long a5, long a6, long l[])
+   {
+      long n1 = ~a1, n2 = ~a2, n3 = ~a3, n4 = ~a4, n5 = ~a5, n6 = ~a6;
+      long p0 = n2 & n3, p1 = n2 & a3, p2 = a2 & n3, p3 = a2 & a3;
+      long q0 = n4 & n5, q1 = n4 & a5, q2 = a4 & n5, q3 = a4 & a5;
+      long c0 = p0 & q0, c1 = p0 & q1, c2 = p0 & q2, c3 = p0 & q3, c4 = p1 & q0, c5 = p1 & q1, c6 = p1 & q2, c7 = p1 & q3,
+           c8 = p2 & q0, c9 = p2 & q1, c10 = p2 & q2, c11 = p2 & q3, c12 = p3 & q0, c13 = p3 & q1, c14 = p3 & q2, c15 = p3 & q3;
+      long t0 = c11 | c2;
+      long t1 = c4 | c8;
+      long t2 = c0 | c5;
+      long t3 = c13 | c6;
+      long t4 = c9 | t2;
+      long t5 = c1 | c12;
+      long t6 = c10 | c15;
+      long t7 = c14 | t1;
+      long t8 = c7 | t0;
+      long t9 = t3 | t8;
+      long t10 = c6 | t6;
+      long t11 = c2 | c3;
+      long t12 = c10 | c9;
+      long t13 = c11 | c7;
+      long t14 = t0 | t5;
+      long t15 = t1 | t10;
+      long t16 = c12 | c5;
+      long t17 = c8 | t16;
+      long t18 = t11 | t3;
+      long t19 = c1 | t7;
+      long t20 = c0 | t13;
+      long r0 = n1 & n6, r1 = n1 & a6, r2 = a1 & n6, r3 = a1 & a6;
+      l[ 8] ^= (r0 & (t4 | t9)) |
+               (r1 & (c11 | t5 | t15)) |
+               (r2 & (c7 | c13 | t1 | t11 | t12)) |
+               (r3 & (c15 | t4 | t14));
+      l[16] ^= (r0 & (t2 | t6 | t14)) |
+               (r1 & (c1 | c4 | t12 | t18)) |
+               (r2 & (t0 | t4 | t7)) |
+               (r3 & (c15 | t19 | t20));
+      l[22] ^= (r0 & (t4 | t15)) |
+               (r1 & (c5 | c9 | t0 | t19)) |
+               (r2 & (t9 | t17)) |
+               (r3 & (c3 | c12 | c14 | t12 | t20));
+      l[30] ^= (r0 & (c15 | t17 | t18)) |
+               (r1 & (c14 | t5 | t9)) |
+               (r2 & (c10 | t5 | t7 | t13)) |
+               (r3 & (c7 | c8 | t4 | t10));
+   }
+
+   private static void s2(long a1, long a2, long a3, long a4, long a5, long a6, long l[])
+   {
+      long n1 = ~a1, n2 = ~a2, n3 = ~a3, n4 = ~a4, n5 = ~a5, n6 = ~a6;
+      long p0 = n2 & n3, p1 = n2 & a3, p2 = a2 & n3, p3 = a2 & a3;
+      long q0 = n4 & n5, q1 = n4 & a5, q2 = a4 & n5, q3 = a4 & a5;
+      long c0 = p0 & q0, c1 = p0 & q1, c2 = p0 & q2, c3 = p0 & q3, c4 = p1 & q0, c5 = p1 & q1, c6 = p1 & q2, c7 = p1 & q3,
+           c8 = p2 & q0, c9 = p2 & q1, c10 = p2 & q2, c11 = p2 & q3, c12 = p3 & q0, c13 = p3 & q1, c14 = p3 & q2, c15 = p3 & q3;
+      long t0 = c15 | c3;
+      long t1 = c0 | c5;
+      long t2 = c11 | c14;
+      long t3 = c2 | c8;
+      long t4 = c4 | t0;
+      long t5 = c12 | c7;
+      long t6 = c10 | c6;
+      long t7 = c1 | t2;
+      long t8 = c9 | t1;
+      long t9 = c1 | t4;
+      long t10 = c11 | t3;
+      long t11 = c3 | c4;
+      long t12 = t11 | t2;
+      long t13 = t12 | t5;
+      long t14 = t6 | t8;
+      long t15 = c6 | c8;
+      long t16 = t15 | t7;
+      long t17 = c4 | c7;
+      long t18 = t3 | t5;
+      long t19 = c10 | c13;
+      long r0 = n1 & n6, r1 = n1 & a6, r2 = a1 & n6, r3 = a1 & a6;
+      l[12] ^= (r0 & (c12 | t0 | t1 | t10)) |
+               (r1 & (c13 | t16 | t17)) |
+               (r2 & (c9 | c12 | t6 | t9)) |
+               (r3 & (c15 | t1 | t3 | t7));
+      l[27] ^= (r0 & (c0 | c9 | t13)) |
+               (r1 & (t9 | t18)) |
+               (r2 & (c1 | c5 | c15 | t6 | t10)) |
+               (r3 & (c13 | t2 | t14));
+      l[ 1] ^= (r0 & (t4 | t14)) |
+               (r1 & (t1 | t13)) |
+               (r2 & (c2 | c13 | t4 | t7)) |
+               (r3 & (c5 | c9 | c10 | c14 | t3 | t17));
+      l[17] ^= (r0 & (t8 | t16)) |
+               (r1 & (c0 | c14 | t9 | t19)) |
+               (r2 & (c6 | c13 | t0 | t18)) |
+               (r3 & (c8 | t1 | t4 | t19));
+   }
+
+   private static void s3(long a1, long a2, long a3, long a4, long a5, long a6, long l[])
+   {
+      long n1 = ~a1, n2 = ~a2, n3 = ~a3, n4 = ~a4, n5 = ~a5, n6 = ~a6;
+      long p0 = n2 & n3, p1 = n2 & a3, p2 = a2 & n3, p3 = a2 & a3;
+      long q0 = n4 & n5, q1 = n4 & a5, q2 = a4 & n5, q3 = a4 & a5;
+      long c0 = p0 & q0, c1 = p0 & q1, c2 = p0 & q2, c3 = p0 & q3, c4 = p1 & q0, c5 = p1 & q1, c6 = p1 & q2, c7 = p1 & q3,
+           c8 = p2 & q0, c9 = p2 & q1, c10 = p2 & q2, c11 = p2 & q3, c12 = p3 & q0, c13 = p3 & q1, c14 = p3 & q2, c15 = p3 & q3;
+      long t0 = c0 | c12;
+      long t1 = c11 | c14;
+      long t2 = c7 | c9;
+      long t3 = c5 | c6;
+      long t4 = c10 | c15;
+      long t5 = c13 | c4;
+      long t6 = c3 | t0;
+      long t7 = c1 | t1;
+      long t8 = c2 | t4;
+      long t9 = c11 | t2;
+      long t10 = c3 | t5;
+      long t11 = c8 | t3;
+      long t12 = c9 | t6;
+      long t13 = t1 | t6;
+      long t14 = c2 | t9;
+      long t15 = c10 | t7;
+      long t16 = c8 | t5;
+      long t17 = c0 | t10;
+      long t18 = c1 | c14;
+      long t19 = t18 | t4;
+      long t20 = c5 | t0;
+      long r0 = n1 & n6, r1 = n1 & a6, r2 = a1 & n6, r3 = a1 & a6;
+      l[23] ^= (r0 & (c6 | t8 | t12)) |
+               (r1 & (c13 | t2 | t13)) |
+               (r2 & (c5 | c8 | t1 | t17)) |
+               (r3 & (c1 | c9 | c12 | t3 | t8));
+      l[15] ^= (r0 & (c6 | c10 | t9 | t10)) |
+               (r1 & (t0 | t3 | t15)) |
+               (r2 & (c2 | c15 | t7 | t20)) |
+               (r3 & (t2 | t8 | t16));
+      l[29] ^= (r0 & (c4 | t3 | t13)) |
+               (r1 & (c6 | c7 | t7 | t16)) |
+               (r2 & (c13 | t11 | t19)) |
+               (r3 & (c4 | c12 | t2 | t15));
+      l[ 5] ^= (r0 & (c12 | t11 | t14)) |
+               (r1 & (t17 | t19)) |
+               (r2 & (c15 | t11 | t12)) |
+               (r3 & (c13 | t14 | t20));
+   }
+
+   private static void s4(long a1, long a2, long a3, long a4, long a5, long a6, long l[])
+   {
+      long n1 = ~a1, n2 = ~a2, n3 = ~a3, n4 = ~a4, n5 = ~a5, n6 = ~a6;
+      long p0 = n2 & n3, p1 = n2 & a3, p2 = a2 & n3, p3 = a2 & a3;
+      long q0 = n4 & n5, q1 = n4 & a5, q2 = a4 & n5, q3 = a4 & a5;
+      long c0 = p0 & q0, c1 = p0 & q1, c2 = p0 & q2, c3 = p0 & q3, c4 = p1 & q0, c5 = p1 & q1, c6 = p1 & q2, c7 = p1 & q3,
+           c8 = p2 & q0, c9 = p2 & q1, c10 = p2 & q2, c11 = p2 & q3, c12 = p3 & q0, c13 = p3 & q1, c14 = p3 & q2, c15 = p3 & q3;
+      long t0 = c1 | c15;
+      long t1 = c0 | c11;
+      long t2 = c2 | c5;
+      long t3 = c12 | c6;
+      long t4 = c10 | c13;
+      long t5 = t0 | t3;
+      long t6 = c14 | t1;
+      long t7 = c7 | t2;
+      long t8 = c3 | c9;
+      long t9 = c4 | c8;
+      long t10 = c7 | t5;
+      long t11 = c13 | t0;
+      long t12 = t11 | t6;
+      long t13 = c8 | t1;
+      long t14 = t12 | t2;
+      long t15 = c0 | c12;
+      long t16 = c15 | t15;
+      long t17 = t16 | t7;
+      long t18 = t17 | t8;
+      long t19 = t6 | t9;
+      long t20 = c9 | t7;
+      long t21 = c11 | t10;
+      long t22 = t21 | t9;
+      long t23 = c1 | c5;
+      long t24 = c6 | t13;
+      long t25 = t23 | t24;
+      long t26 = t25 | t4;
+      long r0 = n1 & n6, r1 = n1 & a6, r2 = a1 & n6, r3 = a1 & a6;
+      l[25] ^= (r0 & (c2 | t4 | t10)) |
+               (r1 & (t14)) |
+               (r2 & (t7 | t19)) |
+               (r3 & (t22));
+      l[19] ^= (r0 & (t14)) |
+               (r1 & (c5 | t8 | t19)) |
+               (r2 & (t22)) |
+               (r3 & (t4 | t5 | t8));
+      l[ 9] ^= (r0 & (t18)) |
+               (r1 & (c4 | c14 | t4 | t20)) |
+               (r2 & (t26)) |
+               (r3 & (c3 | c4 | t12));
+      l[ 0] ^= (r0 & (c3 | t5 | t13)) |
+               (r1 & (t18)) |
+               (r2 & (c8 | c10 | t3 | t20)) |
+               (r3 & (t26));
+   }
+
+   private static void s5(long a1, long a2, long a3, long a4, long a5, long a6, long l[])
+   {
+      long n1 = ~a1, n2 = ~a2, n3 = ~a3, n4 = ~a4, n5 = ~a5, n6 = ~a6;
+      long p0 = n2 & n3, p1 = n2 & a3, p2 = a2 & n3, p3 = a2 & a3;
+      long q0 = n4 & n5, q1 = n4 & a5, q2 = a4 & n5, q3 = a4 & a5;
+      long c0 = p0 & q0, c1 = p0 & q1, c2 = p0 & q2, c3 = p0 & q3, c4 = p1 & q0, c5 = p1 & q1, c6 = p1 & q2, c7 = p1 & q3,
+           c8 = p2 & q0, c9 = p2 & q1, c10 = p2 & q2, c11 = p2 & q3, c12 = p3 & q0, c13 = p3 & q1, c14 = p3 & q2, c15 = p3 & q3;
+      long t0 = c5 | c8;
+      long t1 = c1 | c12;
+      long t2 = c11 | c6;
+      long t3 = c15 | c3;
+      long t4 = c7 | c9;
+      long t5 = c0 | c10;
+      long t6 = c4 | t3;
+      long t7 = c14 | t2;
+      long t8 = c11 | c2;
+      long t9 = c14 | t4;
+      long t10 = t1 | t8;
+      long t11 = c13 | c3;
+      long t12 = c6 | t0;
+      long t13 = c15 | t0;
+      long t14 = c5 | t5;
+      long t15 = c10 | t6;
+      long t16 = c12 | c9;
+      long t17 = c13 | t1;
+      long t18 = c2 | t0;
+      long t19 = t11 | t18;
+      long r0 = n1 & n6, r1 = n1 & a6, r2 = a1 & n6, r3 = a1 & a6;
+      l[ 7] ^= (r0 & (t1 | t7 | t13)) |
+               (r1 & (c1 | t5 | t7 | t11)) |
+               (r2 & (t0 | t4 | t15)) |
+               (r3 & (c0 | c5 | t4 | t10));
+      l[13] ^= (r0 & (c4 | t9 | t10)) |
+               (r1 & (t5 | t6 | t12)) |
+               (r2 & (c12 | t2 | t5 | t13)) |
+               (r3 & (t9 | t19));
+      l[24] ^= (r0 & (c4 | c7 | t7 | t14)) |
+               (r1 & (c15 | t10 | t14)) |
+               (r2 & (c6 | c8 | t6 | t17)) |
+               (r3 & (c0 | t3 | t12 | t16));
+      l[ 2] ^= (r0 & (t2 | t15 | t16)) |
+               (r1 & (c7 | c10 | t12 | t17)) |
+               (r2 & (c9 | t2 | t19)) |
+               (r3 & (c0 | c11 | t6 | t9));
+   }
+
+   private static void s6(long a1, long a2, long a3, long a4, long a5, long a6, long l[])
+   {
+      long n1 = ~a1, n2 = ~a2, n3 = ~a3, n4 = ~a4, n5 = ~a5, n6 = ~a6;
+      long p0 = n2 & n3, p1 = n2 & a3, p2 = a2 & n3, p3 = a2 & a3;
+      long q0 = n4 & n5, q1 = n4 & a5, q2 = a4 & n5, q3 = a4 & a5;
+      long c0 = p0 & q0, c1 = p0 & q1, c2 = p0 & q2, c3 = p0 & q3, c4 = p1 & q0, c5 = p1 & q1, c6 = p1 & q2, c7 = p1 & q3,
+           c8 = p2 & q0, c9 = p2 & q1, c10 = p2 & q2, c11 = p2 & q3, c12 = p3 & q0, c13 = p3 & q1, c14 = p3 & q2, c15 = p3 & q3;
+      long t0 = c1 | c11;
+      long t1 = c15 | c3;
+      long t2 = c13 | c14;
+      long t3 = c2 | c7;
+      long t4 = c6 | c9;
+      long t5 = c4 | c8;
+      long t6 = c0 | c12;
+      long t7 = c10 | c5;
+      long t8 = t0 | t5;
+      long t9 = c3 | t2;
+      long t10 = c13 | c6;
+      long t11 = c1 | c10;
+      long t12 = c4 | c9;
+      long t13 = t1 | t12;
+      long t14 = t3 | t6;
+      long t15 = c11 | t4;
+      long t16 = t15 | t6;
+      long t17 = c2 | t1;
+      long t18 = t10 | t17;
+      long t19 = t11 | t2;
+      long t20 = c0 | t0;
+      long t21 = c15 | t7;
+      long t22 = t3 | t8;
+      long t23 = c7 | t4;
+      long r0 = n1 & n6, r1 = n1 & a6, r2 = a1 & n6, r3 = a1 & a6;
+      l[ 3] ^= (r0 & (t13 | t14)) |
+               (r1 & (t10 | t20 | t21)) |
+               (r2 & (c2 | c5 | c6 | t2 | t20)) |
+               (r3 & (c14 | t1 | t5 | t23));
+      l[28] ^= (r0 & (t9 | t16)) |
+               (r1 & (t7 | t22)) |
+               (r2 & (c8 | t11 | t18)) |
+               (r3 & (c5 | t1 | t16));
+      l[10] ^= (r0 & (c12 | t7 | t18)) |
+               (r1 & (c0 | t8 | t9)) |
+               (r2 & (c14 | c15 | t22)) |
+               (r3 & (c8 | c12 | t0 | t3 | t4));
+      l[18] ^= (r0 & (t13 | t19)) |
+               (r1 & (c4 | t19 | t23)) |
+               (r2 & (c8 | t9 | t14)) |
+               (r3 & (c6 | t8 | t21));
+   }
+
+   private static void s7(long a1, long a2, long a3, long a4, long a5, long a6, long l[])
+   {
+      long n1 = ~a1, n2 = ~a2, n3 = ~a3, n4 = ~a4, n5 = ~a5, n6 = ~a6;
+      long p0 = n2 & n3, p1 = n2 & a3, p2 = a2 & n3, p3 = a2 & a3;
+      long q0 = n4 & n5, q1 = n4 & a5, q2 = a4 & n5, q3 = a4 & a5;
+      long c0 = p0 & q0, c1 = p0 & q1, c2 = p0 & q2, c3 = p0 & q3, c4 = p1 & q0, c5 = p1 & q1, c6 = p1 & q2, c7 = p1 & q3,
+           c8 = p2 & q0, c9 = p2 & q1, c10 = p2 & q2, c11 = p2 & q3, c12 = p3 & q0, c13 = p3 & q1, c14 = p3 & q2, c15 = p3 & q3;
+      long t0 = c7 | c9;
+      long t1 = c13 | c3;
+      long t2 = c11 | c8;
+      long t3 = c1 | c4;
+      long t4 = c14 | c2;
+      long t5 = c10 | c6;
+      long t6 = t2 | t4;
+      long t7 = c12 | c15;
+      long t8 = c0 | c5;
+      long t9 = t0 | t1;
+      long t10 = c2 | t7;
+      long t11 = t3 | t5;
+      long t12 = t11 | t9;
+      long t13 = c0 | c11;
+      long t14 = c12 | c14;
+      long t15 = c3 | c4;
+      long t16 = t0 | t15;
+      long t17 = t13 | t14;
+      long t18 = t3 | t6;
+      long t19 = c10 | t2;
+      long t20 = c13 | c7;
+      long t21 = c2 | t5;
+      long t22 = c9 | t1;
+      long t23 = t22 | t8;
+      long t24 = c1 | c6;
+      long r0 = n1 & n6, r1 = n1 & a6, r2 = a1 & n6, r3 = a1 & a6;
+      l[31] ^= (r0 & (t12)) |
+               (r1 & (t6 | t8 | t20)) |
+               (r2 & (t6 | t16)) |
+               (r3 & (c3 | t2 | t10 | t24));
+      l[11] ^= (r0 & (t16 | t17)) |
+               (r1 & (c0 | c4 | c15 | t1 | t19)) |
+               (r2 & (t12)) |
+               (r3 & (c11 | t0 | t8 | t10));
+      l[21] ^= (r0 & (t1 | t18)) |
+               (r1 & (c8 | t9 | t10)) |
+               (r2 & (c5 | c8 | c15 | t0 | t21)) |
+               (r3 & (t17 | t20 | t24));
+      l[ 6] ^= (r0 & (c7 | t3 | t7 | t19)) |
+               (r1 & (t21 | t23)) |
+               (r2 & (c6 | t4 | t23)) |
+               (r3 & (t0 | t18));
+   }
+
+   private static void s8(long a1, long a2, long a3, long a4, long a5, long a6, long l[])
+   {
+      long n1 = ~a1, n2 = ~a2, n3 = ~a3, n4 = ~a4, n5 = ~a5, n6 = ~a6;
+      long p0 = n2 & n3, p1 = n2 & a3, p2 = a2 & n3, p3 = a2 & a3;
+      long q0 = n4 & n5, q1 = n4 & a5, q2 = a4 & n5, q3 = a4 & a5;
+      long c0 = p0 & q0, c1 = p0 & q1, c2 = p0 & q2, c3 = p0 & q3, c4 = p1 & q0, c5 = p1 & q1, c6 = p1 & q2, c7 = p1 & q3,
+           c8 = p2 & q0, c9 = p2 & q1, c10 = p2 & q2, c11 = p2 & q3, c12 = p3 & q0, c13 = p3 & q1, c14 = p3 & q2, c15 = p3 & q3;
+      long t0 = c5 | c6;
+      long t1 = c0 | c14;
+      long t2 = c11 | t0;
+      long t3 = c2 | c8;
+      long t4 = c1 | c10;
+      long t5 = c12 | c15;
+      long t6 = c7 | c9;
+      long t7 = c3 | c4;
+      long t8 = c13 | t4;
+      long t9 = c9 | t1;
+      long t10 = t2 | t9;
+      long t11 = c11 | t7;
+      long t12 = c4 | t2;
+      long t13 = t3 | t6;
+      long t14 = c5 | t1;
+      long t15 = t14 | t5;
+      long t16 = c15 | t12;
+      long t17 = c0 | t6;
+      long t18 = c10 | t0;
+      long t19 = c1 | c13;
+      long t20 = t11 | t19;
+      long t21 = c6 | t8;
+      long t22 = c2 | t10;
+      long r0 = n1 & n6, r1 = n1 & a6, r2 = a1 & n6, r3 = a1 & a6;
+      l[ 4] ^= (r0 & (t3 | t10)) |
+               (r1 & (c14 | t3 | t20)) |
+               (r2 & (t4 | t5 | t12)) |
+               (r3 & (c15 | t13 | t18));
+      l[26] ^= (r0 & (t11 | t15)) |
+               (r1 & (t13 | t21)) |
+               (r2 & (c12 | t22)) |
+               (r3 & (c13 | c14 | t7 | t13));
+      l[14] ^= (r0 & (c8 | t4 | t16)) |
+               (r1 & (t8 | t16)) |
+               (r2 & (c12 | t17 | t21)) |
+               (r3 & (c3 | t3 | t15));
+      l[20] ^= (r0 & (t5 | t17 | t18)) |
+               (r1 & (c1 | t22)) |
+               (r2 & (c12 | t1 | t20)) |
+               (r3 & (c3 | c7 | c8 | t5 | t8));
+   }
+
+   /*
+    * Compares the engine with jcrypt.crypt (see jcrypt.check) and exits
+    * with status 1 on the first mismatch.
+    */
+   public static void main(String args[])
+   {
+      int  rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+      long seed   = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+
+      System.out.println("bs_jcrypt: " + rounds + " rounds of " + LANES + " lanes, seed " + seed);
+
+      if(!jcrypt.check(bs_jcrypt::new, rounds, seed))
+         System.exit(1);
+
+      System.out.println("OK");
+   }
+}
@@ -0,0 +1,502 @@
+/*
+dist_jcrypt.java
+
+Distributed mode of bf_jcrypt: the coordinator (--coordinator PORT)
+that leases slices of a CandidateSource to worker processes over TCP,
+and the worker (--worker HOST:PORT) that runs them.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+public class dist_jcrypt {
+    private dist_jcrypt() {}
+
+    /*
+    Distributed mode: a coordinator (--coordinator PORT) hands slices of
+    a CandidateSource to worker processes (--worker HOST:PORT) on this
+    and other hosts over TCP.
+
+    A worker connects and is sent the job: what the source is (mask,
+    rule file or the built-in chains, with absolute file paths that every
+    worker must be able to read) and the users, marking the ones already
+    cracked. It then gets one unit at a time, UNIT_LEAVES leaf tasks of
+    the range, runs it on its own SourceCracker, reports each crack as it
+    happens and the unit once it is done. Cracks are checked and passed
+    on to the other workers, which drop the user from their next leaf.
+    If a worker's connection drops, its unit goes back to the front of
+    the queue for the next free worker.
+
+    The coordinator listens on the loopback interface unless --bind opens
+    it to others. The job holds every hash and every password cracked so
+    far, so a worker must first prove it knows the shared secret (--secret
+    or BF_JCRYPT_SECRET): it gets a random challenge and answers with its
+    HMAC-SHA256 under the secret, which never crosses the wire. Both ends
+    send a heartbeat every HEARTBEAT_MILLIS and give up on a peer silent
+    for READ_TIMEOUT_MILLIS, so a stalled worker's unit goes back in the
+    queue instead of being held forever.
+
+    Messages are DataOutputStream records, starting with a tag byte:
+
+      A <32 bytes>         both ways    challenge, then the worker's answer
+      J <properties>       to worker    the job (see job())
+      U <from> <to>        to worker    run units [from, to)
+      C <user> <password>  both ways    user cracked
+      D                    to worker    no more work
+      F <from> <to>        from worker  [from, to) finished
+      H                    both ways    heartbeat, ignored
+
+    Finished units are recorded in the coordinator's SourceCracker, so
+    checkpoints and --restore work as in the single-process modes.
+    */
+    static class Coordinator {
+        static final long UNIT_LEAVES = 16;
+
+        static final int HEARTBEAT_MILLIS = 15_000;
+        static final int READ_TIMEOUT_MILLIS = 60_000;
+
+        /* Environment variable read when --secret is not given */
+        static final String SECRET_VARIABLE = "BF_JCRYPT_SECRET";
+
+        final bf_jcrypt.SourceCracker cracker;
+        final Properties source;
+        final ServerSocket server;
+        final String secret;
+        final SecureRandom random = new SecureRandom();
+
+        /* Guarded by this */
+        final ArrayDeque<long[]> pending = new ArrayDeque<>();
+        final List<DataOutputStream> workers = new ArrayList<>();
+        int outstanding;
+
+        /* Listens on `bind`, or on the loopback interface if null */
+        Coordinator(bf_jcrypt.SourceCracker cracker, Properties source, InetAddress bind, int port, String secret) throws IOException {
+            this.cracker = cracker;
+            this.source = source;
+            this.secret = secret;
+            this.server = new ServerSocket(port, 50, bind != null ? bind : InetAddress.getLoopbackAddress());
+        }
+
+        /* The answer to a challenge: HMAC-SHA256 of it under the secret */
+        static byte[] proof(String secret, byte[] challenge) throws IOException {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+                return mac.doFinal(challenge);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("cannot compute HMAC: " + e.getMessage());
+            }
+        }
+
+        /* Writes a heartbeat to every worker */
+        void heartbeat() {
+            List<DataOutputStream> all;
+            synchronized (this) {
+                all = new ArrayList<>(workers);
+            }
+            for (DataOutputStream out : all) {
+                try {
+                    synchronized (out) {
+                        out.writeByte('H');
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    /* Its own serve() notices */
+                }
+            }
+        }
+
+        /* Hands out every unit not yet covered, and returns once all are finished or all users are cracked */
+        void run() throws InterruptedException {
+            cracker.prepare();
+            long unit = cracker.grain * UNIT_LEAVES;
+            long size = cracker.source.size();
+
+            synchronized (this) {
+                for (long from = 0; from < size; from += unit) {
+                    long to = Math.min(size, from + unit);
+                    if (!cracker.covered(from, to)) pending.add(new long[] { from, to });
+                }
+                outstanding = pending.size();
+            }
+            System.out.println("Coordinator on " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + ": " + outstanding + " units");
+
+            Thread acceptor = new Thread(this::accept, "coordinator");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "heartbeat");
+                t.setDaemon(true);
+                return t;
+            });
+            heartbeats.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+
+            synchronized (this) {
+                while (!finished()) wait();
+            }
+            heartbeats.shutdown();
+            try {
+                server.close();
+            } catch (IOException e) {
+                /* Only stops new workers */
+            }
+            cracker.finish();
+        }
+
+        synchronized boolean finished() {
+            return outstanding == 0 || cracker.done();
+        }
+
+        /* Next unit to hand out, or null once there is nothing left to do */
+        synchronized long[] take() throws InterruptedException {
+            while (pending.isEmpty() && !finished()) wait();
+            return finished() ? null : pending.poll();
+        }
+
+        synchronized void finish(long[] unit) {
+            cracker.complete(unit[0], unit[1]);
+            outstanding--;
+            notifyAll();
+        }
+
+        /* Source description plus the users, as sent to a worker */
+        Properties job() {
+            Properties job = new Properties();
+            job.putAll(source);
+
+            synchronized (cracker) {
+                job.setProperty("users", String.valueOf(cracker.users.size()));
+                for (int i = 0; i < cracker.users.size(); i++) {
+                    bf_jcrypt.UserEntry user = cracker.users.get(i);
+                    job.setProperty("user." + i + ".name", user.username);
+                    job.setProperty("user." + i + ".hash", user.hash);
+                    job.setProperty("user." + i + ".first", user.firstname);
+                    job.setProperty("user." + i + ".last", user.lastname);
+                    if (user.password != null) job.setProperty("user." + i + ".password", user.password);
+                }
+            }
+            return job;
+        }
+
+        void accept() {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread t = new Thread(() -> serve(socket), "worker " + socket.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        void serve(Socket socket) {
+            String name = String.valueOf(socket.getRemoteSocketAddress());
+            DataOutputStream out = null;
+            long[] unit = null;
+
+            try (Socket s = socket) {
+                s.setKeepAlive(true);
+                s.setSoTimeout(READ_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+                byte[] challenge = new byte[32];
+                random.nextBytes(challenge);
+                out.writeByte('A');
+                out.write(challenge);
+                out.flush();
+
+                byte[] answer = new byte[32];
+                if (in.readByte() != 'A') throw new IOException("expected an answer to the challenge");
+                in.readFully(answer);
+                if (!MessageDigest.isEqual(answer, proof(secret, challenge))) {
+                    System.err.println("Rejected worker " + name + ": wrong secret");
+                    out = null;
+                    return;
+                }
+
+                /* Registered with the snapshot, so a crack is either in the job or broadcast after it */
+                synchronized (out) {
+                    Properties job;
+                    synchronized (this) {
+                        job = job();
+                        workers.add(out);
+                    }
+                    out.writeByte('J');
+                    writeProperties(out, job);
+                    out.flush();
+                }
+                System.out.println("Worker " + name + " connected");
+
+                while ((unit = take()) != null) {
+                    synchronized (out) {
+                        out.writeByte('U');
+                        out.writeLong(unit[0]);
+                        out.writeLong(unit[1]);
+                        out.flush();
+                    }
+
+                    for (byte tag; (tag = in.readByte()) != 'F'; ) {
+                        if (tag == 'H') continue;
+                        if (tag != 'C') throw new IOException("unexpected message " + tag);
+                        cracked(in.readInt(), in.readUTF(), out);
+                    }
+                    if (in.readLong() != unit[0] || in.readLong() != unit[1]) throw new IOException("finished the wrong unit");
+                    finish(unit);
+                    unit = null;
+                }
+
+                synchronized (out) {
+                    out.writeByte('D');
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Lost worker " + name + (e instanceof EOFException ? "" : ": " + e.getMessage()));
+            } finally {
+                synchronized (this) {
+                    workers.remove(out);
+                    if (unit != null) {
+                        pending.addFirst(unit);
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /* A crack reported by `from`: checked, recorded and passed on */
+        void cracked(int index, String password, DataOutputStream from) throws IOException {
+            if (index < 0 || index >= cracker.users.size()) throw new IOException("no user " + index);
+
+            bf_jcrypt.UserEntry user = cracker.users.get(index);
+            if (!jcrypt.crypt(user.salt, password).equals(user.hash)) throw new IOException("wrong password for " + user.username);
+            if (!cracker.crack(user, password)) return;
+
+            List<DataOutputStream> others;
+            synchronized (this) {
+                others = new ArrayList<>(workers);
+                notifyAll();
+            }
+            for (DataOutputStream other : others) {
+                if (other == from) continue;
+                try {
+                    synchronized (other) {
+                        other.writeByte('C');
+                        other.writeInt(index);
+                        other.writeUTF(password);
+                        other.flush();
+                    }
+                } catch (IOException e) {
+                    /* Its own serve() notices */
+                }
+            }
+        }
+
+        static void writeProperties(DataOutputStream out, Properties p) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            p.store(bytes, null);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+
+        static Properties readProperties(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            Properties p = new Properties();
+            p.load(new ByteArrayInputStream(bytes));
+            return p;
+        }
+
+        /*
+        Builds a worker's source from the files the job names, the way
+        main() builds the coordinator's, so both number units alike.
+        */
+        static bf_jcrypt.CandidateSource source(Properties job, List<bf_jcrypt.UserEntry> users) throws Exception {
+            String path = job.getProperty("dictionary");
+            bf_jcrypt.Wordlist dictionary = path == null ? bf_jcrypt.Wordlist.empty() : bf_jcrypt.loadDictionary(path);
+            if (dictionary.size != Long.parseLong(job.getProperty("dictionary.size", "0"))) {
+                throw new IOException("dictionary " + path + " differs from the coordinator's");
+            }
+
+            switch (job.getProperty("source")) {
+                case "mask": {
+                    String[] charsets = new String[4];
+                    for (int i = 0; i < charsets.length; i++) charsets[i] = job.getProperty("charset" + (i + 1));
+                    return bf_jcrypt.Mask.parse(job.getProperty("mask"), charsets);
+                }
+                case "rules": {
+                    List<rules_jcrypt.RuleProgram> rules = rules_jcrypt.RuleProgram.load(job.getProperty("rules"));
+                    if (rules.size() != Integer.parseInt(job.getProperty("rules.size"))) {
+                        throw new IOException("rule file " + job.getProperty("rules") + " differs from the coordinator's");
+                    }
+                    return new rules_jcrypt.RuleSource(bf_jcrypt.addNameDatatoDictionary(users, dictionary), rules);
+                }
+                default:
+                    return new bf_jcrypt.ChainSource(bf_jcrypt.addNameDatatoDictionary(users, dictionary));
+            }
+        }
+    }
+
+
+    /*
+    Worker side of distributed mode (see Coordinator). Units run one at a
+    time on the worker's own pool, while the connection thread keeps
+    reading, so cracks from other workers arrive mid-unit.
+    */
+    static class SourceWorker extends bf_jcrypt.SourceCracker {
+        final DataOutputStream out;
+
+        SourceWorker(bf_jcrypt.CandidateSource source, List<bf_jcrypt.UserEntry> users, String engine, int threads, DataOutputStream out) {
+            super(source, users, engine, new bf_jcrypt.Potfile(null), threads);
+            this.out = out;
+        }
+
+        @Override
+        synchronized boolean crack(bf_jcrypt.UserEntry user, String password) {
+            if (!super.crack(user, password)) return false;
+
+            try {
+                synchronized (out) {
+                    out.writeByte('C');
+                    out.writeInt(users.indexOf(user));
+                    out.writeUTF(password);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                System.err.println("Cannot report crack: " + e.getMessage());
+            }
+            return true;
+        }
+
+        /* Cracked by another worker */
+        synchronized void cancel(int index, String password) {
+            bf_jcrypt.UserEntry user = users.get(index);
+            if (user.password != null) return;
+
+            user.password = password;
+            remaining--;
+        }
+
+        static void run(String host, int port, String secret, String engine, int threads) throws Exception {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setKeepAlive(true);
+                socket.setSoTimeout(Coordinator.READ_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                byte[] challenge = new byte[32];
+                if (in.readByte() != 'A') throw new IOException("expected a challenge");
+                in.readFully(challenge);
+                out.writeByte('A');
+                out.write(Coordinator.proof(secret, challenge));
+                out.flush();
+
+                byte first;
+                try {
+                    first = in.readByte();
+                } catch (EOFException e) {
+                    throw new IOException("coordinator refused the secret");
+                }
+                if (first != 'J') throw new IOException("expected a job");
+                Properties job = Coordinator.readProperties(in);
+
+                List<bf_jcrypt.UserEntry> users = new ArrayList<>();
+                for (int i = 0; i < Integer.parseInt(job.getProperty("users")); i++) {
+                    bf_jcrypt.UserEntry user = bf_jcrypt.newUser(job.getProperty("user." + i + ".name"), job.getProperty("user." + i + ".hash"),
+                        job.getProperty("user." + i + ".first"), job.getProperty("user." + i + ".last"));
+                    user.password = job.getProperty("user." + i + ".password");
+                    users.add(user);
+                }
+
+                SourceWorker worker = new SourceWorker(Coordinator.source(job, users), users, engine, threads, out);
+                worker.prepare();
+                System.out.println("Connected to " + host + ":" + port + ", " + job.getProperty("source") + " job for " + users.size() + " users");
+
+                ExecutorService units = Executors.newSingleThreadExecutor();
+                ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "heartbeat");
+                    t.setDaemon(true);
+                    return t;
+                });
+                heartbeats.scheduleAtFixedRate(() -> {
+                    try {
+                        synchronized (out) {
+                            out.writeByte('H');
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        /* The read loop notices */
+                    }
+                }, Coordinator.HEARTBEAT_MILLIS, Coordinator.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                try {
+                    while (true) {
+                        byte tag;
+                        try {
+                            tag = in.readByte();
+                        } catch (EOFException e) {
+                            break;
+                        }
+
+                        if (tag == 'U') {
+                            long from = in.readLong();
+                            long to = in.readLong();
+                            units.execute(() -> {
+                                worker.run(from, to);
+                                try {
+                                    synchronized (out) {
+                                        out.writeByte('F');
+                                        out.writeLong(from);
+                                        out.writeLong(to);
+                                        out.flush();
+                                    }
+                                } catch (IOException e) {
+                                    System.err.println("Cannot report unit: " + e.getMessage());
+                                }
+                            });
+                        } else if (tag == 'C') {
+                            worker.cancel(in.readInt(), in.readUTF());
+                        } else if (tag == 'H') {
+                            continue;
+                        } else if (tag == 'D') {
+                            break;
+                        } else {
+                            throw new IOException("unexpected message " + tag);
+                        }
+                    }
+                } finally {
+                    heartbeats.shutdown();
+                    units.shutdown();
+                    units.awaitTermination(1, TimeUnit.MINUTES);
+                    worker.pool.shutdown();
+                }
+            }
+        }
+    }
+}
@@ -11,6 +11,25 @@ public class jcrypt
 {
    private jcrypt() {}
 
+   /*
+    * A crypt(3) engine that hashes several keys under one salt per pass
+    * (bs_jcrypt, vec_jcrypt). Results use the raw form of decode().
+    */
+   public interface BatchEngine
+   {
+      /* Number of keys hashed per pass */
+      int lanes();
+
+      /* Loads up to lanes() keys, each an 8 byte buffer filled by keyBytes */
+      void setKeys(byte keys[][], int count);
+
+      /* Hashes the loaded keys */
+      void crypt();
+
+      /* Bit mask of the lanes whose hash equals raw */
+      long match(long raw);
+   }
+
    private static final int ITERATIONS = 16;
 
    private static final int con_salt[] =
@@ -382,25 +401,11 @@ public class jcrypt
       return(value);
    }
 
-   private static final void intToFourBytes(int iValue, byte b[], int offset)
-   {
-      b[offset++] = (byte)((iValue)        & 0xff);
-      b[offset++] = (byte)((iValue >>> 8 ) & 0xff);
-      b[offset++] = (byte)((iValue >>> 16) & 0xff);
-      b[offset++] = (byte)((iValue >>> 24) & 0xff);
-   }
-
-   private static final void PERM_OP(int a, int b, int n, int m, int results[])
-   {
-      int t;
-
-      t = ((a >>> n) ^ b) & m;
-      a ^= t << n;
-      b ^= t;
-
-      results[0] = a;
-      results[1] = b;
-   }
+   /*
+    * PERM_OP swaps the bits of a selected by m << n with the bits of b
+    * selected by m. It is written out inline below so that key setup and
+    * the final permutation need no temporary arrays.
+    */
 
    private static final int HPERM_OP(int a, int n, int m)
    {
@@ -412,35 +417,36 @@ public class jcrypt
       return(a);
    }
 
-   private static int [] des_set_key(byte key[])
+   /*
+    * Builds the 16 round key schedule for key into the caller owned
+    * schedule (ITERATIONS * 2 ints). Allocates nothing.
+    */
+   static void des_set_key(byte key[], int schedule[])
    {
-      int schedule[] = new int[ITERATIONS * 2];
-
       int c = fourBytesToInt(key, 0);
       int d = fourBytesToInt(key, 4);
 
-      int results[] = new int[2];
+      int s, t;
 
-      PERM_OP(d, c, 4, 0x0f0f0f0f, results);
-      d = results[0]; c = results[1];
+      /* PERM_OP(d, c, 4, 0x0f0f0f0f) */
+      t = ((d >>> 4) ^ c) & 0x0f0f0f0f; d ^= t << 4; c ^= t;
 
       c = HPERM_OP(c, -2, 0xcccc0000);
       d = HPERM_OP(d, -2, 0xcccc0000);
 
-      PERM_OP(d, c, 1, 0x55555555, results);
-      d = results[0]; c = results[1];
+      /* PERM_OP(d, c, 1, 0x55555555) */
+      t = ((d >>> 1) ^ c) & 0x55555555; d ^= t << 1; c ^= t;
 
-      PERM_OP(c, d, 8, 0x00ff00ff, results);
-      c = results[0]; d = results[1];
+      /* PERM_OP(c, d, 8, 0x00ff00ff) */
+      t = ((c >>> 8) ^ d) & 0x00ff00ff; c ^= t << 8; d ^= t;
 
-      PERM_OP(d, c, 1, 0x55555555, results);
-      d = results[0]; c = results[1];
+      /* PERM_OP(d, c, 1, 0x55555555) */
+      t = ((d >>> 1) ^ c) & 0x55555555; d ^= t << 1; c ^= t;
 
       d = (((d & 0x000000ff) <<  16) |  (d & 0x0000ff00)     |
            ((d & 0x00ff0000) >>> 16) | ((c & 0xf0000000) >>> 4));
       c &= 0x0fffffff;
 
-      int s, t;
       int j = 0;
 
       for(int i = 0; i < ITERATIONS; i ++)
@@ -476,142 +482,527 @@ public class jcrypt
          s             = (s << 4) | (s >>> 28);
          schedule[j++] = s & 0xffffffff;
       }
-      return(schedule);
    }
 
+   /*
+    * The key schedule is linear in the key bits: every step of
+    * des_set_key is a bit permutation, and the skb lookups combine
+    * disjoint bits. So the schedule of a key is the XOR of the schedules
+    * of its bytes taken one at a time, and KEY_TABLE[pos][c] holds the
+    * schedule of the key whose only non-zero byte is character c at
+    * position pos. Only the low 7 bits of a character reach the key.
+    */
+   private static final int KEY_TABLE[][][] = new int[8][128][];
+
+   static
+   {
+      byte key[] = new byte[8];
+
+      for(int pos = 0; pos < 8; pos ++)
+      {
+         for(int c = 0; c < 128; c ++)
+         {
+            key[pos] = (byte)(c << 1);
+            KEY_TABLE[pos][c] = new int[ITERATIONS * 2];
+            des_set_key(key, KEY_TABLE[pos][c]);
+         }
+         key[pos] = 0;
+      }
+   }
+
+   /*
+    * Same result as des_set_key, built from KEY_TABLE: 8 rows XORed.
+    */
+   static void des_set_key_table(byte key[], int schedule[])
+   {
+      int r0[] = KEY_TABLE[0][(key[0] >>> 1) & 0x7f];
+      int r1[] = KEY_TABLE[1][(key[1] >>> 1) & 0x7f];
+      int r2[] = KEY_TABLE[2][(key[2] >>> 1) & 0x7f];
+      int r3[] = KEY_TABLE[3][(key[3] >>> 1) & 0x7f];
+      int r4[] = KEY_TABLE[4][(key[4] >>> 1) & 0x7f];
+      int r5[] = KEY_TABLE[5][(key[5] >>> 1) & 0x7f];
+      int r6[] = KEY_TABLE[6][(key[6] >>> 1) & 0x7f];
+      int r7[] = KEY_TABLE[7][(key[7] >>> 1) & 0x7f];
+
+      for(int i = 0; i < ITERATIONS * 2; i ++)
+         schedule[i] = r0[i] ^ r1[i] ^ r2[i] ^ r3[i] ^ r4[i] ^ r5[i] ^ r6[i] ^ r7[i];
+   }
+
+   /*
+    * Incrementally maintained key schedule for streams of candidates that
+    * share prefixes (appended digits, mask attacks).
+    *
+    * partial[p] is the XOR of the KEY_TABLE rows of the first p key bytes,
+    * so partial[8] is the full schedule. Changing a character at position
+    * p only recomputes partial[p + 1 .. 8]; changing just the last
+    * character costs one 32 int XOR. One instance per thread.
+    */
+   public static final class KeySchedule
+   {
+      private final int partial[][] = new int[9][ITERATIONS * 2];
+      private final byte key[] = new byte[8];
+
+      /* The schedule with a salt's swaps applied, scratch for crypt() */
+      private final int salted[] = new int[ITERATIONS * 2];
+
+      /* partial[0 .. valid] are up to date */
+      private int valid = 8;
+
+      /*
+       * Loads a password, keeping the work done for the prefix it shares
+       * with the previous one.
+       */
+      public void set(String original)
+      {
+         int len = original.length();
+
+         for(int i = 0; i < 8; i ++)
+            setByte(i, i < len ? (byte)(original.charAt(i) << 1) : (byte)0);
+      }
+
+      /*
+       * Sets one character of the key (0 clears the position).
+       */
+      public void set(int pos, char c)
+      {
+         setByte(pos, (byte)(c << 1));
+      }
+
+      private void setByte(int pos, byte b)
+      {
+         if(key[pos] != b)
+         {
+            key[pos] = b;
+
+            if(pos < valid)
+               valid = pos;
+         }
+      }
+
+      /*
+       * The schedule of the current key. Valid until the next set().
+       */
+      public int [] schedule()
+      {
+         for(int q = valid; q < 8; q ++)
+         {
+            int prev[] = partial[q];
+            int next[] = partial[q + 1];
+            int row[]  = KEY_TABLE[q][(key[q] >>> 1) & 0x7f];
+
+            for(int i = 0; i < ITERATIONS * 2; i ++)
+               next[i] = prev[i] ^ row[i];
+         }
+         valid = 8;
+
+         return(partial[8]);
+      }
+   }
+
+   /*
+    * Salt specialized SP tables.
+    *
+    * The salt swaps bits i and i + 16 of the round input where Eswap0
+    * (for u) or Eswap1 (for t) has bit i set. The swap is linear, so
+    * swapping R ^ k equals swapping R and then XORing in the swapped
+    * round key: with the swap applied to the key schedule once per key,
+    * it can be folded into the tables instead of being done every round.
+    *
+    * A swap mixes the index bits of two S boxes, (0, 4) for u and (1, 5)
+    * for t, so those pairs are merged into one table indexed by both 6
+    * bit values: 4096 entries holding SPtrans[0][..] | SPtrans[4][..]
+    * with the salt's swap already done. The pairs (2, 6) and (3, 7) are
+    * never swapped and share one table for all salts. A round then takes
+    * 4 lookups instead of 8 and no swap operations.
+    */
+   public static final class SaltTables
+   {
+      final int saltBits;
+      final int Eswap0;
+      final int Eswap1;
+
+      /* SPtrans[0] | SPtrans[4] and SPtrans[1] | SPtrans[5], salt applied */
+      final int sp04[];
+      final int sp15[];
+
+      private SaltTables(int saltBits)
+      {
+         this.saltBits = saltBits;
+         this.Eswap0   = saltBits & 0xffff;
+         this.Eswap1   = saltBits >>> 16;
+
+         sp04 = pairTable(0, 4, Eswap0 & 0x3f);
+         sp15 = pairTable(1, 5, (Eswap1 >>> 4) & 0x3f);
+      }
+   }
+
+   private static final int SP26[] = pairTable(2, 6, 0);
+   private static final int SP37[] = pairTable(3, 7, 0);
+
+   /*
+    * Merges two SPtrans boxes into one table indexed by lo | (hi << 6),
+    * exchanging the lo and hi index bits selected by swap.
+    */
+   private static int [] pairTable(int lo, int hi, int swap)
+   {
+      int table[] = new int[4096];
+
+      for(int i = 0; i < 4096; i ++)
+      {
+         int a = i & 0x3f;
+         int b = i >>> 6;
+         int d = (a ^ b) & swap;
+
+         table[i] = SPtrans[lo][a ^ d] | SPtrans[hi][b ^ d];
+      }
+      return(table);
+   }
+
+   /* Number of salts whose tables are kept, 32 KB each */
+   private static final int SALT_CACHE_SIZE = 64;
+
+   private static final java.util.LinkedHashMap<Integer, SaltTables> saltCache =
+      new java.util.LinkedHashMap<Integer, SaltTables>(SALT_CACHE_SIZE * 2, 0.75f, true)
+   {
+      protected boolean removeEldestEntry(java.util.Map.Entry<Integer, SaltTables> eldest)
+      {
+         return(size() > SALT_CACHE_SIZE);
+      }
+   };
+
+   /*
+    * The tables for a salt, from saltBits(). Built on first use and kept
+    * in a small LRU cache; callers hashing many candidates under one salt
+    * should look them up once and hold on to them.
+    */
+   public static final SaltTables saltTables(int saltBits)
+   {
+      synchronized(saltCache)
+      {
+         SaltTables tables = saltCache.get(saltBits);
+
+         if(tables == null)
+         {
+            tables = new SaltTables(saltBits);
+            saltCache.put(saltBits, tables);
+         }
+         return(tables);
+      }
+   }
+
+   /*
+    * Applies a salt's swaps to a key schedule, from schedule into salted.
+    * Even words feed u and take Eswap0, odd words feed t and take Eswap1.
+    */
+   private static final void saltSchedule(SaltTables salt, int schedule[], int salted[])
+   {
+      for(int i = 0; i < ITERATIONS * 2; i += 2)
+      {
+         int k, d;
+
+         k = schedule[i];
+         d = (k ^ (k >>> 16)) & salt.Eswap0;
+         salted[i] = k ^ d ^ (d << 16);
+
+         k = schedule[i + 1];
+         d = (k ^ (k >>> 16)) & salt.Eswap1;
+         salted[i + 1] = k ^ d ^ (d << 16);
+      }
+   }
+
+   /*
+    * One DES round on a salted schedule. u and t are the swapped round
+    * inputs of the original code before the swap, so each pair of 6 bit
+    * S box indices is read as one 12 bit index.
+    */
    private static final int D_ENCRYPT
    (
-      int L, int R, int S, int E0, int E1, int s[]
+      int L, int R, int S, int s[], int sp04[], int sp15[]
    )
    {
-      int t, u, v;
+      int t, u;
 
-      v = R ^ (R >>> 16);
-      u = v & E0;
-      v = v & E1;
-      u = (u ^ (u << 16)) ^ R ^ s[S];
-      t = (v ^ (v << 16)) ^ R ^ s[S + 1];
+      u = R ^ s[S];
+      t = R ^ s[S + 1];
       t = (t >>> 4) | (t << 28);
 
-      L ^= SPtrans[1][(t       ) & 0x3f] |
-           SPtrans[3][(t >>>  8) & 0x3f] |
-           SPtrans[5][(t >>> 16) & 0x3f] |
-           SPtrans[7][(t >>> 24) & 0x3f] |
-           SPtrans[0][(u       ) & 0x3f] |
-           SPtrans[2][(u >>>  8) & 0x3f] |
-           SPtrans[4][(u >>> 16) & 0x3f] |
-           SPtrans[6][(u >>> 24) & 0x3f];
+      L ^= sp04[(u        & 0x3f) | ((u >>> 10) & 0xfc0)] |
+           SP26[((u >>> 8) & 0x3f) | ((u >>> 18) & 0xfc0)] |
+           sp15[(t        & 0x3f) | ((t >>> 10) & 0xfc0)] |
+           SP37[((t >>> 8) & 0x3f) | ((t >>> 18) & 0xfc0)];
 
       return(L);
    }
 
-   private static final int [] body(int schedule[], int Eswap0, int Eswap1)
+   private static final long body(int salted[], SaltTables salt)
    {
-      int left = 0;
-      int right = 0;
-      int t     = 0;
+      int sp04[] = salt.sp04;
+      int sp15[] = salt.sp15;
+      int left   = 0;
+      int right  = 0;
+      int t      = 0;
 
       for(int j = 0; j < 25; j ++)
       {
          for(int i = 0; i < ITERATIONS * 2; i += 4)
          {
-            left  = D_ENCRYPT(left,  right, i,     Eswap0, Eswap1, schedule);
-            right = D_ENCRYPT(right, left,  i + 2, Eswap0, Eswap1, schedule);
+            left  = D_ENCRYPT(left,  right, i,     salted, sp04, sp15);
+            right = D_ENCRYPT(right, left,  i + 2, salted, sp04, sp15);
          }
          t     = left; 
          left  = right; 
          right = t;
       }
 
-      t = right;
+      return(output(left, right));
+   }
+
+   static final long output(int left, int right)
+   {
+      int t = right;
 
       right = (left >>> 1) | (left << 31);
       left  = (t    >>> 1) | (t    << 31);
 
-      left  &= 0xffffffff;
-      right &= 0xffffffff;
+      /* PERM_OP(right, left, 1, 0x55555555) */
+      t = ((right >>> 1) ^ left) & 0x55555555; right ^= t << 1; left ^= t;
 
-      int results[] = new int[2];
+      /* PERM_OP(left, right, 8, 0x00ff00ff) */
+      t = ((left >>> 8) ^ right) & 0x00ff00ff; left ^= t << 8; right ^= t;
 
-      PERM_OP(right, left, 1, 0x55555555, results); 
-      right = results[0]; left = results[1];
+      /* PERM_OP(right, left, 2, 0x33333333) */
+      t = ((right >>> 2) ^ left) & 0x33333333; right ^= t << 2; left ^= t;
 
-      PERM_OP(left, right, 8, 0x00ff00ff, results); 
-      left = results[0]; right = results[1];
+      /* PERM_OP(left, right, 16, 0x0000ffff) */
+      t = ((left >>> 16) ^ right) & 0x0000ffff; left ^= t << 16; right ^= t;
 
-      PERM_OP(right, left, 2, 0x33333333, results); 
-      right = results[0]; left = results[1];
+      /* PERM_OP(right, left, 4, 0x0f0f0f0f) */
+      t = ((right >>> 4) ^ left) & 0x0f0f0f0f; right ^= t << 4; left ^= t;
 
-      PERM_OP(left, right, 16, 0x0000ffff, results);
-      left = results[0]; right = results[1];
-
-      PERM_OP(right, left, 4, 0x0f0f0f0f, results);
-      right = results[0]; left = results[1];
+      return(((long)Integer.reverseBytes(left) << 32) |
+             ((long)Integer.reverseBytes(right) & 0xffffffffL));
+   }
 
-      int out[] = new int[2];
+   /*
+    * Packs the two E-box swap masks derived from a salt into one int:
+    * Eswap0 in the low 16 bits, Eswap1 in the high 16 bits.
+    */
+   public static final int saltBits(String salt)
+   {
+      while(salt.length() < 2)
+         salt += "A";
 
-      out[0] = left; out[1] = right;
+      int Eswap0 = con_salt[(int)salt.charAt(0)];
+      int Eswap1 = con_salt[(int)salt.charAt(1)] << 4;
 
-      return(out);
+      return(Eswap0 | (Eswap1 << 16));
    }
 
-   public static final String crypt(String salt, String original)
+   /*
+    * Writes the DES key for a password into a caller owned 8 byte buffer.
+    * Only the first 8 characters are used, each shifted left by one.
+    */
+   public static final void keyBytes(String original, byte key[])
    {
-      while(salt.length() < 2)
-         salt += "A";
+      int i = 0;
 
-      StringBuffer buffer = new StringBuffer("             ");
+      for(; i < key.length && i < original.length(); i ++)
+         key[i] = (byte)(original.charAt(i) << 1);
 
-      char charZero = salt.charAt(0);
-      char charOne  = salt.charAt(1);
+      for(; i < key.length; i ++)
+         key[i] = (byte)0;
+   }
 
-      buffer.setCharAt(0, charZero);
-      buffer.setCharAt(1, charOne);
+   /*
+    * As above, from the first length characters of a char buffer.
+    */
+   public static final void keyBytes(char original[], int length, byte key[])
+   {
+      int i = 0;
 
-      int Eswap0 = con_salt[(int)charZero];
-      int Eswap1 = con_salt[(int)charOne] << 4;
- 
-      byte key[] = new byte[8];
+      for(; i < key.length && i < length; i ++)
+         key[i] = (byte)(original[i] << 1);
 
-      for(int i = 0; i < key.length; i ++)
+      for(; i < key.length; i ++)
          key[i] = (byte)0;
+   }
+
+   /*
+    * Allocation free crypt(3). key is an 8 byte buffer filled by keyBytes,
+    * schedule is a caller owned scratch buffer of 32 ints, saltBits comes
+    * from saltBits(). Returns the raw 64 bit hash, comparable with the
+    * result of decode() on a stored hash.
+    */
+   public static final long crypt(int saltBits, byte key[], int schedule[])
+   {
+      return(crypt(saltTables(saltBits), key, schedule));
+   }
+
+   /*
+    * As above, with the salt's tables already looked up.
+    */
+   public static final long crypt(SaltTables salt, byte key[], int schedule[])
+   {
+      des_set_key_table(key, schedule);
+      saltSchedule(salt, schedule, schedule);
+
+      return(body(schedule, salt));
+   }
+
+   /*
+    * Allocation free crypt(3) on an incrementally maintained key.
+    */
+   public static final long crypt(int saltBits, KeySchedule key)
+   {
+      return(crypt(saltTables(saltBits), key));
+   }
+
+   /*
+    * As above, with the salt's tables already looked up.
+    */
+   public static final long crypt(SaltTables salt, KeySchedule key)
+   {
+      saltSchedule(salt, key.schedule(), key.salted);
 
-      for(int i = 0; i < key.length && i < original.length(); i ++)
+      return(body(key.salted, salt));
+   }
+
+   /*
+    * Converts the 11 hash characters that follow the salt back into the
+    * raw 64 bit form returned by crypt(int, byte[], int[]).
+    * Throws IllegalArgumentException if hash is not a valid crypt(3) string.
+    */
+   public static final long decode(String hash)
+   {
+      if(hash == null || hash.length() != 13)
+         throw new IllegalArgumentException("not a crypt(3) hash: " + hash);
+
+      long raw = 0;
+
+      for(int i = 2; i < 13; i ++)
       {
-         int iChar = (int)original.charAt(i);
+         int c = char2cov(hash.charAt(i));
 
-         key[i] = (byte)(iChar << 1);
+         if(c < 0)
+            throw new IllegalArgumentException("not a crypt(3) hash: " + hash);
+
+         if(i < 12)
+            raw = (raw << 6) | c;
+         else if((c & 0x03) == 0)
+            raw = (raw << 4) | (c >>> 2);
+         else
+            throw new IllegalArgumentException("not a crypt(3) hash: " + hash);
       }
+      return(raw);
+   }
+
+   /*
+    * Formats a raw hash with its salt as the usual 13 character string.
+    */
+   public static final String encode(String salt, long raw)
+   {
+      while(salt.length() < 2)
+         salt += "A";
+
+      char buffer[] = new char[13];
+
+      buffer[0] = salt.charAt(0);
+      buffer[1] = salt.charAt(1);
+
+      for(int i = 0; i < 10; i ++)
+         buffer[i + 2] = (char)cov_2char[(int)(raw >>> (58 - 6 * i)) & 0x3f];
 
-      int schedule[] = des_set_key(key);
-      int out[]      = body(schedule, Eswap0, Eswap1);
+      buffer[12] = (char)cov_2char[(int)(raw << 2) & 0x3c];
 
-      byte b[] = new byte[9];
+      return(new String(buffer));
+   }
+
+   /*
+    * SPtrans flattened to one array, nibble n at offset n * 64.
+    */
+   static int [] spTransFlat()
+   {
+      int flat[] = new int[8 * 64];
 
-      intToFourBytes(out[0], b, 0);
-      intToFourBytes(out[1], b, 4);
-      b[8] = 0;
+      for(int i = 0; i < 8; i ++)
+         System.arraycopy(SPtrans[i], 0, flat, i * 64, 64);
+
+      return(flat);
+   }
 
-      for(int i = 2, y = 0, u = 0x80; i < 13; i ++)
+   private static final int char2cov(char c)
+   {
+      if(c >= '.' && c <= '9') return(c - '.');
+      if(c >= 'A' && c <= 'Z') return(c - 'A' + 12);
+      if(c >= 'a' && c <= 'z') return(c - 'a' + 38);
+
+      return(-1);
+   }
+
+   public static final String crypt(String salt, String original)
+   {
+      byte key[]      = new byte[8];
+      int  schedule[] = new int[ITERATIONS * 2];
+
+      keyBytes(original, key);
+
+      return(encode(salt, crypt(saltBits(salt), key, schedule)));
+   }
+
+   /*
+    * Self-check of a BatchEngine against crypt(String, String), for the
+    * mains of bs_jcrypt and vec_jcrypt. Each round hashes a partly or
+    * fully loaded pass under a random salt. Keys are 0 to 10 characters
+    * long, so empty, short and truncated keys all occur. Half the keys
+    * are printable, and half use any character from 1 to 255, so the
+    * high bit is set too. Prints the first mismatch and returns false.
+    */
+   public static boolean check(java.util.function.Function<String, BatchEngine> engines, int rounds, long seed)
+   {
+      java.util.Random random = new java.util.Random(seed);
+
+      for(int round = 0; round < rounds; round ++)
       {
-         for(int j = 0, c = 0; j < 6; j ++)
+         String salt = "" + (char)cov_2char[random.nextInt(64)] + (char)cov_2char[random.nextInt(64)];
+         BatchEngine engine = engines.apply(salt);
+         int count = 1 + random.nextInt(engine.lanes());
+         String passwords[] = new String[count];
+         byte keys[][] = new byte[engine.lanes()][8];
+
+         for(int lane = 0; lane < count; lane ++)
          {
-            c <<= 1;
+            boolean printable = random.nextBoolean();
+            char chars[] = new char[random.nextInt(11)];
 
-            if(((int)b[y] & u) != 0)
-               c |= 1;
+            for(int i = 0; i < chars.length; i ++)
+               chars[i] = (char)(printable ? ' ' + random.nextInt(95) : 1 + random.nextInt(255));
 
-            u >>>= 1;
+            passwords[lane] = new String(chars);
+            keyBytes(passwords[lane], keys[lane]);
+         }
+         engine.setKeys(keys, count);
+         engine.crypt();
 
-            if(u == 0)
+         for(int lane = 0; lane < count; lane ++)
+         {
+            String expected = crypt(salt, passwords[lane]);
+
+            if((engine.match(decode(expected)) & (1L << lane)) == 0)
             {
-               y++;
-               u = 0x80;
+               StringBuilder codes = new StringBuilder();
+
+               for(int i = 0; i < passwords[lane].length(); i ++)
+                  codes.append(i > 0 ? " " : "").append((int)passwords[lane].charAt(i));
+
+               System.out.println(
+                  "Mismatch in round " + round + ", lane " + lane + " of " + count +
+                  ": salt [" + salt + "], key chars [" + codes + "], expected [" + expected + "]"
+               );
+               return(false);
             }
-            buffer.setCharAt(i, (char)cov_2char[c]);
          }
       }
-      return(buffer.toString());
+      return(true);
    }
 
    public static void main(String args[])
@@ -632,4 +1023,3 @@ public class jcrypt
       }
    }
 }
-
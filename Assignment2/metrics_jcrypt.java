@@ -0,0 +1,393 @@
+/*
+metrics_jcrypt.java
+
+Run metrics of bf_jcrypt: live counters of the cracking loops, published
+on the console, over JMX and as a Prometheus endpoint.
+
+bf_jcrypt keeps the run's one instance in bf_jcrypt.METRICS.
+*/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import com.sun.net.httpserver.HttpServer;
+
+
+public class metrics_jcrypt {
+    private metrics_jcrypt() {}
+
+    /*
+    Live counters of a run, for watching throughput while it cracks.
+
+    The cracking loops count into LongAdders, so worker threads never
+    contend on one counter: CandidateCursor counts the candidates it
+    returns and the repeats it skips, and record() drains those counts at
+    word boundaries into per-chain totals, with `hashed` scaled by the
+    number of salts each candidate went to. Finished users land in a
+    histogram of elapsed seconds, and GC and allocation are read from the
+    platform MXBeans.
+
+    Published three ways:
+
+      console     one line every --metrics-interval seconds
+      JMX         MBean bf_jcrypt:type=Metrics (jconsole, VisualVM)
+      Prometheus  text format on http://127.0.0.1:<--metrics-port>/metrics
+
+    Rates (hashes and allocated bytes per second) are taken over the last
+    console interval; Prometheus gets the raw totals and rates them itself.
+    */
+    static class Metrics implements MetricsMBean {
+        final LongAdder[] generated = adders(bf_jcrypt.RULE_CHAINS.length);
+        final LongAdder[] hashed = adders(bf_jcrypt.RULE_CHAINS.length);
+        final LongAdder[] skipped = adders(bf_jcrypt.RULE_CHAINS.length);
+        final LongAdder loopbackHashed = new LongAdder();
+        final LongAdder pcfgHashed = new LongAdder();
+        final LongAdder sourceHashed = new LongAdder();
+        final LongAdder seenSkipped = new LongAdder();
+        final LongAdder usersCracked = new LongAdder();
+        final Histogram userSeconds = new Histogram(0.1, 1, 10, 60, 600, 3600, 86400);
+        final long started = System.nanoTime();
+
+        volatile int currentChain;
+        volatile int usersTotal;
+
+        /* Last console interval, for rates */
+        volatile double hashRate = -1;
+        volatile double allocationRate;
+        long lastNanos = started;
+        long lastHashed;
+        long lastAllocated;
+
+        /* Bytes allocated so far, summed per thread by sampleAllocation() */
+        final Map<Long, Long> threadAllocated = new HashMap<>();
+        long allocated;
+
+        ScheduledExecutorService ticker;
+        HttpServer server;
+        ObjectName name;
+
+        static LongAdder[] adders(int n) {
+            LongAdder[] a = new LongAdder[n];
+            for (int i = 0; i < n; i++) a[i] = new LongAdder();
+            return a;
+        }
+
+        static long sum(LongAdder[] a) {
+            long total = 0;
+            for (LongAdder x : a) total += x.sum();
+            return total;
+        }
+
+        /* Drains the cursor's counts; each candidate was hashed against `salts` salts */
+        void record(int chain, bf_jcrypt.CandidateCursor cursor, int salts) {
+            if (cursor.generated != 0) {
+                generated[chain].add(cursor.generated);
+                hashed[chain].add(cursor.generated * salts);
+                cursor.generated = 0;
+            }
+            if (cursor.skipped != 0) {
+                skipped[chain].add(cursor.skipped);
+                cursor.skipped = 0;
+            }
+        }
+
+        void userFinished(bf_jcrypt.UserEntry user) {
+            userSeconds.observe(user.seconds);
+            if (user.password != null) usersCracked.increment();
+        }
+
+        /*
+        Adds what every live thread allocated since the last call. Threads
+        that died in between lose their last few bytes, which keeps the
+        total monotonic at the cost of a slight undercount.
+        */
+        synchronized long sampleAllocation() {
+            com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+
+            Map<Long, Long> seen = new HashMap<>();
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] < 0) continue;
+                allocated += Math.max(0, bytes[i] - threadAllocated.getOrDefault(ids[i], 0L));
+                seen.put(ids[i], bytes[i]);
+            }
+            threadAllocated.clear();
+            threadAllocated.putAll(seen);
+            return allocated;
+        }
+
+        long[] gc() {
+            long[] total = new long[2];
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                total[0] += Math.max(0, gc.getCollectionCount());
+                total[1] += Math.max(0, gc.getCollectionTime());
+            }
+            return total;
+        }
+
+        /* Updates the rates and prints the console line */
+        synchronized void tick() {
+            long now = System.nanoTime();
+            long total = getCandidatesHashed();
+            long bytes = sampleAllocation();
+            double seconds = Math.max(1e-9, (now - lastNanos) / 1e9);
+
+            hashRate = (total - lastHashed) / seconds;
+            allocationRate = (bytes - lastAllocated) / seconds;
+            lastNanos = now;
+            lastHashed = total;
+            lastAllocated = bytes;
+
+            long[] gc = gc();
+            System.out.println("[metrics] " + human(hashRate) + " H/s"
+                + "  chain " + currentChain + "/" + bf_jcrypt.RULE_CHAINS.length
+                + "  hashed " + human(total)
+                + "  dedup " + String.format("%.1f", 100 * getDedupHitRatio()) + "%"
+                + "  users " + userSeconds.count.sum() + "/" + usersTotal + " done, " + usersCracked.sum() + " cracked"
+                + "  alloc " + String.format("%.1f", allocationRate / (1 << 20)) + " MB/s"
+                + "  gc " + gc[0] + " (" + gc[1] + " ms)");
+        }
+
+        static String human(double n) {
+            if (n >= 1e9) return String.format("%.2fG", n / 1e9);
+            if (n >= 1e6) return String.format("%.2fM", n / 1e6);
+            if (n >= 1e3) return String.format("%.1fk", n / 1e3);
+            return String.format("%.0f", n);
+        }
+
+        /*
+        Starts the console ticker (interval seconds, 0 = off), registers the
+        MBean and, if port is not 0, serves /metrics on the loopback
+        interface. A failure to bind is reported and the run goes on.
+        */
+        void start(int interval, int port) {
+            if (interval > 0) {
+                ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "metrics");
+                    t.setDaemon(true);
+                    return t;
+                });
+                ticker.scheduleAtFixedRate(this::tick, interval, interval, TimeUnit.SECONDS);
+            }
+
+            try {
+                name = new ObjectName("bf_jcrypt:type=Metrics");
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, MetricsMBean.class), name);
+            } catch (Exception e) {
+                System.err.println("Cannot register metrics MBean: " + e.getMessage());
+                name = null;
+            }
+
+            if (port == 0) return;
+            try {
+                server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.start();
+                System.out.println("Metrics on http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Cannot start metrics endpoint on port " + port + ": " + e.getMessage());
+                server = null;
+            }
+        }
+
+        /* The endpoint's dispatcher thread is not a daemon, so this has to run before exit */
+        void stop() {
+            if (ticker != null) ticker.shutdownNow();
+            if (server != null) server.stop(0);
+            if (name != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+                } catch (Exception e) {
+                    // already gone
+                }
+            }
+            ticker = null;
+            server = null;
+            name = null;
+        }
+
+        /* Prometheus text exposition format 0.0.4 */
+        String prometheus() {
+            StringBuilder sb = new StringBuilder();
+
+            counterHeader(sb, "candidates_generated_total", "Candidates produced by the rule engine, by rule chain.");
+            perChain(sb, "candidates_generated_total", generated);
+            counterHeader(sb, "candidates_hashed_total", "Candidate hashes computed (one per salt tried), by rule chain.");
+            perChain(sb, "candidates_hashed_total", hashed);
+            counterHeader(sb, "candidates_duplicate_total", "Repeated variants skipped by the rule engine's dedup, by rule chain.");
+            perChain(sb, "candidates_duplicate_total", skipped);
+
+            counterHeader(sb, "seen_filter_skipped_total", "Candidates not hashed because the seen filter had their key; still in candidates_hashed_total by chain.");
+            sb.append("bf_jcrypt_seen_filter_skipped_total ").append(seenSkipped.sum()).append('\n');
+
+            counterHeader(sb, "loopback_hashed_total", "Candidate hashes computed by potfile loopback.");
+            sb.append("bf_jcrypt_loopback_hashed_total ").append(loopbackHashed.sum()).append('\n');
+            counterHeader(sb, "pcfg_hashed_total", "Candidate hashes computed from the PCFG source.");
+            sb.append("bf_jcrypt_pcfg_hashed_total ").append(pcfgHashed.sum()).append('\n');
+            counterHeader(sb, "source_hashed_total", "Candidate hashes computed in mask or rule-file mode.");
+            sb.append("bf_jcrypt_source_hashed_total ").append(sourceHashed.sum()).append('\n');
+            counterHeader(sb, "users_cracked_total", "Users whose password was found.");
+            sb.append("bf_jcrypt_users_cracked_total ").append(usersCracked.sum()).append('\n');
+
+            gaugeHeader(sb, "users", "Users in the password file.");
+            sb.append("bf_jcrypt_users ").append(usersTotal).append('\n');
+            gaugeHeader(sb, "rule_chain", "Index of the rule chain being searched.");
+            sb.append("bf_jcrypt_rule_chain ").append(currentChain).append('\n');
+
+            sb.append("# HELP bf_jcrypt_user_seconds Time spent on each finished user.\n");
+            sb.append("# TYPE bf_jcrypt_user_seconds histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i <= userSeconds.bounds.length; i++) {
+                cumulative += userSeconds.counts[i].sum();
+                String le = i < userSeconds.bounds.length ? String.valueOf(userSeconds.bounds[i]) : "+Inf";
+                sb.append("bf_jcrypt_user_seconds_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append("bf_jcrypt_user_seconds_sum ").append(userSeconds.sum.sum()).append('\n');
+            sb.append("bf_jcrypt_user_seconds_count ").append(cumulative).append('\n');
+
+            long[] gc = gc();
+            counterHeader(sb, "gc_collections_total", "Garbage collections, all collectors.");
+            sb.append("bf_jcrypt_gc_collections_total ").append(gc[0]).append('\n');
+            counterHeader(sb, "gc_seconds_total", "Time spent in garbage collection.");
+            sb.append("bf_jcrypt_gc_seconds_total ").append(gc[1] / 1e3).append('\n');
+            counterHeader(sb, "allocated_bytes_total", "Heap bytes allocated by all threads.");
+            sb.append("bf_jcrypt_allocated_bytes_total ").append(sampleAllocation()).append('\n');
+
+            return sb.toString();
+        }
+
+        static void counterHeader(StringBuilder sb, String name, String help) {
+            sb.append("# HELP bf_jcrypt_").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE bf_jcrypt_").append(name).append(" counter\n");
+        }
+
+        static void gaugeHeader(StringBuilder sb, String name, String help) {
+            sb.append("# HELP bf_jcrypt_").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE bf_jcrypt_").append(name).append(" gauge\n");
+        }
+
+        /* One sample per chain that has seen any work, so idle chains stay out of the scrape */
+        void perChain(StringBuilder sb, String name, LongAdder[] counts) {
+            for (int c = 0; c < counts.length; c++) {
+                if (generated[c].sum() == 0 && skipped[c].sum() == 0) continue;
+                sb.append("bf_jcrypt_").append(name).append("{chain=\"").append(c).append("\"} ")
+                  .append(counts[c].sum()).append('\n');
+            }
+        }
+
+        /* MetricsMBean */
+
+        public long getCandidatesGenerated() {
+            return sum(generated);
+        }
+
+        public long getCandidatesHashed() {
+            return sum(hashed) - seenSkipped.sum() + loopbackHashed.sum() + pcfgHashed.sum() + sourceHashed.sum();
+        }
+
+        public long getSeenFilterSkipped() {
+            return seenSkipped.sum();
+        }
+
+        public long getDuplicatesSkipped() {
+            return sum(skipped);
+        }
+
+        public double getDedupHitRatio() {
+            long seen = getCandidatesGenerated() + getDuplicatesSkipped();
+            return seen == 0 ? 0 : (double) getDuplicatesSkipped() / seen;
+        }
+
+        public double getHashRate() {
+            if (hashRate >= 0) return hashRate;
+            return getCandidatesHashed() / Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+        }
+
+        public double getAllocationRate() {
+            return allocationRate;
+        }
+
+        public int getRuleChain() {
+            return currentChain;
+        }
+
+        public int getUsersTotal() {
+            return usersTotal;
+        }
+
+        public long getUsersFinished() {
+            return userSeconds.count.sum();
+        }
+
+        public long getUsersCracked() {
+            return usersCracked.sum();
+        }
+
+        public double getUserSecondsMean() {
+            long n = userSeconds.count.sum();
+            return n == 0 ? 0 : userSeconds.sum.sum() / n;
+        }
+    }
+
+    /* JMX view of Metrics; public because the MBean server introspects it */
+    public interface MetricsMBean {
+        long getCandidatesGenerated();
+        long getCandidatesHashed();
+        long getDuplicatesSkipped();
+        double getDedupHitRatio();
+        long getSeenFilterSkipped();
+        double getHashRate();
+        double getAllocationRate();
+        int getRuleChain();
+        int getUsersTotal();
+        long getUsersFinished();
+        long getUsersCracked();
+        double getUserSecondsMean();
+    }
+
+    /*
+    Fixed-bucket histogram: counts[i] holds the observations in
+    (bounds[i-1], bounds[i]], and the last slot everything above.
+    */
+    static class Histogram {
+        final double[] bounds;
+        final LongAdder[] counts;
+        final DoubleAdder sum = new DoubleAdder();
+        final LongAdder count = new LongAdder();
+
+        Histogram(double... bounds) {
+            this.bounds = bounds;
+            this.counts = Metrics.adders(bounds.length + 1);
+        }
+
+        void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) i++;
+            counts[i].increment();
+            sum.add(value);
+            count.increment();
+        }
+    }
+}
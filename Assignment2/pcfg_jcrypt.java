@@ -0,0 +1,399 @@
+/*
+pcfg_jcrypt.java
+
+Probabilistic context-free grammar of passwords for bf_jcrypt: training
+on cracked plaintexts and the wordlist, enumeration of guesses in
+decreasing probability, and the --pcfg phase that hashes them.
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+
+
+public class pcfg_jcrypt {
+    private pcfg_jcrypt() {}
+
+    /*
+    Probabilistic context-free grammar of passwords (Weir et al.), as a
+    candidate source ordered by likelihood rather than by rule chain.
+
+    A password, cut to the KEY_LENGTH characters DES sees, is parsed into
+    maximal runs of letters (L), digits (D) and anything else (S). Its
+    base structure is the sequence of run classes and lengths, so
+    "apple12!" is L5 D2 S1. Training counts structures, and for every
+    class and length the runs seen with it. A guess is a structure with
+    one run filled into each slot, and its probability is that of the
+    structure times that of each run among the runs of its slot.
+
+    Letter runs only come from training (passwords, wordlist lines and
+    user name variants). Digit runs of up to SMOOTH_DIGITS and symbol
+    runs of up to SMOOTH_SYMBOLS characters are smoothed: every unseen
+    run of the slot gets SMOOTHING pseudo-counts, so "word" + two digits
+    tries all 100 suffixes, the seen ones first. Parses are unique, so
+    the grammar never produces the same guess twice.
+
+    Training rarely sees many structures (a plain wordlist is all L), so
+    every grammar also starts with one pseudo-count of a few common
+    shapes (see seedStructures). Only the first words of the wordlist
+    are used (--pcfg-words), so a large dictionary neither fills the heap
+    with runs nor outweighs the cracked plaintexts.
+    */
+    static class Pcfg {
+        static final int SMOOTH_DIGITS = 3;
+        static final int SMOOTH_SYMBOLS = 1;
+        static final double SMOOTHING = 0.5;
+
+        /* Base structure ("L5D2S1") -> count */
+        final Map<String, Long> structures = new HashMap<>();
+
+        /* Slot ("D2") -> run -> count */
+        final Map<String, Map<String, Long>> runs = new HashMap<>();
+
+        long trained;
+
+        Pcfg() {
+            for (String structure : seedStructures()) structures.put(structure, 1L);
+        }
+
+        /*
+        A word of 3 to 7 letters followed by digits, a symbol, or digits
+        and a symbol, or preceded by a digit, fitting in KEY_LENGTH.
+        */
+        static List<String> seedStructures() {
+            List<String> seed = new ArrayList<>();
+            for (int n = 3; n < bf_jcrypt.KEY_LENGTH; n++) {
+                for (int k = 1; n + k <= bf_jcrypt.KEY_LENGTH; k++) seed.add("L" + n + "D" + k);
+                for (int k = 1; n + k < bf_jcrypt.KEY_LENGTH; k++) seed.add("L" + n + "D" + k + "S1");
+                seed.add("L" + n + "S1");
+                seed.add("D1L" + n);
+            }
+            return seed;
+        }
+
+        static char kind(char c) {
+            if (Character.isLetter(c)) return 'L';
+            if (c >= '0' && c <= '9') return 'D';
+            return 'S';
+        }
+
+        void train(String password) {
+            if (password.length() > bf_jcrypt.KEY_LENGTH) password = password.substring(0, bf_jcrypt.KEY_LENGTH);
+            if (password.isEmpty()) return;
+
+            StringBuilder structure = new StringBuilder();
+            int start = 0;
+            for (int i = 1; i <= password.length(); i++) {
+                if (i < password.length() && kind(password.charAt(i)) == kind(password.charAt(start))) continue;
+
+                String slot = "" + kind(password.charAt(start)) + (i - start);
+                structure.append(slot);
+                runs.computeIfAbsent(slot, k -> new HashMap<>()).merge(password.substring(start, i), 1L, Long::sum);
+                start = i;
+            }
+            structures.merge(structure.toString(), 1L, Long::sum);
+            trained++;
+        }
+
+        /*
+        Trains on cracked plaintexts, the first `limit` words of the
+        wordlist and the name variants of every user.
+        */
+        static Pcfg train(Collection<String> cracked, bf_jcrypt.Wordlist dictionary, long limit, List<bf_jcrypt.UserEntry> users) {
+            Pcfg grammar = new Pcfg();
+            for (String password : cracked) grammar.train(password);
+
+            bf_jcrypt.WordReader words = dictionary.words();
+            String word;
+            for (long n = 0; n < limit && (word = words.next()) != null; n++) grammar.train(word);
+
+            for (bf_jcrypt.UserEntry user : users) {
+                for (String variant : bf_jcrypt.nameVariants(user)) grammar.train(variant);
+            }
+            return grammar;
+        }
+
+        /*
+        Plaintexts of every result file under `dir` (user:password:seconds
+        lines), so earlier runs on other password files train the grammar.
+        */
+        static List<String> crackedPlaintexts(File dir) throws IOException {
+            List<String> passwords = new ArrayList<>();
+            File[] files = dir.listFiles((d, name) -> name.endsWith("_results.txt"));
+            if (files == null) return passwords;
+
+            for (File file : files) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                    for (String line; (line = reader.readLine()) != null; ) {
+                        int first = line.indexOf(':');
+                        int last = line.lastIndexOf(':');
+                        if (first < 0 || last <= first) continue;
+
+                        String password = line.substring(first + 1, last);
+                        if (!password.equals("<not found>")) passwords.add(password);
+                    }
+                }
+            }
+            return passwords;
+        }
+
+        /* Every possible run of a smoothed slot, or null */
+        static List<String> alphabet(char kind, int length) {
+            String chars;
+            if (kind == 'D' && length <= SMOOTH_DIGITS) chars = bf_jcrypt.DIGITS;
+            else if (kind == 'S' && length <= SMOOTH_SYMBOLS) chars = symbols();
+            else return null;
+
+            List<String> all = new ArrayList<>();
+            all.add("");
+            for (int i = 0; i < length; i++) {
+                List<String> longer = new ArrayList<>();
+                for (String prefix : all) {
+                    for (char c : chars.toCharArray()) longer.add(prefix + c);
+                }
+                all = longer;
+            }
+            return all;
+        }
+
+        static String symbols() {
+            StringBuilder sb = new StringBuilder();
+            for (char c : bf_jcrypt.SPECIALS.toCharArray()) {
+                if (sb.indexOf(String.valueOf(c)) < 0) sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        /*
+        Compiles the counts into slots and structures for PcfgCursor,
+        leaving out structures with a slot that has no runs.
+        */
+        List<Structure> compile() {
+            Map<String, Slot> slots = new HashMap<>();
+            double total = 0;
+            for (long c : structures.values()) total += c;
+
+            List<Structure> compiled = new ArrayList<>();
+            for (Map.Entry<String, Long> e : structures.entrySet()) {
+                List<Slot> parts = new ArrayList<>();
+                String s = e.getKey();
+                for (int i = 0; i < s.length(); ) {
+                    int j = i + 1;
+                    while (j < s.length() && Character.isDigit(s.charAt(j))) j++;
+                    parts.add(slots.computeIfAbsent(s.substring(i, j), this::slot));
+                    i = j;
+                }
+                if (parts.contains(null)) continue;
+                compiled.add(new Structure(parts.toArray(new Slot[0]), e.getValue() / total));
+            }
+            return compiled;
+        }
+
+        Slot slot(String key) {
+            Map<String, Long> counts = runs.getOrDefault(key, new HashMap<>());
+            List<String> alphabet = alphabet(key.charAt(0), Integer.parseInt(key.substring(1)));
+            if (counts.isEmpty() && alphabet == null) return null;
+            return new Slot(counts, alphabet);
+        }
+    }
+
+    /*
+    The runs of one slot, grouped by probability: groups[g] holds every
+    run with probability prob[g], most likely group first. With an
+    alphabet (smoothed slot) every run gets Pcfg.SMOOTHING extra counts
+    and the unseen ones form the last group.
+    */
+    static class Slot {
+        final String[][] groups;
+        final double[] prob;
+
+        Slot(Map<String, Long> counts, List<String> alphabet) {
+            double extra = alphabet == null ? 0 : Pcfg.SMOOTHING;
+
+            List<String> unseen = new ArrayList<>();
+            if (alphabet != null) {
+                for (String run : alphabet) {
+                    if (!counts.containsKey(run)) unseen.add(run);
+                }
+            }
+
+            double total = unseen.size() * extra;
+            TreeMap<Long, List<String>> byCount = new TreeMap<>();
+            for (Map.Entry<String, Long> e : counts.entrySet()) {
+                byCount.computeIfAbsent(e.getValue(), k -> new ArrayList<>()).add(e.getKey());
+                total += e.getValue() + extra;
+            }
+
+            int n = byCount.size() + (unseen.isEmpty() ? 0 : 1);
+            groups = new String[n][];
+            prob = new double[n];
+
+            int g = 0;
+            for (Map.Entry<Long, List<String>> e : byCount.descendingMap().entrySet()) {
+                groups[g] = e.getValue().toArray(new String[0]);
+                prob[g++] = (e.getKey() + extra) / total;
+            }
+            if (!unseen.isEmpty()) {
+                groups[g] = unseen.toArray(new String[0]);
+                prob[g] = extra / total;
+            }
+        }
+    }
+
+    /* A base structure: its slots in order and its probability */
+    static class Structure {
+        final Slot[] slots;
+        final double prob;
+
+        Structure(Slot[] slots, double prob) {
+            this.slots = slots;
+            this.prob = prob;
+        }
+    }
+
+    /*
+    Enumerates a grammar's guesses in decreasing probability.
+
+    A node picks one group in every slot of a structure, and stands for
+    all guesses combining runs of those groups, which share a probability.
+    The queue starts with the top group of every structure. Popping the
+    best node expands its guesses, and pushes its children: one per slot
+    at or after the node's pivot, with that slot moved to its next group
+    and the pivot moved to it. Every combination has exactly one parent
+    that way (the pivot rule of Weir's "next" function), and no child is
+    more likely than its parent, so guesses come out in order.
+
+    The queue is capped at MAX_QUEUE nodes; past that the least likely
+    nodes are dropped, so memory stays bounded at the price of losing the
+    far tail, which a bounded run would not reach anyway.
+    */
+    static class PcfgCursor {
+        static final int MAX_QUEUE = 1 << 16;
+
+        static class Node {
+            final Structure structure;
+            final int[] group;
+            final int pivot;
+            final double prob;
+            final long order;
+
+            Node(Structure structure, int[] group, int pivot, long order) {
+                this.structure = structure;
+                this.group = group;
+                this.pivot = pivot;
+                this.order = order;
+
+                double p = structure.prob;
+                for (int i = 0; i < group.length; i++) p *= structure.slots[i].prob[group[i]];
+                this.prob = p;
+            }
+        }
+
+        /* Most likely first; `order` keeps equal nodes apart and FIFO */
+        final TreeSet<Node> queue = new TreeSet<>((a, b) ->
+            a.prob != b.prob ? Double.compare(b.prob, a.prob) : Long.compare(a.order, b.order));
+        long pushed;
+        long dropped;
+
+        /* Node being expanded, and the run index in each of its groups */
+        Node current;
+        int[] index;
+        String[][] runs;
+
+        PcfgCursor(List<Structure> structures) {
+            for (Structure s : structures) push(new Node(s, new int[s.slots.length], 0, pushed++));
+        }
+
+        void push(Node node) {
+            queue.add(node);
+            if (queue.size() > MAX_QUEUE) {
+                queue.pollLast();
+                dropped++;
+            }
+        }
+
+        /* Next guess, or null once the grammar (or what the cap kept of it) is exhausted */
+        String next() {
+            while (true) {
+                if (current != null && advance()) {
+                    StringBuilder sb = new StringBuilder(bf_jcrypt.KEY_LENGTH);
+                    for (int i = 0; i < runs.length; i++) sb.append(runs[i][index[i]]);
+                    return sb.toString();
+                }
+
+                current = queue.pollFirst();
+                if (current == null) return null;
+
+                Structure s = current.structure;
+                for (int i = current.pivot; i < s.slots.length; i++) {
+                    if (current.group[i] + 1 >= s.slots[i].groups.length) continue;
+
+                    int[] group = current.group.clone();
+                    group[i]++;
+                    push(new Node(s, group, i, pushed++));
+                }
+
+                runs = new String[s.slots.length][];
+                for (int i = 0; i < runs.length; i++) runs[i] = s.slots[i].groups[current.group[i]];
+                index = null;
+            }
+        }
+
+        /* Steps the odometer over the current node's runs; false when done */
+        boolean advance() {
+            if (index == null) {
+                index = new int[runs.length];
+                return true;
+            }
+            for (int i = runs.length - 1; i >= 0; i--) {
+                if (++index[i] < runs[i].length) return true;
+                index[i] = 0;
+            }
+            current = null;
+            return false;
+        }
+    }
+
+
+    /*
+    Hashes the first `budget` guesses of the grammar against every
+    uncracked user, once per salt, before the rule chains run.
+    */
+    static void crackByPcfg(List<bf_jcrypt.UserEntry> users, Pcfg grammar, long budget, String engine,
+                            BiConsumer<bf_jcrypt.UserEntry, String> onCrack) {
+        List<bf_jcrypt.UserEntry> uncracked = new ArrayList<>();
+        for (bf_jcrypt.UserEntry user : users) {
+            if (user.password == null) uncracked.add(user);
+        }
+
+        List<bf_jcrypt.SaltMatcher> active = new ArrayList<>();
+        for (bf_jcrypt.SaltGroup group : bf_jcrypt.groupBySalt(uncracked).values()) {
+            active.add(bf_jcrypt.SaltMatcher.create(engine, group, onCrack));
+        }
+
+        PcfgCursor cursor = new PcfgCursor(grammar.compile());
+        long tried = 0;
+
+        for (String candidate; tried < budget && !active.isEmpty() && (candidate = cursor.next()) != null; tried++) {
+            bf_jcrypt.METRICS.pcfgHashed.add(active.size());
+            for (int g = 0; g < active.size(); g++) {
+                active.get(g).offer(candidate);
+                if (active.get(g).done()) active.remove(g--);
+            }
+        }
+        for (bf_jcrypt.SaltMatcher matcher : active) matcher.flush();
+
+        System.out.println("PCFG: tried " + tried + " guesses from " + grammar.structures.size()
+            + " structures (trained on " + grammar.trained + " passwords"
+            + (cursor.dropped > 0 ? ", " + cursor.dropped + " queue nodes dropped" : "") + ")");
+    }
+}
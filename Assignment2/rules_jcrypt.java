@@ -0,0 +1,552 @@
+/*
+rules_jcrypt.java
+
+Rule-file mode of bf_jcrypt (--rules): hashcat/John rule lines compiled
+into programs for a small in-place interpreter, and the CandidateSource
+that runs every rule over every dictionary word.
+*/
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class rules_jcrypt {
+    private rules_jcrypt() {}
+
+    /*
+    One line of a hashcat/John rule file, compiled once into a flat
+    program of (opcode, a, b) triples that run() interprets in place over
+    a char buffer, without allocating. N and M are positions 0-9, A-Z:
+
+      :  l u c C t TN E eX    r d pN f { }    $X ^X [ ] DN xNM ONM iNX
+      oNX 'N    sXY @X    zN ZN q yN YN    k K *NM    LN RN +N -N .N ,N
+      <N >N _N !X /X (X )X =NX %NX    (reject the word unless ...)
+
+    Operations the built-in chains already have compile to their OpCode
+    (l is LOWERCASE_ALL, c is LOWERCASE_ALL then CAPITALIZE_FIRST, $X a
+    one-character APPEND_CHARSET, ...) and the rest to opcodes of their
+    own. Semantics follow hashcat: a position past the end of the word
+    leaves it unchanged, and a word that would outgrow CAPACITY is
+    rejected. The memory operations (M 4 6 X Q) are not supported.
+    */
+    static class RuleProgram {
+        static final int CAPACITY = 256;
+
+        static final bf_jcrypt.OpCode[] OPS = bf_jcrypt.OpCode.values();
+
+        final String text;
+        final int[] code;
+
+        RuleProgram(String text, int[] code) {
+            this.text = text;
+            this.code = code;
+        }
+
+        /* Reads rule lines, skipping blanks, comments and repeats */
+        static List<RuleProgram> load(String filename) throws IOException {
+            Map<String, RuleProgram> programs = new LinkedHashMap<>();
+            int line = 0;
+            int unsupported = 0;
+
+            for (String text : Files.readAllLines(Paths.get(filename), StandardCharsets.ISO_8859_1)) {
+                line++;
+                if (text.isEmpty() || text.startsWith("#")) continue;
+                try {
+                    RuleProgram program = compile(text);
+                    programs.putIfAbsent(Arrays.toString(program.code), program);
+                } catch (IllegalArgumentException e) {
+                    if (unsupported++ == 0) System.err.println(filename + ":" + line + ": " + e.getMessage());
+                }
+            }
+            if (unsupported > 1) System.err.println("Skipped " + unsupported + " unsupported rules in " + filename);
+            return new ArrayList<>(programs.values());
+        }
+
+        static RuleProgram compile(String text) {
+            Parser in = new Parser(text);
+            int[] code = new int[6 * text.length()];
+            int length = 0;
+
+            while (in.more()) {
+                char c = in.next();
+                bf_jcrypt.OpCode op;
+                int a = 0;
+                int b = 0;
+
+                switch (c) {
+                    case ' ':
+                    case '\t':
+                        continue;
+                    case ':': op = bf_jcrypt.OpCode.IDENTITY; break;
+                    case 'l': op = bf_jcrypt.OpCode.LOWERCASE_ALL; break;
+                    case 'u': op = bf_jcrypt.OpCode.CAPITALIZE_ALL; break;
+                    case 'c':
+                        code[length++] = bf_jcrypt.OpCode.LOWERCASE_ALL.ordinal();
+                        length += 2;
+                        op = bf_jcrypt.OpCode.CAPITALIZE_FIRST;
+                        break;
+                    case 'C': op = bf_jcrypt.OpCode.NCAPITALIZE; break;
+                    case 't': op = bf_jcrypt.OpCode.TOGGLE_ALL; break;
+                    case 'T': op = bf_jcrypt.OpCode.TOGGLE_AT; a = in.position(); break;
+                    case 'E': op = bf_jcrypt.OpCode.TITLE_CASE; a = ' '; break;
+                    case 'e': op = bf_jcrypt.OpCode.TITLE_CASE; a = in.next(); break;
+                    case 'r': op = bf_jcrypt.OpCode.REVERSE; break;
+                    case 'd': op = bf_jcrypt.OpCode.DUPLICATE; break;
+                    case 'p': op = bf_jcrypt.OpCode.REPEAT; a = in.position(); break;
+                    case 'f': op = bf_jcrypt.OpCode.REFLECT_FRONT; break;
+                    case '{': op = bf_jcrypt.OpCode.ROTATE_LEFT; break;
+                    case '}': op = bf_jcrypt.OpCode.ROTATE_RIGHT; break;
+                    case '$': op = bf_jcrypt.OpCode.APPEND_CHARSET; a = in.next(); break;
+                    case '^': op = bf_jcrypt.OpCode.PREPEND_CHARSET; a = in.next(); break;
+                    case '[': op = bf_jcrypt.OpCode.DELETE_FIRST; break;
+                    case ']': op = bf_jcrypt.OpCode.DELETE_LAST; break;
+                    case 'D': op = bf_jcrypt.OpCode.DELETE_AT; a = in.position(); break;
+                    case 'x': op = bf_jcrypt.OpCode.EXTRACT; a = in.position(); b = in.position(); break;
+                    case 'O': op = bf_jcrypt.OpCode.OMIT; a = in.position(); b = in.position(); break;
+                    case 'i': op = bf_jcrypt.OpCode.INSERT_AT; a = in.position(); b = in.next(); break;
+                    case 'o': op = bf_jcrypt.OpCode.OVERWRITE_AT; a = in.position(); b = in.next(); break;
+                    case '\'': op = bf_jcrypt.OpCode.TRUNCATE_AT; a = in.position(); break;
+                    case 's': op = bf_jcrypt.OpCode.REPLACE_ALL; a = in.next(); b = in.next(); break;
+                    case '@': op = bf_jcrypt.OpCode.PURGE; a = in.next(); break;
+                    case 'z': op = bf_jcrypt.OpCode.DUPLICATE_FIRST; a = in.position(); break;
+                    case 'Z': op = bf_jcrypt.OpCode.DUPLICATE_LAST; a = in.position(); break;
+                    case 'q': op = bf_jcrypt.OpCode.DUPLICATE_CHARS; break;
+                    case 'y': op = bf_jcrypt.OpCode.DUPLICATE_PREFIX; a = in.position(); break;
+                    case 'Y': op = bf_jcrypt.OpCode.DUPLICATE_SUFFIX; a = in.position(); break;
+                    case 'k': op = bf_jcrypt.OpCode.SWAP_FRONT; break;
+                    case 'K': op = bf_jcrypt.OpCode.SWAP_BACK; break;
+                    case '*': op = bf_jcrypt.OpCode.SWAP_AT; a = in.position(); b = in.position(); break;
+                    case 'L': op = bf_jcrypt.OpCode.SHIFT_LEFT_AT; a = in.position(); break;
+                    case 'R': op = bf_jcrypt.OpCode.SHIFT_RIGHT_AT; a = in.position(); break;
+                    case '+': op = bf_jcrypt.OpCode.INCREMENT_AT; a = in.position(); break;
+                    case '-': op = bf_jcrypt.OpCode.DECREMENT_AT; a = in.position(); break;
+                    case '.': op = bf_jcrypt.OpCode.REPLACE_NEXT; a = in.position(); break;
+                    case ',': op = bf_jcrypt.OpCode.REPLACE_PRIOR; a = in.position(); break;
+                    case '<': op = bf_jcrypt.OpCode.REJECT_LONGER; a = in.position(); break;
+                    case '>': op = bf_jcrypt.OpCode.REJECT_SHORTER; a = in.position(); break;
+                    case '_': op = bf_jcrypt.OpCode.REJECT_UNLESS_LENGTH; a = in.position(); break;
+                    case '!': op = bf_jcrypt.OpCode.REJECT_CONTAINS; a = in.next(); break;
+                    case '/': op = bf_jcrypt.OpCode.REJECT_UNLESS_CONTAINS; a = in.next(); break;
+                    case '(': op = bf_jcrypt.OpCode.REJECT_UNLESS_FIRST; a = in.next(); break;
+                    case ')': op = bf_jcrypt.OpCode.REJECT_UNLESS_LAST; a = in.next(); break;
+                    case '=': op = bf_jcrypt.OpCode.REJECT_UNLESS_AT; a = in.position(); b = in.next(); break;
+                    case '%': op = bf_jcrypt.OpCode.REJECT_UNLESS_COUNT; a = in.position(); b = in.next(); break;
+                    default:
+                        throw new IllegalArgumentException("unsupported rule operation '" + c + "' in: " + text);
+                }
+                code[length++] = op.ordinal();
+                code[length++] = a;
+                code[length++] = b;
+            }
+            if (length == 0) throw new IllegalArgumentException("empty rule: " + text);
+            return new RuleProgram(text, Arrays.copyOf(code, length));
+        }
+
+        /* Reads the arguments of one rule line */
+        static class Parser {
+            final String text;
+            int i;
+
+            Parser(String text) {
+                this.text = text;
+            }
+
+            boolean more() {
+                return i < text.length();
+            }
+
+            char next() {
+                if (!more()) throw new IllegalArgumentException("missing argument in: " + text);
+                return text.charAt(i++);
+            }
+
+            int position() {
+                char c = next();
+                if (c >= '0' && c <= '9') return c - '0';
+                if (c >= 'A' && c <= 'Z') return c - 'A' + 10;
+                throw new IllegalArgumentException("bad position '" + c + "' in: " + text);
+            }
+        }
+
+        /*
+        Runs the program over w[0, n) in place; returns the new length,
+        or -1 if the word is rejected.
+        */
+        int run(char[] w, int n) {
+            for (int pc = 0; pc < code.length; pc += 3) {
+                int a = code[pc + 1];
+                int b = code[pc + 2];
+
+                switch (OPS[code[pc]]) {
+                    case IDENTITY:
+                        break;
+
+                    case LOWERCASE_ALL:
+                        for (int i = 0; i < n; i++) w[i] = lower(w[i]);
+                        break;
+
+                    case CAPITALIZE_ALL:
+                        for (int i = 0; i < n; i++) w[i] = upper(w[i]);
+                        break;
+
+                    case CAPITALIZE_FIRST:
+                        if (n > 0) w[0] = upper(w[0]);
+                        break;
+
+                    case NCAPITALIZE:
+                        for (int i = 0; i < n; i++) w[i] = i == 0 ? lower(w[i]) : upper(w[i]);
+                        break;
+
+                    case TOGGLE_ALL:
+                        for (int i = 0; i < n; i++) w[i] = toggle(w[i]);
+                        break;
+
+                    case TOGGLE_AT:
+                        if (a < n) w[a] = toggle(w[a]);
+                        break;
+
+                    case TITLE_CASE:
+                        for (int i = 0; i < n; i++) w[i] = i == 0 || w[i - 1] == a ? upper(w[i]) : lower(w[i]);
+                        break;
+
+                    case REVERSE:
+                        reverse(w, 0, n);
+                        break;
+
+                    case DUPLICATE:
+                        if (2 * n > w.length) return -1;
+                        System.arraycopy(w, 0, w, n, n);
+                        n *= 2;
+                        break;
+
+                    case REPEAT:
+                        if ((a + 1) * n > w.length) return -1;
+                        for (int i = 1; i <= a; i++) System.arraycopy(w, 0, w, i * n, n);
+                        n *= a + 1;
+                        break;
+
+                    case REFLECT_FRONT:
+                        if (2 * n > w.length) return -1;
+                        for (int i = 0; i < n; i++) w[n + i] = w[n - 1 - i];
+                        n *= 2;
+                        break;
+
+                    case ROTATE_LEFT:
+                        if (n > 1) {
+                            char c = w[0];
+                            System.arraycopy(w, 1, w, 0, n - 1);
+                            w[n - 1] = c;
+                        }
+                        break;
+
+                    case ROTATE_RIGHT:
+                        if (n > 1) {
+                            char c = w[n - 1];
+                            System.arraycopy(w, 0, w, 1, n - 1);
+                            w[0] = c;
+                        }
+                        break;
+
+                    case APPEND_CHARSET:
+                        if (n == w.length) return -1;
+                        w[n++] = (char) a;
+                        break;
+
+                    case PREPEND_CHARSET:
+                        if (n == w.length) return -1;
+                        System.arraycopy(w, 0, w, 1, n++);
+                        w[0] = (char) a;
+                        break;
+
+                    case DELETE_FIRST:
+                        if (n > 0) System.arraycopy(w, 1, w, 0, --n);
+                        break;
+
+                    case DELETE_LAST:
+                        if (n > 0) n--;
+                        break;
+
+                    case DELETE_AT:
+                        if (a < n) System.arraycopy(w, a + 1, w, a, --n - a);
+                        break;
+
+                    case EXTRACT:
+                        if (a + b <= n) {
+                            System.arraycopy(w, a, w, 0, b);
+                            n = b;
+                        }
+                        break;
+
+                    case OMIT:
+                        if (a + b <= n) {
+                            System.arraycopy(w, a + b, w, a, n - a - b);
+                            n -= b;
+                        }
+                        break;
+
+                    case INSERT_AT:
+                        if (a <= n) {
+                            if (n == w.length) return -1;
+                            System.arraycopy(w, a, w, a + 1, n++ - a);
+                            w[a] = (char) b;
+                        }
+                        break;
+
+                    case OVERWRITE_AT:
+                        if (a < n) w[a] = (char) b;
+                        break;
+
+                    case TRUNCATE_AT:
+                        if (a < n) n = a;
+                        break;
+
+                    case REPLACE_ALL:
+                        for (int i = 0; i < n; i++) {
+                            if (w[i] == a) w[i] = (char) b;
+                        }
+                        break;
+
+                    case PURGE: {
+                        int m = 0;
+                        for (int i = 0; i < n; i++) {
+                            if (w[i] != a) w[m++] = w[i];
+                        }
+                        n = m;
+                        break;
+                    }
+
+                    case DUPLICATE_FIRST:
+                        if (n > 0) {
+                            if (n + a > w.length) return -1;
+                            System.arraycopy(w, 0, w, a, n);
+                            Arrays.fill(w, 1, a + 1, w[0]);
+                            n += a;
+                        }
+                        break;
+
+                    case DUPLICATE_LAST:
+                        if (n > 0) {
+                            if (n + a > w.length) return -1;
+                            Arrays.fill(w, n, n + a, w[n - 1]);
+                            n += a;
+                        }
+                        break;
+
+                    case DUPLICATE_CHARS:
+                        if (2 * n > w.length) return -1;
+                        for (int i = n - 1; i >= 0; i--) {
+                            w[2 * i] = w[i];
+                            w[2 * i + 1] = w[i];
+                        }
+                        n *= 2;
+                        break;
+
+                    case DUPLICATE_PREFIX:
+                        if (a <= n) {
+                            if (n + a > w.length) return -1;
+                            System.arraycopy(w, 0, w, a, n);
+                            n += a;
+                        }
+                        break;
+
+                    case DUPLICATE_SUFFIX:
+                        if (a <= n) {
+                            if (n + a > w.length) return -1;
+                            System.arraycopy(w, n - a, w, n, a);
+                            n += a;
+                        }
+                        break;
+
+                    case SWAP_FRONT:
+                        if (n > 1) swap(w, 0, 1);
+                        break;
+
+                    case SWAP_BACK:
+                        if (n > 1) swap(w, n - 2, n - 1);
+                        break;
+
+                    case SWAP_AT:
+                        if (a < n && b < n) swap(w, a, b);
+                        break;
+
+                    case SHIFT_LEFT_AT:
+                        if (a < n) w[a] = (char) ((w[a] << 1) & 0xff);
+                        break;
+
+                    case SHIFT_RIGHT_AT:
+                        if (a < n) w[a] = (char) (w[a] >> 1);
+                        break;
+
+                    case INCREMENT_AT:
+                        if (a < n) w[a] = (char) ((w[a] + 1) & 0xff);
+                        break;
+
+                    case DECREMENT_AT:
+                        if (a < n) w[a] = (char) ((w[a] - 1) & 0xff);
+                        break;
+
+                    case REPLACE_NEXT:
+                        if (a + 1 < n) w[a] = w[a + 1];
+                        break;
+
+                    case REPLACE_PRIOR:
+                        if (a >= 1 && a < n) w[a] = w[a - 1];
+                        break;
+
+                    case REJECT_LONGER:
+                        if (n > a) return -1;
+                        break;
+
+                    case REJECT_SHORTER:
+                        if (n < a) return -1;
+                        break;
+
+                    case REJECT_UNLESS_LENGTH:
+                        if (n != a) return -1;
+                        break;
+
+                    case REJECT_CONTAINS:
+                        if (count(w, n, a) > 0) return -1;
+                        break;
+
+                    case REJECT_UNLESS_CONTAINS:
+                        if (count(w, n, a) == 0) return -1;
+                        break;
+
+                    case REJECT_UNLESS_FIRST:
+                        if (n == 0 || w[0] != a) return -1;
+                        break;
+
+                    case REJECT_UNLESS_LAST:
+                        if (n == 0 || w[n - 1] != a) return -1;
+                        break;
+
+                    case REJECT_UNLESS_AT:
+                        if (a >= n || w[a] != b) return -1;
+                        break;
+
+                    case REJECT_UNLESS_COUNT:
+                        if (count(w, n, b) < a) return -1;
+                        break;
+
+                    default:
+                        throw new IllegalStateException("Not a rule-file opcode: " + OPS[code[pc]]);
+                }
+            }
+            return n;
+        }
+
+        static char lower(char c) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+        }
+
+        static char upper(char c) {
+            return c >= 'a' && c <= 'z' ? (char) (c - 32) : c;
+        }
+
+        static char toggle(char c) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c >= 'a' && c <= 'z' ? (char) (c - 32) : c;
+        }
+
+        static void reverse(char[] w, int from, int to) {
+            for (int i = from, j = to - 1; i < j; i++, j--) swap(w, i, j);
+        }
+
+        static void swap(char[] w, int i, int j) {
+            char c = w[i];
+            w[i] = w[j];
+            w[j] = c;
+        }
+
+        static int count(char[] w, int n, int c) {
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                if (w[i] == c) k++;
+            }
+            return k;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+
+    /*
+    Rule-file mode (--rules): every rule of the file applied to every
+    word of the dictionary, word-major, so a unit is a Wordlist position
+    and the source splits like the dictionary shards do. Each word is
+    copied once into a char buffer and every program runs over a fresh
+    copy of it. An output whose first KEY_LENGTH characters repeat the
+    previous rule's on the same word (e.g. `$1` on a long word after
+    `:`) is skipped rather than hashed again.
+    */
+    static class RuleSource implements bf_jcrypt.CandidateSource {
+        final bf_jcrypt.Wordlist dictionary;
+        final RuleProgram[] programs;
+
+        RuleSource(bf_jcrypt.Wordlist dictionary, List<RuleProgram> programs) {
+            this.dictionary = dictionary;
+            this.programs = programs.toArray(new RuleProgram[0]);
+        }
+
+        @Override
+        public long size() {
+            return dictionary.positions();
+        }
+
+        @Override
+        public double candidatesPerUnit() {
+            return (double) programs.length / (dictionary.averageLength() + 1);
+        }
+
+        @Override
+        public Enumerator open(long from, long to) {
+            bf_jcrypt.WordReader reader = dictionary.words(from, to);
+            char[] word = new char[RuleProgram.CAPACITY];
+            char[] last = new char[bf_jcrypt.KEY_LENGTH];
+
+            return new Enumerator() {
+                int wordLength;
+                int lastLength = -1;
+                int rule = programs.length;
+
+                {
+                    key = new char[RuleProgram.CAPACITY];
+                }
+
+                @Override
+                int next() {
+                    while (true) {
+                        if (rule == programs.length) {
+                            String w = reader.next();
+                            if (w == null) return -1;
+
+                            wordLength = Math.min(w.length(), word.length);
+                            w.getChars(0, wordLength, word, 0);
+                            lastLength = -1;
+                            rule = 0;
+                        }
+                        System.arraycopy(word, 0, key, 0, wordLength);
+                        int length = programs[rule++].run(key, wordLength);
+                        if (length < 0) continue;
+
+                        length = Math.min(length, bf_jcrypt.KEY_LENGTH);
+                        if (length == lastLength && Arrays.equals(key, 0, length, last, 0, length)) continue;
+                        System.arraycopy(key, 0, last, 0, length);
+                        lastLength = length;
+                        return length;
+                    }
+                }
+            };
+        }
+    }
+}
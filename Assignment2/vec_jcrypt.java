@@ -0,0 +1,168 @@
+/****************************************************************************
+ * vec_jcrypt.java
+ *
+ * SIMD implementation of the unix crypt command on the JDK Vector API.
+ *
+ * Runs jcrypt's table driven D_ENCRYPT with one key per vector lane:
+ * the round function's shifts, masks and salt swap are done lane-wise,
+ * and the eight SPtrans lookups are gathers from one flattened table.
+ * The lane count follows the preferred species of the machine, e.g.
+ * 8 keys on AVX2 and 16 on AVX-512.
+ *
+ * jdk.incubator.vector is an incubator module, so this file is compiled
+ * and run separately:
+ *
+ *    javac --add-modules jdk.incubator.vector vec_jcrypt.java
+ *    java --add-modules jdk.incubator.vector bf_jcrypt --engine vector ...
+ *
+ * bf_jcrypt loads it by name and falls back to the scalar engine when
+ * the module or this class is missing. Running the class checks it
+ * against jcrypt.crypt over random salts and keys:
+ *
+ *    java --add-modules jdk.incubator.vector vec_jcrypt [rounds] [seed]
+ *
+ ****************************************************************************/
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class vec_jcrypt implements jcrypt.BatchEngine
+{
+   private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+   private static final int ITERATIONS = 16;
+
+   private static final int SP[] = jcrypt.spTransFlat();
+
+   private final int lanes = SPECIES.length();
+
+   private final IntVector E0;
+   private final IntVector E1;
+
+   /* Round keys, row S holds schedule[S] of every lane */
+   private final int schedule[] = new int[ITERATIONS * 2 * lanes];
+
+   private final int scratch[] = new int[ITERATIONS * 2];
+   private final int index[] = new int[lanes];
+   private final int left[] = new int[lanes];
+   private final int right[] = new int[lanes];
+   private final long out[] = new long[lanes];
+
+   public vec_jcrypt(String salt)
+   {
+      int saltBits = jcrypt.saltBits(salt);
+
+      E0 = IntVector.broadcast(SPECIES, saltBits & 0xffff);
+      E1 = IntVector.broadcast(SPECIES, saltBits >>> 16);
+   }
+
+   public int lanes()
+   {
+      return(lanes);
+   }
+
+   /*
+    * Builds each lane's key schedule with the table driven key setup and
+    * transposes it into one row per round key word.
+    */
+   public void setKeys(byte keys[][], int count)
+   {
+      for(int lane = 0; lane < lanes; lane ++)
+      {
+         if(lane < count)
+            jcrypt.des_set_key_table(keys[lane], scratch);
+         else
+            java.util.Arrays.fill(scratch, 0);
+
+         for(int s = 0; s < ITERATIONS * 2; s ++)
+            schedule[s * lanes + lane] = scratch[s];
+      }
+   }
+
+   private IntVector gather(IntVector x, int shift, int nibble)
+   {
+      x.lanewise(VectorOperators.LSHR, shift).and(0x3f).add(nibble * 64).intoArray(index, 0);
+
+      return(IntVector.fromArray(SPECIES, SP, 0, index, 0));
+   }
+
+   private IntVector D_ENCRYPT(IntVector L, IntVector R, int S)
+   {
+      IntVector v = R.lanewise(VectorOperators.XOR, R.lanewise(VectorOperators.LSHR, 16));
+      IntVector u = v.and(E0);
+      IntVector t;
+
+      v = v.and(E1);
+      u = u.lanewise(VectorOperators.XOR, u.lanewise(VectorOperators.LSHL, 16))
+           .lanewise(VectorOperators.XOR, R)
+           .lanewise(VectorOperators.XOR, IntVector.fromArray(SPECIES, schedule, S * lanes));
+      t = v.lanewise(VectorOperators.XOR, v.lanewise(VectorOperators.LSHL, 16))
+           .lanewise(VectorOperators.XOR, R)
+           .lanewise(VectorOperators.XOR, IntVector.fromArray(SPECIES, schedule, (S + 1) * lanes));
+      t = t.lanewise(VectorOperators.LSHR, 4).or(t.lanewise(VectorOperators.LSHL, 28));
+
+      return(L.lanewise(VectorOperators.XOR,
+         gather(t,  0, 1).or(gather(t,  8, 3))
+                         .or(gather(t, 16, 5))
+                         .or(gather(t, 24, 7))
+                         .or(gather(u,  0, 0))
+                         .or(gather(u,  8, 2))
+                         .or(gather(u, 16, 4))
+                         .or(gather(u, 24, 6))));
+   }
+
+   public void crypt()
+   {
+      IntVector l = IntVector.zero(SPECIES);
+      IntVector r = IntVector.zero(SPECIES);
+      IntVector t;
+
+      for(int j = 0; j < 25; j ++)
+      {
+         for(int i = 0; i < ITERATIONS * 2; i += 4)
+         {
+            l = D_ENCRYPT(l, r, i);
+            r = D_ENCRYPT(r, l, i + 2);
+         }
+         t = l;
+         l = r;
+         r = t;
+      }
+
+      l.intoArray(left, 0);
+      r.intoArray(right, 0);
+
+      for(int lane = 0; lane < lanes; lane ++)
+         out[lane] = jcrypt.output(left[lane], right[lane]);
+   }
+
+   public long match(long raw)
+   {
+      long mask = 0;
+
+      for(int lane = 0; lane < lanes; lane ++)
+      {
+         if(out[lane] == raw)
+            mask |= 1L << lane;
+      }
+      return(mask);
+   }
+
+   /*
+    * Compares the engine with jcrypt.crypt (see jcrypt.check) and exits
+    * with status 1 on the first mismatch.
+    */
+   public static void main(String args[])
+   {
+      int  rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+      long seed   = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+
+      System.out.println("vec_jcrypt: " + rounds + " rounds of " + SPECIES.length() + " lanes, seed " + seed);
+
+      if(!jcrypt.check(vec_jcrypt::new, rounds, seed))
+         System.exit(1);
+
+      System.out.println("OK");
+   }
+}